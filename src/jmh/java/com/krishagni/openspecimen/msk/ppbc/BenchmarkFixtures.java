@@ -0,0 +1,275 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrder;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrderItem;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionProtocol;
+import com.krishagni.catissueplus.core.administrative.domain.DpRequirement;
+import com.krishagni.catissueplus.core.administrative.domain.Institute;
+import com.krishagni.catissueplus.core.administrative.domain.Site;
+import com.krishagni.catissueplus.core.administrative.domain.User;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollRecvDetails;
+import com.krishagni.catissueplus.core.biospecimen.domain.Participant;
+import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
+import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
+import com.krishagni.catissueplus.core.de.domain.DeObject;
+import com.krishagni.catissueplus.core.de.domain.DeObject.Attr;
+
+//
+// In-memory records shaped like the ones the export reads, with values of
+// realistic length. Every record has a custom field extension holding the
+// fields the export reads among ones it does not, in form order, so the
+// projections resolve and read their fields like they do on real forms.
+//
+public class BenchmarkFixtures {
+	private static final Date COLL_TIME = new Date(1546300800000L);
+
+	private static final long PARTICIPANT_FORM = 11L, VISIT_FORM = 12L, SPECIMEN_FORM = 13L, DP_FORM = 14L, ORDER_FORM = 15L;
+
+	public static CollectionProtocolRegistration newCpr() {
+		Participant participant = new Participant();
+		participant.setEmpi("35012867");
+		participant.setExtension(newExtension(PARTICIPANT_FORM,
+			"Consent Version", "2018-v3",
+			"Darwin ID", "4471902",
+			"Research Contact Allowed", "Yes"));
+
+		CollectionProtocolRegistration cpr = new CollectionProtocolRegistration();
+		cpr.setId(1L);
+		cpr.setParticipant(participant);
+		return cpr;
+	}
+
+	public static Visit newVisit(CollectionProtocolRegistration cpr) {
+		Site site = new Site();
+		site.setName("Memorial Hospital Main Campus");
+
+		Visit visit = new Visit();
+		visit.setId(1L);
+		visit.setRegistration(cpr);
+		visit.setName("PPBC-19-000123");
+		visit.setVisitDate(COLL_TIME);
+		visit.setSite(site);
+		visit.setClinicalDiagnoses(new LinkedHashSet<>(Collections.singletonList("Adenocarcinoma, NOS")));
+		visit.setSurgicalPathologyNumber("S19-004567");
+		visit.setComments("Received in formalin, two parts");
+		visit.setExtension(newExtension(VISIT_FORM,
+			"Diagnosis Notes", "Invasive adenocarcinoma, acinar predominant, pT1b",
+			"Operation Date", "01/01/2019",
+			"Path Date", "01/03/2019",
+			"Surgeon Name", "Dr. Alan Surgeon",
+			"Anesthesia Type", "General",
+			"Specimen Description", "Right upper lobe wedge resection",
+			"NUN (N)", "2",
+			"NUN (T)", "3",
+			"OCT (N)", "1",
+			"OCT (T)", "2",
+			"Entered By", "biobank.tech"));
+		return visit;
+	}
+
+	public static Specimen newPrimarySpecimen(Visit visit) {
+		return newSpecimen(visit, "PPBC-19-000123.1", Specimen.NEW);
+	}
+
+	public static Specimen newAliquot(Specimen parent, int seqNo) {
+		Specimen aliquot = newSpecimen(parent.getVisit(), parent.getLabel() + "." + seqNo, Specimen.ALIQUOT);
+		aliquot.setParentSpecimen(parent);
+		aliquot.setCreatedOn(new Date(COLL_TIME.getTime() + 45 * 60 * 1000L));
+		return aliquot;
+	}
+
+	public static DistributionProtocol newDp() {
+		Institute institute = new Institute();
+		institute.setName("Memorial Sloan Kettering Cancer Center");
+
+		Site site = new Site();
+		site.setName("Precision Pathology Biobanking Center");
+
+		User pi = new User();
+		pi.setFirstName("Jane");
+		pi.setLastName("Researcher");
+
+		DistributionProtocol dp = new DistributionProtocol();
+		dp.setId(1L);
+		dp.setTitle("Tumour heterogeneity in resected lung adenocarcinoma");
+		dp.setShortTitle("TBR-2019-0042");
+		dp.setInstitute(institute);
+		dp.setDefReceivingSite(site);
+		dp.setPrincipalInvestigator(pi);
+		dp.setExtension(newExtension(DP_FORM,
+			"Request Date", "12/14/2018",
+			"ILAB No", "ILAB-88412",
+			"Finalize Flag", "Y",
+			"Cost Center", "CC-2210",
+			"Fund ID", "F-55012",
+			"MTA Flag", "N",
+			"Distribution Option Desc", "Prospective collection",
+			"HBC ID", "HBC-2018-117",
+			"HBC Committee Approval Date", "11/30/2018",
+			"Minimum Unit", "10",
+			"MTA Approval Date", "",
+			"Pickup Arrangement Description", "Courier pickup at the biobank front desk",
+			"Prospect Flag", "Y",
+			"Type Description", "Tissue",
+			"Restrospect Flag", "N",
+			"Specimen Collection Method", "Surgical resection",
+			"Comments", "Snap frozen within 30 minutes of resection",
+			"Contact Name", "Jane Researcher",
+			"Specimen Usage Description", "Whole exome and RNA sequencing",
+			"Waiver Number", "WA0123-18",
+			"Minimum Size", "0.5 cm",
+			"Disease Status", "Primary",
+			"Special Handling", "Keep on dry ice",
+			"Last Reviewed By", "hbc.admin"));
+		return dp;
+	}
+
+	public static DpRequirement newDpRequirement(DistributionProtocol dp) {
+		DpRequirement dpr = new DpRequirement();
+		dpr.setDistributionProtocol(dp);
+		dpr.setSpecimenType("Fresh Tissue");
+		dpr.setAnatomicSite("Lung/Upper lobe/Right");
+		dpr.setPathologyStatuses(new LinkedHashSet<>(Collections.singletonList("Malignant")));
+		dpr.setQuantity(new BigDecimal("25"));
+		dpr.setCost(new BigDecimal("150.00"));
+		return dpr;
+	}
+
+	public static List<String> newDpRequirementFields() {
+		return Arrays.asList("Carcinoma", "Adenocarcinoma", "Acinar", "", "Good", "mg", "Snap frozen within 30 minutes");
+	}
+
+	public static DistributionOrderItem newOrderItem(DistributionProtocol dp, Specimen specimen) {
+		DistributionOrder order = new DistributionOrder();
+		order.setDistributionProtocol(dp);
+		order.setExecutionDate(COLL_TIME);
+		order.setExtension(newExtension(ORDER_FORM, "Billing Date", "01/15/2019"));
+
+		DistributionOrderItem item = new DistributionOrderItem();
+		item.setOrder(order);
+		item.setSpecimen(specimen);
+		item.setCost(new BigDecimal("35.50"));
+		return item;
+	}
+
+	public static String[] newRow(int columns) {
+		String[] row = new String[columns];
+		for (int i = 0; i < columns; ++i) {
+			row[i] = (i % 4 == 0) ? "Value with a \"quote\", and a comma " + i : "value-" + i;
+		}
+
+		return row;
+	}
+
+	private static Specimen newSpecimen(Visit visit, String label, String lineage) {
+		CollRecvDetails collRecvDetails = new CollRecvDetails();
+		collRecvDetails.setCollTime(COLL_TIME);
+		collRecvDetails.setRecvTime(new Date(COLL_TIME.getTime() + 20 * 60 * 1000L));
+
+		Specimen specimen = new Specimen();
+		specimen.setVisit(visit);
+		specimen.setLabel(label);
+		specimen.setLineage(lineage);
+		specimen.setSpecimenClass("Tissue");
+		specimen.setSpecimenType("Fresh Tissue");
+		specimen.setTissueSite("Lung/Upper lobe/Right");
+		specimen.setTissueSide("Right");
+		specimen.setPathologicalStatus("Malignant");
+		specimen.setComment("Margins inked");
+		specimen.setAvailableQuantity(new BigDecimal("0.35"));
+		specimen.setCollRecvDetails(collRecvDetails);
+		specimen.setExtension(newExtension(SPECIMEN_FORM,
+			"Part Number", "1",
+			"Part Sub Number", "A",
+			"Freshness Degree", "Fresh",
+			"Time Lapse", "45",
+			"Unit Description", "mg",
+			"Biobank Technician", "biobank.tech",
+			"Accessioning Temperature Condition", "On ice",
+			"Biobank Temperature", "-80C",
+			"Location", "Freezer 4, rack 2",
+			"Special Handling Description", "",
+			"Is The Sample Sterile?", "No",
+			"Accessioned Time", "01/01/2019 10:35",
+			"Histology Data", "Carcinoma/Adenocarcinoma/Acinar/Grade 2",
+			"Additional Information", "Adjacent normal taken",
+			"Additional Processing Date", "01/02/2019",
+			"Additional Processing Technician", "lab.tech",
+			"Additional Processing Temperature", "-80C",
+			"Harvestor", "Pathology assistant"));
+		return specimen;
+	}
+
+	//
+	// An extension of the given form, with the fields given as caption, value pairs
+	//
+	private static DeObject newExtension(long formId, String... captionValues) {
+		List<Attr> attrs = new ArrayList<>();
+		for (int i = 0; i < captionValues.length; i += 2) {
+			Attr attr = new Attr();
+			attr.setName("field" + (i / 2 + 1));
+			attr.setCaption(captionValues[i]);
+			attr.setValue(captionValues[i + 1]);
+			attr.setDisplayValue(captionValues[i + 1]);
+			attrs.add(attr);
+		}
+
+		FixtureExtension extension = new FixtureExtension();
+		extension.setFormId(formId);
+		extension.setAttrs(attrs);
+		return extension;
+	}
+
+	private static class FixtureExtension extends DeObject {
+		private Long objectId;
+
+		private final Map<String, Object> attrValues = new LinkedHashMap<>();
+
+		@Override
+		public String getEntityType() {
+			return "BenchmarkExtension";
+		}
+
+		@Override
+		public String getFormName() {
+			return "benchmarkExtension";
+		}
+
+		@Override
+		public Long getObjectId() {
+			return objectId;
+		}
+
+		@Override
+		public void setObjectId(Long objectId) {
+			this.objectId = objectId;
+		}
+
+		@Override
+		public Long getCpId() {
+			return -1L;
+		}
+
+		@Override
+		public void setAttrValues(Map<String, Object> attrValues) {
+			this.attrValues.clear();
+			this.attrValues.putAll(attrValues);
+		}
+
+		@Override
+		public Map<String, Object> getAttrValues() {
+			return attrValues;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//
+// Throughput of writing rows through the CSV writer of the export into a
+// scratch file. The row widths match the narrowest and the widest export tables.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvWriterBenchmark {
+	@Param({"6", "39"})
+	private int columns;
+
+	private File file;
+
+	private RowWriter writer;
+
+	private String[] row;
+
+	@Setup(Level.Iteration)
+	public void setup() throws IOException {
+		file = File.createTempFile("msk-ppbc-bench", ".csv");
+		writer = new CsvRowWriter(file, null);
+		row = BenchmarkFixtures.newRow(columns);
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		writer.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public void writeNext() {
+		writer.writeNext(row);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(CsvWriterBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build()).run();
+	}
+}
@@ -0,0 +1,173 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrderItem;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionProtocol;
+import com.krishagni.catissueplus.core.administrative.domain.DpRequirement;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
+import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
+import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
+
+//
+// Throughput of building one export row of every kind. Run with the GC
+// profiler (-prof gc, or the main method below) to see the bytes allocated
+// per row.
+//
+// The row builders are private to their exporters; they are called through
+// method handles held in constants, which the JIT inlines like direct calls.
+//
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowBuilderBenchmark {
+	private static final MethodHandle POPULATE_VISIT = getMethod(ParticipantExport.class, "populateVisit", Visit.class, RowBuffer.class);
+
+	private static final MethodHandle POPULATE_SPECIMEN = getMethod(ParticipantExport.class, "populateSpecimen", Specimen.class, RowBuffer.class);
+
+	private static final MethodHandle GET_DP_ROW = getMethod(DistributionProtocolExport.class, "getDpRow", DistributionProtocol.class);
+
+	private static final MethodHandle GET_DPR_ROW = getMethod(DistributionProtocolExport.class, "getDpRRow", DpRequirement.class, int.class, List.class);
+
+	private static final MethodHandle GET_DO_ROW = getMethod(DistributionProtocolExport.class, "getDoRow", DistributionOrderItem.class);
+
+	private static final MethodHandle SPLIT_TO_MULTIPLE = getMethod(DistributionProtocolExport.class, "splitToMultiple", String.class, int.class, String.class, ExportFormat.class);
+
+	private ParticipantExport participantExport;
+
+	private SpecimenExport specimenExport;
+
+	private DistributionProtocolExport dpExport;
+
+	private Visit visit;
+
+	private Specimen primarySpecimen;
+
+	private Specimen aliquot;
+
+	private RowBuffer row;
+
+	private int visitStart;
+
+	private int specimenStart;
+
+	private DistributionProtocol dp;
+
+	private DpRequirement dpr;
+
+	private List<String> dprFields;
+
+	private DistributionOrderItem orderItem;
+
+	@Setup
+	public void setup() throws Throwable {
+		participantExport = new ParticipantExport(null);
+		specimenExport = new SpecimenExport(null);
+		dpExport = new DistributionProtocolExport(null);
+
+		CollectionProtocolRegistration cpr = BenchmarkFixtures.newCpr();
+		visit = BenchmarkFixtures.newVisit(cpr);
+		primarySpecimen = BenchmarkFixtures.newPrimarySpecimen(visit);
+		aliquot = BenchmarkFixtures.newAliquot(primarySpecimen, 2);
+
+		row = new RowBuffer(ExportTable.ACCESSION.getColumns().size());
+		row.add("35012867").add("35012867");
+		visitStart = row.position();
+		POPULATE_VISIT.invokeExact(participantExport, visit, row);
+		specimenStart = row.position();
+
+		dp = BenchmarkFixtures.newDp();
+		dpr = BenchmarkFixtures.newDpRequirement(dp);
+		dprFields = BenchmarkFixtures.newDpRequirementFields();
+		orderItem = BenchmarkFixtures.newOrderItem(dp, aliquot);
+	}
+
+	@Benchmark
+	public String[] specimenRow() {
+		return specimenExport.getRow(aliquot);
+	}
+
+	@Benchmark
+	public String[] specimenRowWithKnownPrimary() {
+		return specimenExport.getRow(aliquot, primarySpecimen);
+	}
+
+	@Benchmark
+	public RowBuffer populateVisit() throws Throwable {
+		row.truncate(visitStart);
+		POPULATE_VISIT.invokeExact(participantExport, visit, row);
+		return row;
+	}
+
+	@Benchmark
+	public String[] populateSpecimen() throws Throwable {
+		row.truncate(specimenStart);
+		POPULATE_SPECIMEN.invokeExact(participantExport, primarySpecimen, row);
+		return row.toRow();
+	}
+
+	@Benchmark
+	public String[] dpRow() throws Throwable {
+		return (String[]) GET_DP_ROW.invokeExact(dpExport, dp);
+	}
+
+	@Benchmark
+	public String[] dpRequirementRow() throws Throwable {
+		return (String[]) GET_DPR_ROW.invokeExact(dpExport, dpr, 0, dprFields);
+	}
+
+	@Benchmark
+	public String[] distributionRow() throws Throwable {
+		return (String[]) GET_DO_ROW.invokeExact(dpExport, orderItem);
+	}
+
+	@Benchmark
+	public RowBuffer addSplit() {
+		row.truncate(specimenStart);
+		return row.addSplit("Lung/Upper lobe/Right", '/', 3, ExportFormat.LEGACY);
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public List<String> splitToMultiple() throws Throwable {
+		return (List<String>) SPLIT_TO_MULTIPLE.invokeExact("Carcinoma", 4, "/", ExportFormat.LEGACY);
+	}
+
+	private static MethodHandle getMethod(Class<?> type, String name, Class<?>... paramTypes) {
+		try {
+			Method method = type.getDeclaredMethod(name, paramTypes);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("No " + name + " in " + type.getName(), e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+			.include(RowBuilderBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build()).run();
+	}
+}
@@ -0,0 +1,123 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Number of records an exporter fetches per page, tuned after every page from
+// what the page cost. Three limits apply and the smallest one wins:
+//
+// - time: the fetch of a page should take about page_target_ms, at the average
+//   fetch time per record of the recent pages. Writing the rows is left out, as
+//   its cost depends on the writer and its backlog rather than on the page size
+// - graph size: the entities loaded for a page should fit within the cap of the
+//   persistence context, at the average entities per record of the recent pages
+// - heap: the page is halved while the free heap is below min_free_heap_pct
+//
+// The page size grows at most twofold per page, so one fast page does not make
+// the next one huge, and shrinks at once when pages get slow or heavy. It stays
+// within the configured bounds. One instance is used by one thread.
+//
+public class AdaptivePageSize {
+	private static final Log logger = LogFactory.getLog(AdaptivePageSize.class);
+
+	//
+	// weight of the latest page in the running averages
+	//
+	private static final double SMOOTHING = 0.3;
+
+	private final String name;
+
+	private final int minSize;
+
+	private final int maxSize;
+
+	private final boolean adaptive;
+
+	private final long targetNanos;
+
+	private final int maxEntities;
+
+	private final double minFreeHeap;
+
+	private int size;
+
+	private double nanosPerRecord = -1;
+
+	private double entitiesPerRecord = -1;
+
+	public AdaptivePageSize(String name, int size, int minSize, int maxSize) {
+		this.name = name;
+		this.minSize = Math.max(1, Math.min(minSize, maxSize));
+		this.maxSize = Math.max(this.minSize, maxSize);
+		this.size = Math.max(this.minSize, Math.min(size, this.maxSize));
+		this.adaptive = ExportConfig.isAdaptivePageSizeEnabled();
+		this.targetNanos = TimeUnit.MILLISECONDS.toNanos(ExportConfig.getPageTargetMillis());
+		this.maxEntities = ExportConfig.getMaxResidentEntities();
+		this.minFreeHeap = ExportConfig.getMinFreeHeapPct() / 100.0;
+	}
+
+	public static AdaptivePageSize forCprs() {
+		return new AdaptivePageSize("cprs", ExportConfig.getCprPageSize(), ExportConfig.getMinCprPageSize(), ExportConfig.getMaxCprPageSize());
+	}
+
+	public static AdaptivePageSize forDps() {
+		return new AdaptivePageSize("dps", ExportConfig.getDpPageSize(), ExportConfig.getMinDpPageSize(), ExportConfig.getMaxDpPageSize());
+	}
+
+	public int get() {
+		return size;
+	}
+
+	//
+	// Entities held by the persistence context for the given number of records
+	// at the end of a page, before it is cleared
+	//
+	public void recordGraphSize(int records, long entities) {
+		if (records > 0) {
+			entitiesPerRecord = average(entitiesPerRecord, (double) entities / records);
+		}
+	}
+
+	public void pageCompleted(int records, long nanos) {
+		if (!adaptive || records <= 0) {
+			return;
+		}
+
+		nanosPerRecord = average(nanosPerRecord, (double) nanos / records);
+
+		long next = Math.max(1L, (long) (targetNanos / nanosPerRecord));
+		if (entitiesPerRecord > 0) {
+			next = Math.min(next, (long) (maxEntities / entitiesPerRecord));
+		}
+
+		next = Math.min(next, 2L * size);
+		if (getFreeHeap() < minFreeHeap) {
+			next = Math.min(next, size / 2);
+		}
+
+		int newSize = (int) Math.max(minSize, Math.min(next, maxSize));
+		if (newSize != size && logger.isDebugEnabled()) {
+			logger.debug("Page size of " + name + " changed from " + size + " to " + newSize + " (" +
+				(long) nanosPerRecord / 1000 + " us and " + (long) entitiesPerRecord + " entities per record)");
+		}
+
+		size = newSize;
+	}
+
+	//
+	// Fraction of the maximum heap that is free. Garbage not yet collected counts
+	// as used, which errs on the side of smaller pages.
+	//
+	private double getFreeHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		return 1.0 - (double) used / runtime.maxMemory();
+	}
+
+	private double average(double current, double sample) {
+		return current < 0 ? sample : (1 - SMOOTHING) * current + SMOOTHING * sample;
+	}
+}
@@ -0,0 +1,202 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Drains the change queue in micro-batches. The rows of the registrations and
+// DPs affected by a batch of changes are exported by the usual exporters into
+// staging tables. In one transaction, the live rows of those records that
+// were not exported again are then deleted and the staged rows merged by key,
+// so readers never see a record half updated. The queue entries go once the
+// rows are committed.
+//
+// A batch that fails is retried one entity at a time, so one bad record does not
+// hold up the changes of the others. The changes of an entity that still fails
+// count a failed attempt, and are parked after change_max_attempts of them until
+// the next export run. Nothing is counted while the target database cannot
+// be reached, as every entity would fail alike.
+//
+// The live rows of a record are found by the columns the staged rows share
+// with them: the MRN or visit name of the accessions, with the details of
+// their primary specimens, and the short title of the DPs. Rows left behind
+// by renamed records stay until the next full export run. The records that were
+// disabled or deleted export no rows; their live rows are deleted by key in the
+// same transaction (see RemovedRoots).
+//
+public class ChangeBatchExport {
+	private static final Log logger = LogFactory.getLog(ChangeBatchExport.class);
+
+	private static final ExportTable[] CPR_TABLES = {
+		ExportTable.ACCESSION,
+		ExportTable.DETAILS
+	};
+
+	private static final ExportTable[] DP_TABLES = {
+		ExportTable.SPECIMEN_REQUEST,
+		ExportTable.SPECIMEN_REQUEST_DETAILS,
+		ExportTable.DISTRIBUTION
+	};
+
+	private final ChangeQueue queue;
+
+	public ChangeBatchExport(ChangeQueue queue) {
+		this.queue = queue;
+	}
+
+	//
+	// Exports the queued changes batch by batch until the queue is empty. Nothing
+	// is done while an export run is rebuilding the tables; the changes wait for
+	// the run to finish.
+	//
+	public void run() throws Exception {
+		if (!ExportJobDriver.RUN_LOCK.tryLock()) {
+			return;
+		}
+
+		try {
+			TargetDatabase.refresh();
+			int batchSize = ExportConfig.getChangeBatchSize(), maxAttempts = ExportConfig.getChangeMaxAttempts();
+			List<ChangeQueue.Change> changes;
+			do {
+				changes = queue.peek(batchSize, maxAttempts);
+				if (changes.isEmpty()) {
+					break;
+				}
+
+				try {
+					exportChanges(changes);
+				} catch (Exception e) {
+					logger.error("Error exporting a batch of " + changes.size() + " queued changes, retrying them one entity at a time", e);
+					exportEachEntity(changes, maxAttempts);
+				}
+			} while (changes.size() >= batchSize);
+		} finally {
+			ExportJobDriver.RUN_LOCK.unlock();
+		}
+	}
+
+	private void exportEachEntity(List<ChangeQueue.Change> changes, int maxAttempts) throws Exception {
+		Map<String, List<ChangeQueue.Change>> changesByEntity = new LinkedHashMap<>();
+		for (ChangeQueue.Change change : changes) {
+			String entity = change.getEntityName() + " " + change.getEntityId();
+			changesByEntity.computeIfAbsent(entity, k -> new ArrayList<>()).add(change);
+		}
+
+		for (Map.Entry<String, List<ChangeQueue.Change>> entityChanges : changesByEntity.entrySet()) {
+			try {
+				exportChanges(entityChanges.getValue());
+			} catch (Exception e) {
+				ensureTargetIsReachable(e);
+				queue.failed(entityChanges.getValue());
+
+				boolean parked = entityChanges.getValue().get(0).getAttempts() + 1 >= maxAttempts;
+				logger.error("Error exporting the queued changes of " + entityChanges.getKey() +
+					(parked ? "; they are parked until the next export run" : ""), e);
+			}
+		}
+	}
+
+	private void ensureTargetIsReachable(Exception cause) throws Exception {
+		try {
+			TargetDatabase.execute("SELECT 1");
+		} catch (Exception e) {
+			cause.addSuppressed(e);
+			throw cause;
+		}
+	}
+
+	private void exportChanges(List<ChangeQueue.Change> changes) throws Exception {
+		long startTime = System.currentTimeMillis();
+		Map<String, List<Long>> entityIds = ChangeQueue.getEntityIds(changes);
+
+		//
+		// the accessions of a participant are replaced as a whole, so all of its registrations are exported
+		//
+		ExportChangeTracker tracker = new ExportChangeTracker();
+		List<Long> cprIds = tracker.getCprIds(entityIds);
+		if (!cprIds.isEmpty()) {
+			cprIds = tracker.getParticipantCprIds(cprIds);
+		}
+
+		List<Long> dpIds = tracker.getDpIds(entityIds);
+		RemovedRoots removedRoots = RemovedRoots.of(cprIds, dpIds);
+
+		List<ExportTable> tables = new ArrayList<>();
+		if (!cprIds.isEmpty()) {
+			tables.addAll(Arrays.asList(CPR_TABLES));
+		}
+
+		if (!dpIds.isEmpty()) {
+			tables.addAll(Arrays.asList(DP_TABLES));
+		}
+
+		try {
+			createStagingTables(tables);
+
+			ExportContext ctx = ExportContext.forChangeBatch();
+			if (!cprIds.isEmpty()) {
+				new ParticipantExport(ctx).exportRegistrations(cprIds);
+			}
+
+			if (!dpIds.isEmpty()) {
+				new DistributionProtocolExport(ctx).exportProtocols(dpIds);
+				if (ExportConfig.isDirectItemExportEnabled()) {
+					new DistributionItemExport(ctx).exportProtocolItems(dpIds);
+				}
+			}
+
+			replaceLiveRows(tables, removedRoots);
+		} finally {
+			dropStagingTables(tables);
+		}
+
+		queue.remove(changes);
+		logger.info("Exported " + changes.size() + " queued changes: " + cprIds.size() + " registrations and " +
+			dpIds.size() + " distribution protocols in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	private void createStagingTables(List<ExportTable> tables) {
+		TargetSchema schema = TargetSchema.getInstance();
+		ExportTable[] toCreate = tables.toArray(new ExportTable[0]);
+		schema.ensureTables(toCreate);
+		for (ExportTable table : toCreate) {
+			schema.createLoadTable(table, table.getStagingTableName());
+		}
+	}
+
+	private void dropStagingTables(List<ExportTable> tables) {
+		for (ExportTable table : tables) {
+			try {
+				TargetDatabase.execute("DROP TABLE IF EXISTS " + table.getStagingTableName());
+			} catch (Exception e) {
+				logger.error("Error dropping " + table.getStagingTableName(), e);
+			}
+		}
+	}
+
+	//
+	// The scoped deletes are the ones of a delta merge, with the staging tables as the source
+	//
+	private void replaceLiveRows(List<ExportTable> tables, RemovedRoots removedRoots) throws SQLException {
+		List<String> stmts = new ArrayList<>();
+		for (ExportTable table : ShadowTables.getDeleteOrder(tables)) {
+			stmts.add(ShadowTables.getDeleteRemovedSql(table, ExportTable::getStagingTableName));
+			stmts.addAll(removedRoots.getDeleteSql(table));
+		}
+
+		for (ExportTable table : tables) {
+			stmts.add(ShadowTables.getUpdateChangedSql(table, table.getStagingTableName()));
+			stmts.add(ShadowTables.getInsertNewSql(table, table.getStagingTableName()));
+		}
+
+		ShadowTables.execute(stmts);
+	}
+}
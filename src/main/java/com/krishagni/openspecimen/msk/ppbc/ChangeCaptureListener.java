@@ -0,0 +1,201 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrder;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrderItem;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionProtocol;
+import com.krishagni.catissueplus.core.administrative.domain.DpRequirement;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
+import com.krishagni.catissueplus.core.biospecimen.domain.Participant;
+import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
+import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
+
+//
+// Captures the saves of the entities the exported rows are built from and
+// queues them in the transaction that saves them, much like the audit trail
+// is written. A background thread drains the queue into the target tables
+// every change_batch_interval_secs, so the tables trail the application by
+// minutes instead of a day. Registered in pluginContext.xml, after the
+// changelog that creates the queue table; nothing is captured unless
+// change_capture is on.
+//
+// An order item is queued as its order. Custom field values are saved outside
+// of Hibernate and are not captured; the next export run picks them up.
+//
+public class ChangeCaptureListener implements PostInsertEventListener, PostUpdateEventListener {
+	private static final Log logger = LogFactory.getLog(ChangeCaptureListener.class);
+
+	private static final long serialVersionUID = 1L;
+
+	private static final Class<?>[] CAPTURED_ENTITIES = {
+		CollectionProtocolRegistration.class,
+		Participant.class,
+		Visit.class,
+		Specimen.class,
+		DistributionProtocol.class,
+		DpRequirement.class,
+		DistributionOrder.class
+	};
+
+	private static final int TICK_SECS = 5;
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private final ChangeQueue queue = new ChangeQueue();
+
+	private final Map<SessionImplementor, PendingChanges> pending = new ConcurrentHashMap<>();
+
+	private ScheduledExecutorService executor;
+
+	private long lastBatchTime;
+
+	public void start() {
+		EventListenerRegistry registry = ((SessionFactoryImplementor) sessionFactory)
+			.getServiceRegistry()
+			.getService(EventListenerRegistry.class);
+		registry.appendListeners(EventType.POST_INSERT, this);
+		registry.appendListeners(EventType.POST_UPDATE, this);
+
+		//
+		// the interval is checked on every tick, so a changed setting applies without a restart
+		//
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "msk-ppbc-change-export");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(this::tick, 0, TICK_SECS, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public void onPostInsert(PostInsertEvent event) {
+		capture(event.getEntity(), event.getId(), event.getSession());
+	}
+
+	@Override
+	public void onPostUpdate(PostUpdateEvent event) {
+		capture(event.getEntity(), event.getId(), event.getSession());
+	}
+
+	//
+	// the changes are queued in the transaction, not after it commits
+	//
+	public boolean requiresPostCommitHanding(EntityPersister persister) {
+		return false;
+	}
+
+	private void capture(Object entity, Serializable id, EventSource session) {
+		if (!ExportConfig.isChangeCaptureEnabled()) {
+			return;
+		}
+
+		Class<?> entityClass;
+		Long entityId;
+		if (entity instanceof DistributionOrderItem) {
+			DistributionOrder order = ((DistributionOrderItem) entity).getOrder();
+			entityClass = DistributionOrder.class;
+			entityId = order != null ? order.getId() : null;
+		} else {
+			entityClass = getCapturedClass(entity);
+			entityId = (id instanceof Long) ? (Long) id : null;
+		}
+
+		if (entityClass == null || entityId == null) {
+			return;
+		}
+
+		pending.computeIfAbsent(session, this::newPendingChanges).add(entityClass.getName(), entityId);
+	}
+
+	private Class<?> getCapturedClass(Object entity) {
+		for (Class<?> entityClass : CAPTURED_ENTITIES) {
+			if (entityClass.isInstance(entity)) {
+				return entityClass;
+			}
+		}
+
+		return null;
+	}
+
+	private PendingChanges newPendingChanges(SessionImplementor session) {
+		PendingChanges changes = new PendingChanges();
+		session.getActionQueue().registerProcess((BeforeTransactionCompletionProcess) changes);
+		session.getActionQueue().registerProcess((AfterTransactionCompletionProcess) changes);
+		return changes;
+	}
+
+	private void tick() {
+		try {
+			if (!ExportConfig.isChangeCaptureEnabled()) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastBatchTime < ExportConfig.getChangeBatchInterval() * 1000L) {
+				return;
+			}
+
+			lastBatchTime = now;
+			new ChangeBatchExport(queue).run();
+		} catch (Throwable t) {
+			logger.error("Error exporting the queued changes", t);
+		}
+	}
+
+	//
+	// Changes of one transaction, queued just before it commits and dropped
+	// with it when it rolls back
+	//
+	private class PendingChanges implements BeforeTransactionCompletionProcess, AfterTransactionCompletionProcess {
+		private final Map<String, Set<Long>> entityIds = new HashMap<>();
+
+		void add(String entityName, Long entityId) {
+			entityIds.computeIfAbsent(entityName, name -> new TreeSet<>()).add(entityId);
+		}
+
+		@Override
+		public void doBeforeTransactionCompletion(SessionImplementor session) {
+			((Session) session).doWork(conn -> queue.add(conn, entityIds));
+		}
+
+		@Override
+		public void doAfterTransactionCompletion(boolean success, SessionImplementor session) throws HibernateException {
+			pending.remove(session);
+		}
+	}
+}
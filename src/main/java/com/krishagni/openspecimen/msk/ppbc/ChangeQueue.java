@@ -0,0 +1,200 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+
+import com.krishagni.catissueplus.core.common.PlusTransactional;
+
+//
+// Durable queue of the entities saved since their rows were last exported, kept
+// in a table of the OpenSpecimen database. The changes of a transaction are
+// queued in that transaction, so they are kept exactly when the change itself
+// is committed. Entries are removed once their rows are in the target tables.
+// An entry whose export failed as many times as allowed is parked: it is left
+// out of the batches, and dropped with the others by the next export run,
+// which reads its rows. The table is created by the db/msk-ppbc-export changelog
+// when the plugin is deployed.
+//
+@Configurable
+public class ChangeQueue {
+	private static final int MAX_IDS_PER_QUERY = 500;
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	public static class Change {
+		private final long id;
+
+		private final String entityName;
+
+		private final long entityId;
+
+		//
+		// failed attempts to export the change so far
+		//
+		private final int attempts;
+
+		public Change(long id, String entityName, long entityId, int attempts) {
+			this.id = id;
+			this.entityName = entityName;
+			this.entityId = entityId;
+			this.attempts = attempts;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public String getEntityName() {
+			return entityName;
+		}
+
+		public long getEntityId() {
+			return entityId;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+	}
+
+	//
+	// Queues the changed entities, as entity class name to ids, on the connection
+	// of the transaction that changed them
+	//
+	public void add(Connection conn, Map<String, ? extends Collection<Long>> changes) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement(INSERT_SQL);
+			for (Map.Entry<String, ? extends Collection<Long>> entityChanges : changes.entrySet()) {
+				for (Long entityId : entityChanges.getValue()) {
+					stmt.setString(1, entityChanges.getKey());
+					stmt.setLong(2, entityId);
+					stmt.addBatch();
+				}
+			}
+
+			stmt.executeBatch();
+		} finally {
+			if (stmt != null) {
+				stmt.close();
+			}
+		}
+	}
+
+	//
+	// Oldest changes in the queue that are not parked, without removing them
+	//
+	@PlusTransactional
+	@SuppressWarnings("unchecked")
+	public List<Change> peek(int maxChanges, int maxAttempts) {
+		List<Object[]> rows = sessionFactory.getCurrentSession()
+			.createSQLQuery(GET_CHANGES_SQL)
+			.setInteger("maxAttempts", maxAttempts)
+			.setMaxResults(maxChanges)
+			.list();
+
+		List<Change> changes = new ArrayList<>(rows.size());
+		for (Object[] row : rows) {
+			changes.add(new Change(((Number) row[0]).longValue(), (String) row[1], ((Number) row[2]).longValue(), ((Number) row[3]).intValue()));
+		}
+
+		return changes;
+	}
+
+	//
+	// Ids of the changed entities, by entity class name
+	//
+	public static Map<String, List<Long>> getEntityIds(List<Change> changes) {
+		Map<String, SortedSet<Long>> idSets = new LinkedHashMap<>();
+		for (Change change : changes) {
+			idSets.computeIfAbsent(change.getEntityName(), name -> new TreeSet<>()).add(change.getEntityId());
+		}
+
+		Map<String, List<Long>> result = new LinkedHashMap<>();
+		idSets.forEach((name, ids) -> result.put(name, new ArrayList<>(ids)));
+		return result;
+	}
+
+	@PlusTransactional
+	public void remove(List<Change> changes) {
+		update(DELETE_CHANGES_SQL, changes);
+	}
+
+	//
+	// Counts a failed attempt to export the changes
+	//
+	@PlusTransactional
+	public void failed(List<Change> changes) {
+		update(INCR_ATTEMPTS_SQL, changes);
+	}
+
+	//
+	// Id of the latest change in the queue, 0 when it is empty
+	//
+	@PlusTransactional
+	public long getLastId() {
+		Number lastId = (Number) sessionFactory.getCurrentSession()
+			.createSQLQuery(GET_LAST_ID_SQL)
+			.uniqueResult();
+		return lastId != null ? lastId.longValue() : 0L;
+	}
+
+	//
+	// Drops the changes up to the given id, the last one queued when an export
+	// run started; the run has read their rows since
+	//
+	@PlusTransactional
+	public int purge(long upToId) {
+		return sessionFactory.getCurrentSession()
+			.createSQLQuery(PURGE_CHANGES_SQL)
+			.setLong("upToId", upToId)
+			.executeUpdate();
+	}
+
+	private void update(String sql, List<Change> changes) {
+		List<Long> ids = new ArrayList<>(changes.size());
+		changes.forEach(change -> ids.add(change.getId()));
+
+		for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+			sessionFactory.getCurrentSession()
+				.createSQLQuery(sql)
+				.setParameterList("ids", ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size())))
+				.executeUpdate();
+		}
+	}
+
+	private static final String TABLE_NAME = "msk_ppbc_export_changes";
+
+	private static final String INSERT_SQL =
+		"insert into " + TABLE_NAME + " (entity_name, entity_id) values (?, ?)";
+
+	private static final String GET_CHANGES_SQL =
+		"select identifier, entity_name, entity_id, attempts from " + TABLE_NAME + " " +
+		"where attempts < :maxAttempts " +
+		"order by identifier";
+
+	private static final String DELETE_CHANGES_SQL =
+		"delete from " + TABLE_NAME + " where identifier in (:ids)";
+
+	private static final String INCR_ATTEMPTS_SQL =
+		"update " + TABLE_NAME + " set attempts = attempts + 1 where identifier in (:ids)";
+
+	private static final String GET_LAST_ID_SQL =
+		"select max(identifier) from " + TABLE_NAME;
+
+	private static final String PURGE_CHANGES_SQL =
+		"delete from " + TABLE_NAME + " where identifier <= :upToId";
+}
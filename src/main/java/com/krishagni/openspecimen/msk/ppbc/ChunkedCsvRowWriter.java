@@ -0,0 +1,109 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+//
+// Writes the rows of a table file into a series of chunk files instead, named
+// after the file with a chunk number. A chunk is sealed once it has the set
+// number of rows or bytes, and handed to the load pipeline while the following
+// rows go into the next chunk. Every chunk starts with the header line of the
+// table, so it is loaded by the same query as a whole table file. The chunks
+// of a compressed file are gzipped.
+//
+public class ChunkedCsvRowWriter implements RowWriter {
+	private final ExportTable table;
+
+	private final File dir;
+
+	private final String baseName;
+
+	private final String[] header;
+
+	private final int bufferSize;
+
+	private final ExportFormat format;
+
+	private final boolean compressed;
+
+	private final LoadPipeline pipeline;
+
+	private final long maxRows;
+
+	private final long maxBytes;
+
+	private CsvRowWriter writer;
+
+	private File file;
+
+	private long rows;
+
+	private int chunks;
+
+	public ChunkedCsvRowWriter(ExportTable table, File file, int bufferSize, ExportFormat format, boolean compressed, LoadPipeline pipeline) {
+		String fileName = ExportLoader.getLoadFileName(file.getName());
+		this.table = table;
+		this.dir = file.getParentFile();
+		this.baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+		this.header = getHeader(table);
+		this.bufferSize = bufferSize;
+		this.format = format;
+		this.compressed = compressed;
+		this.pipeline = pipeline;
+		this.maxRows = ExportConfig.getPipelineChunkRows();
+		this.maxBytes = ExportConfig.getPipelineChunkSize();
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		if (writer == null) {
+			file = new File(dir, baseName + ".chunk-" + (++chunks) + ".csv" + (compressed ? ExportLoader.GZIP_SUFFIX : ""));
+			writer = new CsvRowWriter(file, header, bufferSize, format, compressed);
+		}
+
+		writer.writeNext(row);
+		if (++rows >= maxRows || writer.getSize() >= maxBytes) {
+			seal();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (writer != null) {
+			seal();
+		}
+	}
+
+	private void seal() {
+		try {
+			writer.close();
+			pipeline.submit(table, file);
+		} catch (IOException e) {
+			throw new RuntimeException("Error closing " + file.getAbsolutePath(), e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted queueing " + file.getName() + " for loading", e);
+		} finally {
+			writer = null;
+			rows = 0;
+		}
+	}
+
+	private static String[] getHeader(ExportTable table) {
+		List<ExportTable.Column> columns = table.getColumns();
+		String[] header = new String[columns.size()];
+		for (int i = 0; i < header.length; ++i) {
+			header[i] = columns.get(i).getName();
+		}
+
+		return header;
+	}
+}
@@ -0,0 +1,107 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+
+import com.krishagni.catissueplus.core.biospecimen.domain.BaseExtensionEntity;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
+import com.krishagni.catissueplus.core.biospecimen.domain.Participant;
+import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
+import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
+import com.krishagni.catissueplus.core.de.domain.DeObject;
+
+//
+// Loads everything the participant export touches for a page of registrations
+// in a handful of batched queries: the visits, their specimens and specimen
+// children, and the custom field records of the participants, visits and
+// specimens. Must be called in the transaction that loaded the registrations,
+// so the fetched collections land in the same session.
+//
+@Configurable
+public class CprGraphPrefetcher {
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	public void prefetch(List<CollectionProtocolRegistration> cprs) {
+		if (cprs.isEmpty()) {
+			return;
+		}
+
+		List<Long> cprIds = cprs.stream().map(CollectionProtocolRegistration::getId).collect(Collectors.toList());
+		fetch(FETCH_CPR_VISITS_HQL, cprIds);
+		fetch(FETCH_VISIT_DIAGNOSES_HQL, cprIds);
+		fetch(FETCH_VISIT_SPECIMENS_HQL, cprIds);
+		fetch(FETCH_SPECIMEN_CHILDREN_HQL, cprIds);
+
+		prefetchExtensions(cprs);
+	}
+
+	private void fetch(String hql, List<Long> cprIds) {
+		sessionFactory.getCurrentSession()
+			.createQuery(hql)
+			.setParameterList("cprIds", cprIds)
+			.list();
+	}
+
+	private void prefetchExtensions(List<CollectionProtocolRegistration> cprs) {
+		//
+		// custom field forms can be specific to a collection protocol
+		//
+		Map<Long, List<CollectionProtocolRegistration>> cprsByCp = new LinkedHashMap<>();
+		for (CollectionProtocolRegistration cpr : cprs) {
+			cprsByCp.computeIfAbsent(cpr.getCollectionProtocol().getId(), cpId -> new ArrayList<>()).add(cpr);
+		}
+
+		for (Map.Entry<Long, List<CollectionProtocolRegistration>> cpCprs : cprsByCp.entrySet()) {
+			List<BaseExtensionEntity> participants = new ArrayList<>();
+			List<BaseExtensionEntity> visits = new ArrayList<>();
+			List<BaseExtensionEntity> specimens = new ArrayList<>();
+
+			for (CollectionProtocolRegistration cpr : cpCprs.getValue()) {
+				participants.add(cpr.getParticipant());
+				for (Visit visit : cpr.getVisits()) {
+					visits.add(visit);
+					specimens.addAll(visit.getSpecimens());
+				}
+			}
+
+			createExtensions(Participant.EXTN, cpCprs.getKey(), participants);
+			createExtensions(Visit.EXTN, cpCprs.getKey(), visits);
+			createExtensions(Specimen.EXTN, cpCprs.getKey(), specimens);
+		}
+	}
+
+	private void createExtensions(String entityType, Long cpId, Collection<BaseExtensionEntity> objects) {
+		if (!objects.isEmpty()) {
+			DeObject.createExtensions(true, entityType, cpId, objects);
+		}
+	}
+
+	private static final String FETCH_CPR_VISITS_HQL =
+		"select distinct cpr from " + CollectionProtocolRegistration.class.getName() + " cpr " +
+		"  left join fetch cpr.visits " +
+		"where cpr.id in (:cprIds)";
+
+	private static final String FETCH_VISIT_DIAGNOSES_HQL =
+		"select distinct v from " + Visit.class.getName() + " v " +
+		"  left join fetch v.clinicalDiagnoses " +
+		"where v.registration.id in (:cprIds)";
+
+	private static final String FETCH_VISIT_SPECIMENS_HQL =
+		"select distinct v from " + Visit.class.getName() + " v " +
+		"  left join fetch v.specimens " +
+		"where v.registration.id in (:cprIds)";
+
+	private static final String FETCH_SPECIMEN_CHILDREN_HQL =
+		"select distinct s from " + Specimen.class.getName() + " s " +
+		"  left join fetch s.childCollection " +
+		"where s.visit.registration.id in (:cprIds)";
+}
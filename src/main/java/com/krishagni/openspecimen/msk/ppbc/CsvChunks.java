@@ -0,0 +1,160 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+//
+// Splits an export file into chunks of about the given size that can be loaded
+// concurrently. Every chunk starts with the header line of the file, so it is
+// loaded by the same query. Chunks end at a line end outside quotes: all values
+// are quoted with embedded quotes doubled, so a line end closes a row only when
+// an even number of quotes precedes it. The chunks of a gzipped file are
+// gzipped, and their size is that of the rows before compression.
+//
+public class CsvChunks {
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final byte QUOTE = '"';
+
+	private static final byte LINE_END = '\n';
+
+	//
+	// Returns the chunk files, or the file itself when it is not larger than a chunk
+	//
+	public static List<File> split(File file, long chunkSize) throws IOException {
+		boolean compressed = ExportLoader.isCompressed(file.getName());
+
+		List<File> chunks = new ArrayList<>();
+		if (chunkSize <= 0 || getDataLength(file, compressed) <= chunkSize) {
+			chunks.add(file);
+			return chunks;
+		}
+
+		String fileName = ExportLoader.getLoadFileName(file.getName());
+		String baseName = fileName.substring(0, fileName.lastIndexOf('.'));
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		boolean inHeader = true, quoted = false;
+		long chunkBytes = 0;
+
+		byte[] buf = new byte[BUFFER_SIZE];
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = open(file, compressed);
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				int start = 0;
+				for (int i = 0; i < n; ++i) {
+					if (buf[i] == QUOTE) {
+						quoted = !quoted;
+						continue;
+					}
+
+					if (buf[i] != LINE_END || quoted) {
+						continue;
+					}
+
+					if (inHeader) {
+						header.write(buf, start, i + 1 - start);
+						inHeader = false;
+					} else {
+						if (out == null) {
+							out = newChunk(file, baseName, compressed, header, chunks);
+						}
+
+						out.write(buf, start, i + 1 - start);
+						chunkBytes += i + 1 - start;
+						if (chunkBytes >= chunkSize) {
+							out.close();
+							out = null;
+							chunkBytes = 0;
+						}
+					}
+
+					start = i + 1;
+				}
+
+				//
+				// the row that continues in the next read
+				//
+				if (start < n) {
+					if (inHeader) {
+						header.write(buf, start, n - start);
+					} else {
+						if (out == null) {
+							out = newChunk(file, baseName, compressed, header, chunks);
+						}
+
+						out.write(buf, start, n - start);
+						chunkBytes += n - start;
+					}
+				}
+			}
+
+			if (out != null) {
+				out.close();
+				out = null;
+			}
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+		}
+
+		return chunks;
+	}
+
+	private static OutputStream newChunk(File file, String baseName, boolean compressed, ByteArrayOutputStream header, List<File> chunks) throws IOException {
+		File chunk = new File(file.getParentFile(), baseName + ".chunk-" + (chunks.size() + 1) + ".csv" + (compressed ? ExportLoader.GZIP_SUFFIX : ""));
+		chunks.add(chunk);
+
+		OutputStream out = compressed ?
+			new GZIPOutputStream(new FileOutputStream(chunk), BUFFER_SIZE) :
+			new BufferedOutputStream(new FileOutputStream(chunk), BUFFER_SIZE);
+		header.writeTo(out);
+		return out;
+	}
+
+	private static InputStream open(File file, boolean compressed) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (!compressed) {
+			return in;
+		}
+
+		try {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(in);
+			throw e;
+		}
+	}
+
+	//
+	// Bytes of rows in the file, before compression
+	//
+	private static long getDataLength(File file, boolean compressed) throws IOException {
+		if (!compressed) {
+			return file.length();
+		}
+
+		InputStream in = null;
+		try {
+			in = open(file, true);
+			return IOUtils.copyLarge(in, NullOutputStream.NULL_OUTPUT_STREAM, new byte[BUFFER_SIZE]);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPOutputStream;
+
+//
+// CSV writer tuned for the export. It produces the same bytes as CsvFileWriter:
+// every value is enclosed in double quotes with embedded quotes doubled, null
+// values are left empty and lines end with \n, which is what the LOAD DATA
+// queries expect. The values are UTF-8 encoded straight into one large reusable
+// byte buffer, quoting and encoding each value in a single pass.
+//
+// In the native format nulls are written as an unquoted \N and backslashes are
+// doubled, as LOAD DATA reads backslash escapes even within quotes.
+//
+// The buffer is written out when it fills up, on flush and at the checkpoints,
+// which also force the file to disk. Exporters checkpoint every few pages
+// instead of flushing after every page.
+//
+// A compressed file, written when it is to be copied to a remote database host,
+// is gzipped as the buffer is written out. Every checkpoint ends a gzip member,
+// so the file can be cut at a checkpoint like an uncompressed one and still be
+// read through as a whole.
+//
+public class CsvRowWriter implements RowWriter {
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private static final byte QUOTE = '"';
+
+	private static final byte SEPARATOR = ',';
+
+	private static final byte LINE_END = '\n';
+
+	private static final byte BACKSLASH = '\\';
+
+	private static final byte[] NATIVE_NULL = {BACKSLASH, 'N'};
+
+	private static final int MAX_BYTES_PER_CHAR = 4;
+
+	private final FileOutputStream out;
+
+	private final byte[] buffer;
+
+	private final boolean nativeFormat;
+
+	private final boolean compressed;
+
+	//
+	// gzip member being written, started with the first bytes after a checkpoint
+	//
+	private GZIPOutputStream gzip;
+
+	private int count;
+
+	private long written;
+
+	public CsvRowWriter(File file, String[] header) {
+		this(file, header, DEFAULT_BUFFER_SIZE, ExportFormat.LEGACY);
+	}
+
+	public CsvRowWriter(File file, String[] header, int bufferSize, ExportFormat format) {
+		this(file, header, bufferSize, format, false);
+	}
+
+	public CsvRowWriter(File file, String[] header, int bufferSize, ExportFormat format, boolean compressed) {
+		this(file, 0L, bufferSize, format, compressed);
+		if (header != null) {
+			writeNext(header);
+		}
+	}
+
+	private CsvRowWriter(File file, long offset, int bufferSize, ExportFormat format, boolean compressed) {
+		try {
+			if (offset > 0) {
+				truncate(file, offset);
+			}
+
+			this.out = new FileOutputStream(file, offset > 0);
+		} catch (IOException e) {
+			throw new RuntimeException("Error opening " + file.getAbsolutePath() + " for writing", e);
+		}
+
+		this.buffer = new byte[Math.max(bufferSize, 64 * 1024)];
+		this.nativeFormat = format.isNative();
+		this.compressed = compressed;
+		this.written = compressed ? 0L : offset;
+	}
+
+	//
+	// Reopens a file written by an interrupted run, dropping everything after the
+	// given offset, including any partially written row
+	//
+	public static CsvRowWriter resume(File file, long offset, int bufferSize, ExportFormat format, boolean compressed) {
+		return new CsvRowWriter(file, offset, bufferSize, format, compressed);
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		for (int i = 0; i < row.length; ++i) {
+			if (i > 0) {
+				put(SEPARATOR);
+			}
+
+			if (row[i] != null) {
+				putQuoted(row[i]);
+			} else if (nativeFormat) {
+				put(NATIVE_NULL[0]);
+				put(NATIVE_NULL[1]);
+			}
+		}
+
+		put(LINE_END);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		drain();
+	}
+
+	@Override
+	public long checkpoint() throws IOException {
+		drain();
+		finishMember();
+		out.getFD().sync();
+		return compressed ? out.getChannel().size() : written;
+	}
+
+	//
+	// Bytes written so far, including the ones still in the buffer. A compressed
+	// file counts the bytes before compression written since it was opened.
+	//
+	public long getSize() {
+		return written + count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+			finishMember();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void putQuoted(String value) {
+		put(QUOTE);
+
+		int length = value.length();
+		for (int i = 0; i < length; ++i) {
+			if (buffer.length - count < MAX_BYTES_PER_CHAR) {
+				drainQuietly();
+			}
+
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				if (c == QUOTE) {
+					buffer[count++] = QUOTE;
+				} else if (c == BACKSLASH && nativeFormat) {
+					buffer[count++] = BACKSLASH;
+				}
+
+				buffer[count++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[count++] = (byte) (0xC0 | (c >> 6));
+				buffer[count++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, value.charAt(++i));
+				buffer[count++] = (byte) (0xF0 | (cp >> 18));
+				buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				//
+				// unpaired surrogate, replaced like the JDK encoder does
+				//
+				buffer[count++] = '?';
+			} else {
+				buffer[count++] = (byte) (0xE0 | (c >> 12));
+				buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[count++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+
+		put(QUOTE);
+	}
+
+	private void put(byte b) {
+		if (count == buffer.length) {
+			drainQuietly();
+		}
+
+		buffer[count++] = b;
+	}
+
+	private void drain() throws IOException {
+		if (count > 0) {
+			getSink().write(buffer, 0, count);
+			written += count;
+			count = 0;
+		}
+	}
+
+	private OutputStream getSink() throws IOException {
+		if (!compressed) {
+			return out;
+		}
+
+		if (gzip == null) {
+			gzip = new GZIPOutputStream(out, 64 * 1024);
+		}
+
+		return gzip;
+	}
+
+	private void finishMember() throws IOException {
+		if (gzip != null) {
+			gzip.finish();
+			gzip = null;
+		}
+	}
+
+	private void drainQuietly() {
+		try {
+			drain();
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing the export file", e);
+		}
+	}
+
+	private static void truncate(File file, long offset) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < offset) {
+				throw new IOException(file.getAbsolutePath() + " is shorter than its checkpoint (" + raf.length() + " < " + offset + " bytes)");
+			}
+
+			raf.setLength(offset);
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.krishagni.catissueplus.core.biospecimen.domain.BaseExtensionEntity;
+import com.krishagni.catissueplus.core.de.domain.DeObject;
+import com.krishagni.catissueplus.core.de.domain.DeObject.Attr;
+
+//
+// Picks a fixed list of custom fields, by caption, out of the extension of a record.
+// The position of every caption in the form's attribute list is worked out once per
+// form and reused for all records of that form, so reading the fields of a record
+// is a couple of list lookups instead of building a caption -> value map. A row that
+// reads several columns of a record takes them from one Values of the record.
+//
+public class CustomFieldProjection {
+	private static final int NOT_PRESENT = -1;
+
+	private final String[] captions;
+
+	private final ConcurrentMap<Long, FormIndexes> indexesByForm = new ConcurrentHashMap<>();
+
+	public CustomFieldProjection(String... captions) {
+		this.captions = captions;
+	}
+
+	public int size() {
+		return captions.length;
+	}
+
+	//
+	// The fields of a record, for reading several of its columns with a single
+	// lookup of the extension and the positions. The fields the record has no
+	// value for are the missing value of the format.
+	//
+	public Values of(BaseExtensionEntity obj, ExportFormat format) {
+		DeObject extension = obj.getExtension();
+		if (extension == null) {
+			return new Values(null, null, format);
+		}
+
+		List<Attr> attrs = extension.getAttrs();
+		return new Values(attrs, getIndexes(extension, attrs), format);
+	}
+
+	public void appendTo(BaseExtensionEntity obj, ExportFormat format, RowBuffer row) {
+		of(obj, format).appendTo(row, 0, captions.length);
+	}
+
+	private int[] getIndexes(DeObject extension, List<Attr> attrs) {
+		Long formId = extension.getFormId();
+		FormIndexes cached = formId != null ? indexesByForm.get(formId) : null;
+		if (cached != null && cached.isValid(attrs)) {
+			return cached.indexes;
+		}
+
+		FormIndexes resolved = resolve(attrs);
+		if (formId != null) {
+			indexesByForm.put(formId, resolved);
+		}
+
+		return resolved.indexes;
+	}
+
+	private FormIndexes resolve(List<Attr> attrs) {
+		int[] indexes = new int[captions.length];
+		Arrays.fill(indexes, NOT_PRESENT);
+
+		boolean allPresent = true;
+		for (int i = 0; i < captions.length; ++i) {
+			for (int j = 0; j < attrs.size(); ++j) {
+				if (captions[i].equals(attrs.get(j).getCaption())) {
+					indexes[i] = j;
+					break;
+				}
+			}
+
+			allPresent &= (indexes[i] != NOT_PRESENT);
+		}
+
+		return new FormIndexes(indexes, attrs.size(), allPresent);
+	}
+
+	public static class Values {
+		private final List<Attr> attrs;
+
+		private final int[] indexes;
+
+		private final ExportFormat format;
+
+		private Values(List<Attr> attrs, int[] indexes, ExportFormat format) {
+			this.attrs = attrs;
+			this.indexes = indexes;
+			this.format = format;
+		}
+
+		public String get(int column) {
+			int idx = attrs != null ? indexes[column] : NOT_PRESENT;
+			return idx == NOT_PRESENT ? format.missing() : format.orMissing(attrs.get(idx).getDisplayValue(""));
+		}
+
+		//
+		// Appends the values of the columns [from, to) to the row
+		//
+		public void appendTo(RowBuffer row, int from, int to) {
+			for (int i = from; i < to; ++i) {
+				row.add(get(i));
+			}
+		}
+	}
+
+	private class FormIndexes {
+		private final int[] indexes;
+
+		private final int attrCount;
+
+		private final boolean allPresent;
+
+		private FormIndexes(int[] indexes, int attrCount, boolean allPresent) {
+			this.indexes = indexes;
+			this.attrCount = attrCount;
+			this.allPresent = allPresent;
+		}
+
+		//
+		// Guards against a form whose fields were edited after its positions were
+		// cached. A caption not found before is looked up again once the form has
+		// a different number of fields, as it may have been added since.
+		//
+		private boolean isValid(List<Attr> attrs) {
+			if (!allPresent && attrs.size() != attrCount) {
+				return false;
+			}
+
+			for (int i = 0; i < indexes.length; ++i) {
+				int idx = indexes[i];
+				if (idx != NOT_PRESENT && (idx >= attrs.size() || !captions[i].equals(attrs.get(idx).getCaption()))) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+//
+// Writes the exported rows straight into the target table using multi-row
+// INSERT statements, so the rows never touch the disk. The statements apply
+// the same column conversions as the LOAD DATA queries of the file mode, on a
+// connection with the unique and foreign key checks off like theirs. The values
+// are bound as LOAD DATA reads them from the files: in the legacy format a null
+// value is the empty field the CSV has for it, in the native format it is NULL,
+// so both output modes store the same rows. A pooled
+// connection is borrowed for every batch and given back after it, so the writers
+// of a run do not hold connections while they build their rows.
+//
+public class DbRowWriter implements RowWriter {
+	private static final int MAX_PARAMS_PER_STMT = 65535;
+
+	private final ExportTable table;
+
+	private final String tableName;
+
+	private final int batchSize;
+
+	private final boolean nativeFormat;
+
+	private final List<String[]> pending;
+
+	private String batchSql;
+
+	public DbRowWriter(ExportTable table, String tableName, int batchSize, ExportFormat format) {
+		this.table = table;
+		this.tableName = tableName;
+		this.nativeFormat = format.isNative();
+		this.batchSize = Math.max(1, Math.min(batchSize, MAX_PARAMS_PER_STMT / table.getColumns().size()));
+		this.pending = new ArrayList<>(this.batchSize);
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		//
+		// the caller reuses the row array, so keep a copy until the batch is sent
+		//
+		pending.add(row.clone());
+		if (pending.size() >= batchSize) {
+			insertPending();
+		}
+	}
+
+	@Override
+	public void flush() {
+		insertPending();
+	}
+
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void insertPending() {
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = TargetDatabase.getBulkLoadConnection();
+			stmt = conn.prepareStatement(getInsertSql(pending.size()));
+
+			int numCols = table.getColumns().size(), paramIdx = 1;
+			for (String[] row : pending) {
+				for (int i = 0; i < numCols; ++i) {
+					//
+					// short rows are padded with nulls and extra values are dropped,
+					// like LOAD DATA does for the file mode
+					//
+					stmt.setString(paramIdx++, i < row.length ? getValue(row[i]) : null);
+				}
+			}
+
+			stmt.executeUpdate();
+			pending.clear();
+		} catch (SQLException e) {
+			throw new RuntimeException("Error inserting rows into " + tableName, e);
+		} finally {
+			closeQuietly(stmt);
+			release(conn);
+		}
+	}
+
+	private void release(Connection conn) {
+		if (conn == null) {
+			return;
+		}
+
+		try {
+			TargetDatabase.releaseBulkLoadConnection(conn);
+		} catch (SQLException e) {
+			throw new RuntimeException("Error releasing the connection used to write " + tableName, e);
+		}
+	}
+
+	private String getValue(String value) {
+		return (value == null && !nativeFormat) ? "" : value;
+	}
+
+	private String getInsertSql(int numRows) {
+		if (numRows == batchSize && batchSql != null) {
+			return batchSql;
+		}
+
+		List<String> values = new ArrayList<>();
+		for (ExportTable.Column column : table.getColumns()) {
+			values.add(nativeFormat ? "?" : ExportTable.getValueExpr(column, "?"));
+		}
+
+		String rowValues = "(" + StringUtils.join(values, ", ") + ")";
+		List<String> colNames = new ArrayList<>();
+		table.getColumns().forEach(column -> colNames.add(column.getName()));
+
+		StringBuilder sql = new StringBuilder("INSERT IGNORE INTO ").append(tableName)
+			.append(" (").append(StringUtils.join(colNames, ", ")).append(") VALUES ");
+		for (int i = 0; i < numRows; ++i) {
+			sql.append(i == 0 ? "" : ", ").append(rowValues);
+		}
+
+		if (numRows == batchSize) {
+			batchSql = sql.toString();
+		}
+
+		return sql.toString();
+	}
+
+	private void closeQuietly(PreparedStatement stmt) {
+		if (stmt == null) {
+			return;
+		}
+
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hibernate.Query;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrder;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrderItem;
+import com.krishagni.catissueplus.core.administrative.domain.ScheduledJobRun;
+import com.krishagni.catissueplus.core.administrative.services.ScheduledTask;
+import com.krishagni.catissueplus.core.common.PlusTransactional;
+
+//
+// Exports the distribution rows straight from the order items, paging through
+// them by id and selecting only the exported columns, so no distribution
+// protocol or order graph is loaded. The custom fields of an order are the only
+// part that needs the order itself; they are read once per order and kept for
+// the items of the following pages, which mostly belong to the same few orders.
+//
+// Only the items of executed orders are exported. A delta run, like a change
+// batch, exports all the executed items of the DPs changed since the last run,
+// as the live distribution rows of those DPs are replaced as a whole. Every run
+// stops at the orders executed before it started, leaving the later ones to the
+// next run.
+//
+@Configurable
+public class DistributionItemExport implements ScheduledTask {
+	private static final Log logger = LogFactory.getLog(DistributionItemExport.class);
+
+	public static final String TASK_NAME = "distributionItems";
+
+	private static final int MAX_CACHED_ORDERS = 1000;
+
+	private static final int MAX_IDS_PER_QUERY = 500;
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private final ExportContext ctx;
+
+	private ExportFormat format = ExportFormat.LEGACY;
+
+	private final RowBuffer row = new RowBuffer(ExportTable.DISTRIBUTION.getColumns().size());
+
+	private final Map<Long, List<String>> orderFields = new LinkedHashMap<Long, List<String>>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, List<String>> eldest) {
+			return size() > MAX_CACHED_ORDERS;
+		}
+	};
+
+	public DistributionItemExport(ExportContext ctx) {
+		this.ctx = ctx;
+	}
+
+	@Override
+	public void doJob(ScheduledJobRun jobRun) throws Exception {
+		format = ctx.getFormat();
+
+		ExportCursor cursor = new ExportCursor(ctx, TASK_NAME);
+		if (cursor.isDone()) {
+			ctx.markCompleted(TASK_NAME);
+			return;
+		}
+
+		RowWriter writer = null;
+		try {
+			writer = cursor.openWriter(ExportTable.DISTRIBUTION, DistributionProtocolExport.getDoHeader());
+
+			Date changedSince = ctx.getChangedSince(TASK_NAME);
+			List<Long> dpIds = null;
+			if (changedSince != null) {
+				dpIds = new ExportChangeTracker().getChangedDpIds(changedSince);
+			}
+
+			int count = dpIds == null || !dpIds.isEmpty() ? exportItems(cursor, writer, dpIds) : 0;
+
+			cursor.completed();
+			ctx.markCompleted(TASK_NAME);
+			logger.info("Exported " + count + " distribution order items" + (dpIds != null ? " of " + dpIds.size() + " distribution protocols changed since " + changedSince : ""));
+		} catch (Exception e) {
+			logger.error("Error while running distribution item export job", e);
+			throw e;
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	//
+	// Exports the items of all orders of the given DPs of a change batch
+	//
+	void exportProtocolItems(List<Long> dpIds) throws Exception {
+		format = ctx.getFormat();
+
+		ExportCursor cursor = new ExportCursor(ctx, TASK_NAME);
+		RowWriter writer = null;
+		try {
+			writer = cursor.openWriter(ExportTable.DISTRIBUTION, DistributionProtocolExport.getDoHeader());
+			exportItems(cursor, writer, dpIds);
+			cursor.completed();
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+	}
+
+	private int exportItems(ExportCursor cursor, RowWriter writer, List<Long> dpIds) throws Exception {
+		Date executedBefore = ctx.getStartTime();
+		Long lastId = cursor.getPosition();
+		if (lastId == null) {
+			lastId = 0L;
+		}
+
+		int pageSize = ExportConfig.getItemPageSize(), count = 0;
+		boolean endOfItems = false;
+		while (!endOfItems) {
+			ctx.ensureNotCancelled();
+			List<Object[]> items = exportItems(writer, lastId, executedBefore, dpIds, pageSize);
+			if (!items.isEmpty()) {
+				lastId = (Long) items.get(items.size() - 1)[ITEM_ID];
+			}
+
+			count += items.size();
+			cursor.pageCompleted(lastId);
+			endOfItems = (items.size() < pageSize);
+		}
+
+		return count;
+	}
+
+	@PlusTransactional
+	@SuppressWarnings("unchecked")
+	private List<Object[]> exportItems(RowWriter writer, Long lastId, Date executedBefore, List<Long> dpIds, int pageSize) throws IOException {
+		long startTime = System.nanoTime();
+		List<Object[]> items;
+		if (dpIds == null) {
+			items = getItemsQuery(GET_ITEMS_HQL, lastId, executedBefore, pageSize).list();
+		} else {
+			//
+			// The DPs are queried a chunk at a time. Each chunk returns its own next page;
+			// the page exported is the lowest item ids of all of them, so the items are
+			// still exported in id order and the cursor stays a plain item id.
+			//
+			items = new ArrayList<>();
+			for (int i = 0; i < dpIds.size(); i += MAX_IDS_PER_QUERY) {
+				items.addAll(getItemsQuery(GET_DP_ITEMS_HQL, lastId, executedBefore, pageSize)
+					.setParameterList("dpIds", dpIds.subList(i, Math.min(i + MAX_IDS_PER_QUERY, dpIds.size())))
+					.list());
+			}
+
+			if (dpIds.size() > MAX_IDS_PER_QUERY) {
+				items.sort(Comparator.comparing(item -> (Long) item[ITEM_ID]));
+				if (items.size() > pageSize) {
+					items = new ArrayList<>(items.subList(0, pageSize));
+				}
+			}
+		}
+
+		ctx.getMetrics().recordLatency("getDistributionItems", System.nanoTime() - startTime);
+
+		Map<Long, List<String>> pageOrderFields = getOrderFields(items);
+		for (Object[] item : items) {
+			writer.writeNext(getItemRow(item, pageOrderFields.get((Long) item[ORDER_ID])));
+		}
+
+		sessionFactory.getCurrentSession().clear();
+		return items;
+	}
+
+	private Query getItemsQuery(String hql, Long lastId, Date executedBefore, int pageSize) {
+		return sessionFactory.getCurrentSession()
+			.createQuery(hql)
+			.setLong("lastId", lastId)
+			.setTimestamp("executedBefore", executedBefore)
+			.setMaxResults(pageSize);
+	}
+
+	private String[] getItemRow(Object[] item, List<String> itemOrderFields) {
+		row.clear();
+		row.add("item-" + item[ITEM_ID]);
+		row.add(null);
+
+		String dpShortTitle = (String) item[DP_SHORT_TITLE];
+		row.add(dpShortTitle);
+		row.add(format.format((Date) item[EXECUTION_DATE]));
+		row.add(dpShortTitle);
+		row.add(item[COST] != null ? ((BigDecimal) item[COST]).toString() : format.missing());
+		row.add((String) item[SPECIMEN_LABEL]);
+		for (String field : itemOrderFields) {
+			row.add(field);
+		}
+
+		return row.toRow();
+	}
+
+	//
+	// Custom fields of the orders of a page. A page can span more orders than the
+	// cache holds, so the page keeps its own map; the cache only carries them over
+	// to the following pages.
+	//
+	@SuppressWarnings("unchecked")
+	private Map<Long, List<String>> getOrderFields(List<Object[]> items) {
+		Map<Long, List<String>> result = new HashMap<>();
+		Set<Long> orderIds = new LinkedHashSet<>();
+		for (Object[] item : items) {
+			Long orderId = (Long) item[ORDER_ID];
+			if (result.containsKey(orderId) || orderIds.contains(orderId)) {
+				continue;
+			}
+
+			List<String> fields = orderFields.get(orderId);
+			if (fields != null) {
+				result.put(orderId, fields);
+			} else {
+				orderIds.add(orderId);
+			}
+		}
+
+		if (orderIds.isEmpty()) {
+			return result;
+		}
+
+		List<Long> ids = new ArrayList<>(orderIds);
+		for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+			List<DistributionOrder> orders = sessionFactory.getCurrentSession()
+				.createQuery(GET_ORDERS_HQL)
+				.setParameterList("orderIds", ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size())))
+				.list();
+			for (DistributionOrder order : orders) {
+				List<String> fields = DistributionProtocolExport.getCustomFieldValues(order, format);
+				result.put(order.getId(), fields);
+				orderFields.put(order.getId(), fields);
+			}
+		}
+
+		return result;
+	}
+
+	//
+	// Positions of the selected columns
+	//
+	private static final int ITEM_ID = 0;
+
+	private static final int ORDER_ID = 1;
+
+	private static final int DP_SHORT_TITLE = 2;
+
+	private static final int EXECUTION_DATE = 3;
+
+	private static final int COST = 4;
+
+	private static final int SPECIMEN_LABEL = 5;
+
+	private static final String SELECT_ITEMS =
+		"select i.id, o.id, dp.shortTitle, o.executionDate, i.cost, s.label " +
+		"from " + DistributionOrderItem.class.getName() + " i " +
+		"  join i.order o " +
+		"  join o.distributionProtocol dp " +
+		"  join i.specimen s " +
+		"where i.id > :lastId and dp.activityStatus != 'Disabled' ";
+
+	private static final String GET_ITEMS_HQL =
+		SELECT_ITEMS +
+		"  and o.executionDate < :executedBefore " +
+		"order by i.id";
+
+	private static final String GET_DP_ITEMS_HQL =
+		SELECT_ITEMS +
+		"  and dp.id in (:dpIds) and o.executionDate < :executedBefore " +
+		"order by i.id";
+
+	private static final String GET_ORDERS_HQL =
+		"select o from " + DistributionOrder.class.getName() + " o where o.id in (:orderIds)";
+}
@@ -1,20 +1,19 @@
 package com.krishagni.openspecimen.msk.ppbc;
 
-import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 
@@ -28,43 +27,180 @@ import com.krishagni.catissueplus.core.administrative.services.ScheduledTask;
 import com.krishagni.catissueplus.core.biospecimen.domain.BaseExtensionEntity;
 import com.krishagni.catissueplus.core.biospecimen.repository.DaoFactory;
 import com.krishagni.catissueplus.core.common.PlusTransactional;
-import com.krishagni.catissueplus.core.common.util.ConfigUtil;
-import com.krishagni.catissueplus.core.common.util.CsvFileWriter;
+import com.krishagni.catissueplus.core.common.util.Status;
 import com.krishagni.catissueplus.core.de.domain.DeObject.Attr;
 
 @Configurable
 public class DistributionProtocolExport implements ScheduledTask {
 	private static final Log logger = LogFactory.getLog(DistributionProtocolExport.class);
 
+	public static final String TASK_NAME = "distributionProtocols";
+
 	@Autowired
 	private DaoFactory daoFactory;
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private final ExportContext ctx;
+
+	private PersistenceContextGuard contextGuard;
+
+	private ExportFormat format = ExportFormat.LEGACY;
+
+	//
+	// false when the distribution rows are exported by DistributionItemExport
+	//
+	private boolean exportOrders = true;
+
+	private final CustomFieldProjection dpFields = new CustomFieldProjection(
+		"Request Date",
+		"ILAB No",
+		"Finalize Flag",
+		"Cost Center",
+		"Fund ID",
+		"MTA Flag",
+		"Distribution Option Desc",
+		"HBC ID",
+		"HBC Committee Approval Date",
+		"Minimum Unit",
+		"MTA Approval Date",
+		"Pickup Arrangement Description",
+		"Prospect Flag",
+		"Type Description",
+		"Restrospect Flag",
+		"Specimen Collection Method",
+		"Comments",
+		"Contact Name",
+		"Specimen Usage Description",
+		"Waiver Number",
+		"Minimum Size",
+		"Disease Status",
+		"Special Handling"
+	);
+
+	public DistributionProtocolExport(ExportContext ctx) {
+		this.ctx = ctx;
+	}
 	
-	public void doJob(ScheduledJobRun jobRun) {
+	public void doJob(ScheduledJobRun jobRun) throws Exception {
+		init();
 		export();
 	}
+
+	//
+	// Exports the rows of the given DPs of a change batch
+	//
+	void exportProtocols(List<Long> dpIds) throws Exception {
+		init();
+
+		IdRange range = IdRange.all().get(0);
+		range.setIds(dpIds);
+		exportRange(range, -1);
+	}
+
+	private void init() {
+		contextGuard = new PersistenceContextGuard(ExportConfig.getMaxResidentEntities());
+		format = ctx.getFormat();
+		exportOrders = !ExportConfig.isDirectItemExportEnabled();
+	}
 	
-	private void export() {
-		CsvFileWriter dpFileWriter = null, dPRFileWriter = null, doFileWriter = null;
-		
+	private void export() throws Exception {
 		try {
-			dpFileWriter = getDpCSVWriter();
-			dPRFileWriter = getDpRCSVWriter();
-			doFileWriter = getDoCSVWriter();
-			
-			dpFileWriter.writeNext(getDpHeader());
-			dPRFileWriter.writeNext(getDpRHeader());
-			doFileWriter.writeNext(getDoHeader());
-			
-			boolean endOfDPs = false;
-			int startAt = 0, maxRecs = 10;
-		    
-			while (!endOfDPs) {
-      			int exportedRecsCount = exportDpData(dpFileWriter, dPRFileWriter, doFileWriter, startAt, maxRecs);
-      			startAt += exportedRecsCount;
-      			endOfDPs = (exportedRecsCount < maxRecs);
-    		}
+			int workers = ExportConfig.getDpExportWorkers();
+			Date changedSince = ctx.getChangedSince(TASK_NAME);
+
+			List<Long> changedIds = null;
+			if (changedSince != null) {
+				changedIds = new ExportChangeTracker().getChangedDpIds(changedSince);
+				logger.info("Exporting " + changedIds.size() + " distribution protocols changed since " + changedSince);
+			}
+
+			List<IdRange> ranges = IdRange.getRanges(ctx, RANGES_KEY, changedIds, workers, this::getDpIdBounds);
+			if (ranges.size() == 1) {
+				exportRange(ranges.get(0), -1);
+			} else {
+				exportRanges(ranges, workers);
+			}
+
+			ctx.markCompleted(TASK_NAME);
   		} catch (Exception e) {
   			logger.error("Error while running distribution protocol export job", e);
+  			throw e;
+		}
+	}
+
+	//
+	// Each range of DP ids is exported by its own worker into its own shard files,
+	// which are concatenated in range order once all workers are done
+	//
+	private void exportRanges(List<IdRange> ranges, int workers) throws Exception {
+		List<Callable<Void>> jobs = new ArrayList<>();
+		for (int i = 0; i < ranges.size(); ++i) {
+			int part = i;
+			jobs.add(() -> {
+				exportRange(ranges.get(part), part);
+				return null;
+			});
+		}
+
+		new ParallelTasks("msk-ppbc-dp-export", workers, ctx).run(jobs);
+		if (!ctx.hasTableFiles()) {
+			return;
+		}
+
+		ExportCursor merge = new ExportCursor(ctx, TASK_NAME + ".merge");
+		if (!merge.isDone()) {
+			ctx.getMetrics().time("merge distribution protocol shards", () -> {
+				ctx.mergeShards(ExportTable.SPECIMEN_REQUEST, getDpHeader(), ranges.size());
+				ctx.mergeShards(ExportTable.SPECIMEN_REQUEST_DETAILS, getDpRHeader(), ranges.size());
+				if (exportOrders) {
+					ctx.mergeShards(ExportTable.DISTRIBUTION, getDoHeader(), ranges.size());
+				}
+			});
+			merge.completed();
+		}
+
+		ctx.deleteShards(ExportTable.SPECIMEN_REQUEST, ranges.size());
+		ctx.deleteShards(ExportTable.SPECIMEN_REQUEST_DETAILS, ranges.size());
+		if (exportOrders) {
+			ctx.deleteShards(ExportTable.DISTRIBUTION, ranges.size());
+		}
+	}
+
+	//
+	// part is the shard number of the range, or -1 when the range is exported
+	// straight into the table files. The checkpointed position is the last
+	// exported DP id.
+	//
+	private void exportRange(IdRange range, int part) throws Exception {
+		ExportCursor cursor = new ExportCursor(ctx, part < 0 ? TASK_NAME : TASK_NAME + ".part-" + part);
+		if (cursor.isDone()) {
+			return;
+		}
+
+		RowWriter dpFileWriter = null, dPRFileWriter = null, doFileWriter = null;
+		RowBuffers rows = new RowBuffers();
+		try {
+			if (part < 0) {
+				dpFileWriter = cursor.openWriter(ExportTable.SPECIMEN_REQUEST, getDpHeader());
+				dPRFileWriter = cursor.openWriter(ExportTable.SPECIMEN_REQUEST_DETAILS, getDpRHeader());
+				doFileWriter = exportOrders ? cursor.openWriter(ExportTable.DISTRIBUTION, getDoHeader()) : null;
+			} else {
+				dpFileWriter = cursor.openWriter(ExportTable.SPECIMEN_REQUEST, part);
+				dPRFileWriter = cursor.openWriter(ExportTable.SPECIMEN_REQUEST_DETAILS, part);
+				doFileWriter = exportOrders ? cursor.openWriter(ExportTable.DISTRIBUTION, part) : null;
+			}
+
+			Long lastId = cursor.getPosition();
+			Long firstId = (lastId != null) ? lastId + 1 : range.getFirstId();
+			if (range.getIds() != null) {
+				exportChangedDps(cursor, rows, dpFileWriter, dPRFileWriter, doFileWriter, range.getIdsFrom(firstId));
+			} else {
+				exportAllDps(cursor, rows, dpFileWriter, dPRFileWriter, doFileWriter, firstId, range.getLastId());
+			}
+
+			cursor.completed();
 		} finally {
 			IOUtils.closeQuietly(dPRFileWriter);
 			IOUtils.closeQuietly(dpFileWriter);
@@ -72,83 +208,141 @@ public class DistributionProtocolExport implements ScheduledTask {
 		}
 	}
 
+	//
+	// Pages through the DPs by id, each page starting after the last DP of the
+	// previous one, so no page rescans the rows before it. The DAO leaves out the
+	// disabled DPs, which are the deleted ones; the delta pages and the id bounds
+	// leave them out too, so that all runs export the same DPs.
+	//
+	private void exportAllDps(ExportCursor cursor, RowBuffers rows, RowWriter dpFileWriter, RowWriter dPRFileWriter, RowWriter doFileWriter, Long firstId, Long rangeEndId) throws Exception {
+		boolean endOfDPs = false;
+		Long lastId = firstId - 1;
+		AdaptivePageSize pageSize = AdaptivePageSize.forDps();
+
+		while (!endOfDPs) {
+			ctx.ensureNotCancelled();
+			int maxRecs = pageSize.get();
+			List<DistributionProtocol> dPs = exportDpData(rows, dpFileWriter, dPRFileWriter, doFileWriter, lastId, rangeEndId, pageSize);
+
+			if (!dPs.isEmpty()) {
+				lastId = dPs.get(dPs.size() - 1).getId();
+			}
+
+			cursor.pageCompleted(lastId);
+			endOfDPs = (dPs.size() < maxRecs) || (rangeEndId != null && lastId >= rangeEndId);
+		}
+	}
+
+	private void exportChangedDps(ExportCursor cursor, RowBuffers rows, RowWriter dpFileWriter, RowWriter dPRFileWriter, RowWriter doFileWriter, List<Long> dpIds) throws Exception {
+		AdaptivePageSize pageSize = AdaptivePageSize.forDps();
+		for (int startAt = 0; startAt < dpIds.size(); ) {
+			ctx.ensureNotCancelled();
+			List<Long> pageIds = dpIds.subList(startAt, Math.min(startAt + pageSize.get(), dpIds.size()));
+			exportDpData(rows, dpFileWriter, dPRFileWriter, doFileWriter, pageIds, pageSize);
+
+			cursor.pageCompleted(pageIds.get(pageIds.size() - 1));
+			startAt += pageIds.size();
+		}
+	}
+
 	@PlusTransactional
-	private int exportDpData(CsvFileWriter dpFileWriter, CsvFileWriter dPRFileWriter, CsvFileWriter doFileWriter, int startAt, int maxRecs) throws IOException {
-		DpListCriteria listCrit = new DpListCriteria().startAt(startAt).maxResults(maxRecs);
+	private List<DistributionProtocol> exportDpData(RowBuffers rows, RowWriter dpFileWriter, RowWriter dPRFileWriter, RowWriter doFileWriter, Long lastId, Long rangeEndId, AdaptivePageSize pageSize) throws IOException {
+		DpListCriteria listCrit = new DpListCriteria().lastId(lastId).maxResults(pageSize.get());
+		long startTime = System.nanoTime();
 		List<DistributionProtocol> dPs = daoFactory.getDistributionProtocolDao().getDistributionProtocols(listCrit);
-		
-		exportDp(dpFileWriter, dPs);
-		dPs.forEach(dp -> exportDpr(dPRFileWriter, dp.getRequirements()));
-		dPs.forEach(dp -> exportDOs(doFileWriter, dp.getDistributionOrders()));
-		
-		dpFileWriter.flush();
-		dPRFileWriter.flush();
-		doFileWriter.flush();
+		long fetchNanos = System.nanoTime() - startTime;
+		ctx.getMetrics().recordLatency("getDistributionProtocols", fetchNanos);
+		pageSize.pageCompleted(dPs.size(), fetchNanos);
+
+		List<DistributionProtocol> rangeDps = dPs.stream()
+			.filter(dp -> rangeEndId == null || dp.getId() <= rangeEndId)
+			.collect(Collectors.toList());
+		exportDps(rows, dpFileWriter, dPRFileWriter, doFileWriter, rangeDps, pageSize);
+		return dPs;
+	}
+
+	@PlusTransactional
+	private int exportDpData(RowBuffers rows, RowWriter dpFileWriter, RowWriter dPRFileWriter, RowWriter doFileWriter, List<Long> dpIds, AdaptivePageSize pageSize) throws IOException {
+		long startTime = System.nanoTime();
+		List<DistributionProtocol> dPs = daoFactory.getDistributionProtocolDao().getByIds(dpIds).stream()
+			.filter(dp -> !Status.ACTIVITY_STATUS_DISABLED.getStatus().equals(dp.getActivityStatus()))
+			.sorted(Comparator.comparing(DistributionProtocol::getId))
+			.collect(Collectors.toList());
+		long fetchNanos = System.nanoTime() - startTime;
+		ctx.getMetrics().recordLatency("getDpsByIds", fetchNanos);
+		pageSize.pageCompleted(dpIds.size(), fetchNanos);
+		return exportDps(rows, dpFileWriter, dPRFileWriter, doFileWriter, dPs, pageSize);
+	}
+
+	@PlusTransactional
+	private Object[] getDpIdBounds() {
+		return (Object[]) sessionFactory.getCurrentSession()
+			.createQuery(GET_DP_ID_BOUNDS_HQL)
+			.uniqueResult();
+	}
+
+	private int exportDps(RowBuffers rows, RowWriter dpFileWriter, RowWriter dPRFileWriter, RowWriter doFileWriter, List<DistributionProtocol> dPs, AdaptivePageSize pageSize) throws IOException {
+		long startTime = System.nanoTime();
+		int evictedUpTo = 0;
+		for (int i = 0; i < dPs.size(); ++i) {
+			DistributionProtocol dp = dPs.get(i);
+			dpFileWriter.writeNext(getDpRow(dp, rows.dp));
+			exportDpr(dPRFileWriter, dp.getRequirements(), rows.dpr);
+			if (doFileWriter != null) {
+				exportDOs(doFileWriter, dp.getDistributionOrders(), rows.distribution);
+			}
+
+			if (contextGuard.isOverCap()) {
+				while (evictedUpTo <= i) {
+					contextGuard.evict(dPs.get(evictedUpTo++));
+				}
+			}
+		}
+
+		pageSize.recordGraphSize(dPs.size() - evictedUpTo, contextGuard.getEntityCount());
+		contextGuard.clear();
+		ctx.getMetrics().recordLatency("processDpPage", System.nanoTime() - startTime);
 
 		return dPs.size();
 	}
 	
-	private List<String> getCustomFieldValues(BaseExtensionEntity obj) {
+	static List<String> getCustomFieldValues(BaseExtensionEntity obj, ExportFormat format) {
+		if (obj.getExtension() == null) {
+			return new ArrayList<>();
+		}
+
 		return obj.getExtension()
 			.getAttrs().stream()
-			.map(Attr::getDisplayValue)
+			.map(attr -> format.orMissing(attr.getDisplayValue()))
 			.collect(Collectors.toList());
 	}
-	
-	private Map<String, String> getCustomFieldValueMap(BaseExtensionEntity obj) {
-    	return obj.getExtension().getAttrs().stream().collect(
-    			Collectors.toMap(
-    				attr -> attr.getCaption(),
-    				attr -> attr.getDisplayValue(""),
-    				(v1, v2) -> {throw new IllegalStateException("Duplicate key");},
-    				LinkedHashMap::new)
-    			);
-    }
-	
-	private static List<String> splitToMultiple(String inputString, int maxSize, String delimiter) {
-		if (inputString == null) {
-			inputString = "";
+
+	private static void addCustomFieldValues(BaseExtensionEntity obj, ExportFormat format, RowBuffer row) {
+		if (obj.getExtension() == null) {
+			return;
+		}
+
+		for (Attr attr : obj.getExtension().getAttrs()) {
+			row.add(format.orMissing(attr.getDisplayValue()));
 		}
-		
-        String[] maxSizeBufferArray = new String[maxSize];
-        String[] splittedArray = inputString.split(delimiter);
-        List<String> multipleAttrs = new ArrayList<>();
-        int i = 0;
-        
-        while (i < maxSize) {
-            if (i < splittedArray.length) {
-                maxSizeBufferArray[i] = splittedArray[i];
-            } else {
-                maxSizeBufferArray[i] = "";
-            }
-            i++;
-        }
-        
-        for (String site : maxSizeBufferArray) {
-            multipleAttrs.add(site);
-        }
-        
-        return multipleAttrs;
 	}
 	
+	private static final String RANGES_KEY = TASK_NAME + ".ranges";
+
+	private static final String GET_DP_ID_BOUNDS_HQL =
+		"select min(dp.id), max(dp.id) from " + DistributionProtocol.class.getName() + " dp " +
+		"where dp.activityStatus != 'Disabled'";
+
 	///////////////////////
 	//
 	// DP export
 	//
 	///////////////////////
 
-	private void exportDp(CsvFileWriter dpFileWriter, List<DistributionProtocol> dPs) {
-		dPs.forEach(dp -> dpFileWriter.writeNext(getDpRow(dp)));
-	}
-
-	private CsvFileWriter getDpCSVWriter() {
-		String exportFolder = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-		File outputFile = new File(ConfigUtil.getInstance().getDataDir() + File.separatorChar + exportFolder, "Specimen_Request" + ".csv");
-		return CsvFileWriter.createCsvFileWriter(outputFile);
-	}
-
 	private String[] getDpHeader() {
 		return new String[]{
+			"ROW_KEY",
+			"ROW_HASH",
 			"TBR_REQUEST_TITLE",			// Title
 			"TBR_SOURCE_REQUEST",			// Shorttitle
 			"TBR_INSTITUTE_DESC",			// ReceivingInstitute
@@ -181,45 +375,22 @@ public class DistributionProtocolExport implements ScheduledTask {
 		};
 	}
 
-	private String[] getDpRow(DistributionProtocol dp) {
-		List<String> row = new ArrayList<>();
-		Map<String, String> customFieldValueMap = getCustomFieldValueMap(dp);
-		
+	private String[] getDpRow(DistributionProtocol dp, RowBuffer row) {
+		row.clear();
+		row.add("dp-" + dp.getId());
+		row.add(null);
 		row.add(dp.getTitle());
 		row.add(dp.getShortTitle());
 		row.add(dp.getInstitute().getName());
 		row.add(getDpReceivingSiteName(dp));
 		row.add(dp.getPrincipalInvestigator().getFirstName() + " " + dp.getPrincipalInvestigator().getLastName());
 		
-		row.add((String) (customFieldValueMap.getOrDefault("Request Date", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("ILAB No", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("Finalize Flag", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("Cost Center", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("Fund ID", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("MTA Flag", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("Distribution Option Desc", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("HBC ID", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("HBC Committee Approval Date", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("Minimum Unit", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("MTA Approval Date", "")));
-		row.add((String) (customFieldValueMap.getOrDefault("Pickup Arrangement Description","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Prospect Flag","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Type Description","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Restrospect Flag","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Specimen Collection Method","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Comments","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Contact Name","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Specimen Usage Description","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Waiver Number","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Minimum Size","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Disease Status","")));
-		row.add((String) (customFieldValueMap.getOrDefault("Special Handling","")));
-		
-		return row.toArray(new String[row.size()]);
+		dpFields.appendTo(dp, format, row);
+		return row.toRow();
 	}
 	
 	private String getDpReceivingSiteName(DistributionProtocol dp) {
-		return dp.getDefReceivingSite() != null ? dp.getDefReceivingSite().getName() : "";
+		return dp.getDefReceivingSite() != null ? dp.getDefReceivingSite().getName() : format.missing();
 	}
 
 	///////////////////////
@@ -228,67 +399,73 @@ public class DistributionProtocolExport implements ScheduledTask {
 	//
 	///////////////////////
 	
-	private void exportDpr(CsvFileWriter dpRFileWriter, Set<DpRequirement> DpRequirements) {
+	private void exportDpr(RowWriter dpRFileWriter, Set<DpRequirement> DpRequirements, RowBuffer row) {
 		if (!DpRequirements.isEmpty()) {
-			DpRequirements.forEach(dpR -> processDpR(dpRFileWriter, dpR));
+			DpRequirements.forEach(dpR -> processDpR(dpRFileWriter, dpR, row));
 		}
 	}
 
 	@SuppressWarnings("unchecked")
-	private void processDpR(CsvFileWriter dpRFileWriter, DpRequirement dpR) {
+	private void processDpR(RowWriter dpRFileWriter, DpRequirement dpR, RowBuffer row) {
 		List<Attr> extensions = dpR.getExtension().getAttrs();
 		
 		if (extensions.isEmpty()) {
-			dpRFileWriter.writeNext(getDpRRow(dpR, new ArrayList<String>()));
+			addDpRColumns(dpR, 0, row);
+			dpRFileWriter.writeNext(row.toRow());
 		}
 		
+		//
+		// a row for every custom field record, numbered across the records of the requirement
+		//
+		int rowNo = 0;
 		for (Attr extension : extensions) {
 			List<List<Attr>> customFields = (List<List<Attr>>) extension.getValue();
-			customFields.forEach(customField -> dpRFileWriter.writeNext(getDpRRow(dpR, getDpRCustomFieldValues(customField))));
+			for (List<Attr> customField : customFields) {
+				addDpRColumns(dpR, rowNo++, row);
+				addDpRCustomFieldValues(customField, row);
+				dpRFileWriter.writeNext(row.toRow());
+			}
 		}
 	}
 	
-	private String[] getDpRRow(DpRequirement dpr, List<String> dpRCustomFieldValues) {
-		List<String> row = new ArrayList<String>();
-		
+	//
+	// Columns of the requirement itself, which start every row of its custom field records
+	//
+	private void addDpRColumns(DpRequirement dpr, int rowNo, RowBuffer row) {
+		row.clear();
+		row.add("requirement-" + dpr.getId() + "-" + rowNo);
+		row.add(null);
 		row.add(dpr.getSpecimenType());
-		row.addAll(splitToMultiple(dpr.getAnatomicSite(), 3, "/")); 
+		row.addSplit(dpr.getAnatomicSite(), '/', 3, format);
 		row.add(getPathologyStatus(dpr));
 		row.add(dpr.getQuantity().toString());
 		row.add(getDprCost(dpr));
 		row.add(dpr.getDistributionProtocol().getShortTitle());
-		row.addAll(dpRCustomFieldValues);
-		
-		return row.toArray(new String[row.size()]);
 	}
 
 	private String getPathologyStatus(DpRequirement dpr) {
-		return dpr.getPathologyStatuses().isEmpty() ? "" : dpr.getPathologyStatuses().iterator().next();
+		return dpr.getPathologyStatuses().isEmpty() ? format.missing() : dpr.getPathologyStatuses().iterator().next();
 	}
 
 	private String getDprCost(DpRequirement dpr) {
-		return dpr.getCost() != null ? dpr.getCost().toString() : "";
+		return dpr.getCost() != null ? dpr.getCost().toString() : format.missing();
 	}
 
-	private List<String> getDpRCustomFieldValues(List<Attr> customField) {
-		List<String> customFieldValues = new ArrayList<>();
-		
+	//
+	// The first field of a record is the histology, split into its four levels when
+	// present; otherwise three missing levels precede all the fields of the record
+	//
+	private void addDpRCustomFieldValues(List<Attr> customField, RowBuffer row) {
+		int from = 0;
 		if (!histologyValuePresent(customField)) {
-			customFieldValues.addAll(0, splitToMultiple("", 3, "/"));
-			customFieldValues.addAll(customField.stream()
-					.map(Attr::getDisplayValue)
-					.collect(Collectors.toList()));
-			
-			return customFieldValues;
+			row.addSplit(null, '/', 3, format);
 		} else {
-			customFieldValues.addAll(customField.stream()
-					.map(Attr::getDisplayValue)
-					.collect(Collectors.toList()));
-			String histology = customFieldValues.get(0);
-			customFieldValues.remove(0);
-			customFieldValues.addAll(0, splitToMultiple(histology, 4, "/"));
-			
-			return customFieldValues;
+			row.addSplit(format.orMissing(customField.get(0).getDisplayValue()), '/', 4, format);
+			from = 1;
+		}
+
+		for (int i = from; i < customField.size(); ++i) {
+			row.add(format.orMissing(customField.get(i).getDisplayValue()));
 		}
 	}
 
@@ -302,14 +479,10 @@ public class DistributionProtocolExport implements ScheduledTask {
 		return false;
 	}
 
-	private CsvFileWriter getDpRCSVWriter() {
-		String exportFolder = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-		File outputFile = new File(ConfigUtil.getInstance().getDataDir() + File.separatorChar + exportFolder, "Specimen_Request_Details" + ".csv");
-		return CsvFileWriter.createCsvFileWriter(outputFile);
-	}
-
 	private String[] getDpRHeader() {
 		return new String[] {
+				"ROW_KEY",
+				"ROW_HASH",
 				"TBRD_SPECIMEN_TYPE_CD",
 				"TBRD_SITE_DESC",
 				"TBRD_SUB_SITE_DESC",
@@ -334,14 +507,10 @@ public class DistributionProtocolExport implements ScheduledTask {
 	//
 	///////////////////////
 	
-	private CsvFileWriter getDoCSVWriter() {
-		String exportFolder = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-		File outputFile = new File(ConfigUtil.getInstance().getDataDir() + File.separatorChar + exportFolder, "Distribution" + ".csv");
-		return CsvFileWriter.createCsvFileWriter(outputFile);
-	}
-	
-	private String[] getDoHeader() {
+	static String[] getDoHeader() {
 		return new String[] {
+				"ROW_KEY",
+				"ROW_HASH",
 				"TBDS_SPECIMEN_REQUEST_ID",
 				"TBDS_DISTRIBUTION_DT",
 				"TBDS_SOURCE_REQUEST",
@@ -351,32 +520,46 @@ public class DistributionProtocolExport implements ScheduledTask {
 		};
 	}
 
-	private void exportDOs(CsvFileWriter doFileWriter, Set<DistributionOrder> distributionOrders) {
-		if (!distributionOrders.isEmpty()) {
-			distributionOrders.forEach(distributionOrder -> processDistributionOrders(doFileWriter, distributionOrder.getOrderItems()));
-		}
+	//
+	// Orders not executed yet are left out, as the item export leaves them out
+	//
+	private void exportDOs(RowWriter doFileWriter, Set<DistributionOrder> distributionOrders, RowBuffer row) {
+		distributionOrders.stream()
+			.filter(distributionOrder -> distributionOrder.getExecutionDate() != null)
+			.forEach(distributionOrder -> processDistributionOrders(doFileWriter, distributionOrder.getOrderItems(), row));
 	}
 	
-	private void processDistributionOrders(CsvFileWriter doFileWriter, Set<DistributionOrderItem> orderItems) {
+	private void processDistributionOrders(RowWriter doFileWriter, Set<DistributionOrderItem> orderItems, RowBuffer row) {
 		if (!orderItems.isEmpty()) {
-			orderItems.forEach(item -> doFileWriter.writeNext(getDoRow(item)));
+			orderItems.forEach(item -> doFileWriter.writeNext(getDoRow(item, row)));
 		}
 	}
 
-	private String[] getDoRow(DistributionOrderItem item) {
-		List<String> row = new ArrayList<String>();
-		
+	private String[] getDoRow(DistributionOrderItem item, RowBuffer row) {
+		row.clear();
+		row.add("item-" + item.getId());
+		row.add(null);
 		row.add(item.getOrder().getDistributionProtocol().getShortTitle());
-		row.add(item.getOrder().getExecutionDate().toString());
+		row.add(format.format(item.getOrder().getExecutionDate()));
 		row.add(item.getOrder().getDistributionProtocol().getShortTitle());
 		row.add(getItemCost(item));
 		row.add(item.getSpecimen().getLabel());
-		row.addAll(getCustomFieldValues(item.getOrder()));
-		
-		return row.toArray(new String[row.size()]);
+		addCustomFieldValues(item.getOrder(), format, row);
+		return row.toRow();
 	}
 	
 	private String getItemCost(DistributionOrderItem item) {
-		return item.getCost() != null ? item.getCost().toString() : "";
+		return item.getCost() != null ? item.getCost().toString() : format.missing();
+	}
+
+	//
+	// Column buffers of the rows of a range, reused for every row its worker writes
+	//
+	private static class RowBuffers {
+		private final RowBuffer dp = new RowBuffer(ExportTable.SPECIMEN_REQUEST.getColumns().size());
+
+		private final RowBuffer dpr = new RowBuffer(ExportTable.SPECIMEN_REQUEST_DETAILS.getColumns().size());
+
+		private final RowBuffer distribution = new RowBuffer(ExportTable.DISTRIBUTION.getColumns().size());
 	}
-}	
+}
@@ -0,0 +1,193 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrder;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionProtocol;
+import com.krishagni.catissueplus.core.administrative.domain.DpRequirement;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
+import com.krishagni.catissueplus.core.biospecimen.domain.Participant;
+import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
+import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
+import com.krishagni.catissueplus.core.common.PlusTransactional;
+
+//
+// Finds the root records (CPRs and DPs) whose exported rows are affected
+// by entities modified after a given point in time. The modification times
+// come from the audit revision records OpenSpecimen keeps for every entity.
+//
+@Configurable
+public class ExportChangeTracker {
+	private static final int MAX_IDS_PER_QUERY = 500;
+
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	@PlusTransactional
+	public List<Long> getChangedCprIds(Date since) {
+		return getCprIds(entity -> getModifiedIds(entity, since));
+	}
+
+	@PlusTransactional
+	public List<Long> getChangedDpIds(Date since) {
+		return getDpIds(entity -> getModifiedIds(entity, since));
+	}
+
+	//
+	// Root records affected by the changed entities of a change batch, given
+	// as the ids of every changed entity class
+	//
+	@PlusTransactional
+	public List<Long> getCprIds(Map<String, List<Long>> changedIds) {
+		return getCprIds(entity -> changedIds.getOrDefault(entity.getName(), Collections.emptyList()));
+	}
+
+	@PlusTransactional
+	public List<Long> getDpIds(Map<String, List<Long>> changedIds) {
+		return getDpIds(entity -> changedIds.getOrDefault(entity.getName(), Collections.emptyList()));
+	}
+
+	//
+	// The given registrations and the other registrations of their participants
+	//
+	@PlusTransactional
+	public List<Long> getParticipantCprIds(List<Long> cprIds) {
+		return new ArrayList<>(new TreeSet<>(mapIds(GET_PARTICIPANT_CPR_IDS, cprIds)));
+	}
+
+	//
+	// Those of the given registrations that are disabled or no longer exist
+	//
+	@PlusTransactional
+	public List<Long> getRemovedCprIds(List<Long> cprIds) {
+		return getRemovedIds(GET_ACTIVE_CPR_IDS, cprIds);
+	}
+
+	@PlusTransactional
+	public List<Long> getRemovedDpIds(List<Long> dpIds) {
+		return getRemovedIds(GET_ACTIVE_DP_IDS, dpIds);
+	}
+
+	//
+	// Keys of the accession and details rows exported for the given registrations:
+	// those of the registrations, of their visits and of their specimens
+	//
+	@PlusTransactional
+	public List<String> getCprRowKeys(List<Long> cprIds) {
+		List<String> keys = new ArrayList<>();
+		cprIds.forEach(cprId -> keys.add("cpr-" + cprId));
+		mapIds(GET_VISIT_IDS_BY_CPRS, cprIds).forEach(visitId -> keys.add("visit-" + visitId));
+		mapIds(GET_SPECIMEN_IDS_BY_CPRS, cprIds).forEach(specimenId -> keys.add("specimen-" + specimenId));
+		return keys;
+	}
+
+	private List<Long> getCprIds(Function<Class<?>, List<Long>> changedIds) {
+		SortedSet<Long> cprIds = new TreeSet<>();
+		cprIds.addAll(changedIds.apply(CollectionProtocolRegistration.class));
+		cprIds.addAll(mapIds(GET_CPR_IDS_BY_PARTICIPANTS, changedIds.apply(Participant.class)));
+		cprIds.addAll(mapIds(GET_CPR_IDS_BY_VISITS, changedIds.apply(Visit.class)));
+		cprIds.addAll(mapIds(GET_CPR_IDS_BY_SPECIMENS, changedIds.apply(Specimen.class)));
+		return new ArrayList<>(cprIds);
+	}
+
+	private List<Long> getDpIds(Function<Class<?>, List<Long>> changedIds) {
+		SortedSet<Long> dpIds = new TreeSet<>();
+		dpIds.addAll(changedIds.apply(DistributionProtocol.class));
+		dpIds.addAll(mapIds(GET_DP_IDS_BY_REQUIREMENTS, changedIds.apply(DpRequirement.class)));
+		dpIds.addAll(mapIds(GET_DP_IDS_BY_ORDERS, changedIds.apply(DistributionOrder.class)));
+		return new ArrayList<>(dpIds);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Long> getModifiedIds(Class<?> entity, Date since) {
+		List<Number> rows = sessionFactory.getCurrentSession()
+			.createSQLQuery(GET_MODIFIED_ENTITY_IDS_SQL)
+			.setString("entityName", entity.getName())
+			.setTimestamp("since", since)
+			.list();
+
+		List<Long> ids = new ArrayList<>(rows.size());
+		rows.forEach(id -> ids.add(id.longValue()));
+		return ids;
+	}
+
+	private List<Long> getRemovedIds(String hql, List<Long> ids) {
+		Set<Long> activeIds = new HashSet<>(mapIds(hql, ids));
+		List<Long> result = new ArrayList<>();
+		for (Long id : ids) {
+			if (!activeIds.contains(id)) {
+				result.add(id);
+			}
+		}
+
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Long> mapIds(String hql, List<Long> ids) {
+		List<Long> result = new ArrayList<>();
+		for (int i = 0; i < ids.size(); i += MAX_IDS_PER_QUERY) {
+			Collection<Long> chunk = ids.subList(i, Math.min(i + MAX_IDS_PER_QUERY, ids.size()));
+			result.addAll(sessionFactory.getCurrentSession()
+				.createQuery(hql)
+				.setParameterList("ids", chunk)
+				.list());
+		}
+
+		return result;
+	}
+
+	private static final String GET_MODIFIED_ENTITY_IDS_SQL =
+		"select distinct r.entity_id " +
+		"from os_revision_entity_records r inner join os_revisions rev on rev.rev = r.rev " +
+		"where r.entity_name = :entityName and rev.revtstmp >= :since";
+
+	private static final String GET_CPR_IDS_BY_PARTICIPANTS =
+		"select cpr.id from " + CollectionProtocolRegistration.class.getName() + " cpr where cpr.participant.id in (:ids)";
+
+	private static final String GET_PARTICIPANT_CPR_IDS =
+		"select cpr.id from " + CollectionProtocolRegistration.class.getName() + " cpr " +
+		"where cpr.participant.id in (" +
+		"  select c.participant.id from " + CollectionProtocolRegistration.class.getName() + " c where c.id in (:ids)" +
+		")";
+
+	private static final String GET_CPR_IDS_BY_VISITS =
+		"select v.registration.id from " + Visit.class.getName() + " v where v.id in (:ids)";
+
+	private static final String GET_CPR_IDS_BY_SPECIMENS =
+		"select s.visit.registration.id from " + Specimen.class.getName() + " s where s.id in (:ids)";
+
+	private static final String GET_ACTIVE_CPR_IDS =
+		"select cpr.id from " + CollectionProtocolRegistration.class.getName() + " cpr " +
+		"where cpr.id in (:ids) and cpr.activityStatus != 'Disabled'";
+
+	private static final String GET_VISIT_IDS_BY_CPRS =
+		"select v.id from " + Visit.class.getName() + " v where v.registration.id in (:ids)";
+
+	private static final String GET_SPECIMEN_IDS_BY_CPRS =
+		"select s.id from " + Specimen.class.getName() + " s where s.visit.registration.id in (:ids)";
+
+	private static final String GET_ACTIVE_DP_IDS =
+		"select dp.id from " + DistributionProtocol.class.getName() + " dp " +
+		"where dp.id in (:ids) and dp.activityStatus != 'Disabled'";
+
+	private static final String GET_DP_IDS_BY_REQUIREMENTS =
+		"select r.distributionProtocol.id from " + DpRequirement.class.getName() + " r where r.id in (:ids)";
+
+	private static final String GET_DP_IDS_BY_ORDERS =
+		"select o.distributionProtocol.id from " + DistributionOrder.class.getName() + " o where o.id in (:ids)";
+}
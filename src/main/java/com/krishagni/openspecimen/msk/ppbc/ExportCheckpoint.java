@@ -0,0 +1,145 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.krishagni.catissueplus.core.common.util.ConfigUtil;
+
+//
+// Progress of the export run in flight, kept in the data directory until the
+// run completes. A run that fails or is killed leaves it behind, and the next
+// run picks up from it: same export folder, same start time and export mode,
+// with every exporter resuming after its last checkpointed page.
+//
+public class ExportCheckpoint {
+	private static final String FILE_NAME = "msk-ppbc-export-checkpoint.properties";
+
+	private static final String RUN_ID = "run.id";
+
+	private static final String START_TIME = "run.startTime";
+
+	private static final String EXPORT_FOLDER = "run.exportFolder";
+
+	private static final String FULL_EXPORT = "run.fullExport";
+
+	private final File file;
+
+	private final Properties props = new Properties();
+
+	private ExportCheckpoint(File file) {
+		this.file = file;
+	}
+
+	//
+	// Checkpoint of an earlier run that did not complete, or null when there is nothing to resume
+	//
+	public static ExportCheckpoint getUnfinished() {
+		ExportCheckpoint checkpoint = new ExportCheckpoint(getFile());
+		if (!checkpoint.file.exists()) {
+			return null;
+		}
+
+		checkpoint.load();
+		if (StringUtils.isBlank(checkpoint.props.getProperty(RUN_ID)) || !checkpoint.getExportFolder().isDirectory()) {
+			return null;
+		}
+
+		return checkpoint;
+	}
+
+	public static ExportCheckpoint start(String runId, Date startTime, File exportFolder, boolean fullExport) throws IOException {
+		ExportCheckpoint checkpoint = new ExportCheckpoint(getFile());
+		checkpoint.props.setProperty(RUN_ID, runId);
+		checkpoint.props.setProperty(START_TIME, Long.toString(startTime.getTime()));
+		checkpoint.props.setProperty(EXPORT_FOLDER, exportFolder.getAbsolutePath());
+		checkpoint.props.setProperty(FULL_EXPORT, Boolean.toString(fullExport));
+		checkpoint.save();
+		return checkpoint;
+	}
+
+	public static void discard() {
+		getFile().delete();
+	}
+
+	public synchronized String getRunId() {
+		return props.getProperty(RUN_ID);
+	}
+
+	public synchronized Date getStartTime() {
+		return new Date(Long.parseLong(props.getProperty(START_TIME)));
+	}
+
+	public synchronized File getExportFolder() {
+		return new File(props.getProperty(EXPORT_FOLDER));
+	}
+
+	public synchronized boolean isFullExport() {
+		return Boolean.parseBoolean(props.getProperty(FULL_EXPORT));
+	}
+
+	public synchronized String get(String key) {
+		return props.getProperty(key);
+	}
+
+	public synchronized Long getLong(String key) {
+		String value = props.getProperty(key);
+		return StringUtils.isBlank(value) ? null : Long.parseLong(value);
+	}
+
+	//
+	// Records the values and writes the checkpoint out in one go
+	//
+	public synchronized void update(Map<String, String> values) throws IOException {
+		props.putAll(values);
+		save();
+	}
+
+	public synchronized void delete() {
+		file.delete();
+	}
+
+	private void save() throws IOException {
+		File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(tmpFile);
+			props.store(out, "MSK PPBC export run in progress");
+			out.getFD().sync();
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Error saving export checkpoint to " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	private void load() {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			props.load(in);
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading export checkpoint from " + file.getAbsolutePath(), e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private static File getFile() {
+		return new File(ConfigUtil.getInstance().getDataDir(), FILE_NAME);
+	}
+}
@@ -0,0 +1,416 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.krishagni.catissueplus.core.common.util.ConfigUtil;
+
+public class ExportConfig {
+	private static final String MODULE = "msk_ppbc_export";
+
+	private static final String DELTA_EXPORT = "delta_export";
+
+	private static final String TASK_POOL_SIZE = "task_pool_size";
+
+	private static final String CPR_EXPORT_WORKERS = "cpr_export_workers";
+
+	private static final String DP_EXPORT_WORKERS = "dp_export_workers";
+
+	private static final String DIRECT_ITEM_EXPORT = "direct_item_export";
+
+	private static final String ITEM_PAGE_SIZE = "item_page_size";
+
+	private static final String OUTPUT_MODE = "output_mode";
+
+	private static final String OUTPUT_FORMAT = "output_format";
+
+	private static final String PARQUET_COPY = "parquet_copy";
+
+	private static final String PARQUET_DIR = "parquet_dir";
+
+	private static final String PARQUET_ROW_GROUP_MB = "parquet_row_group_mb";
+
+	private static final String DB_INSERT_BATCH_SIZE = "db_insert_batch_size";
+
+	private static final String PREFETCH_CPR_GRAPH = "prefetch_cpr_graph";
+
+	private static final String MAX_RESIDENT_ENTITIES = "max_resident_entities";
+
+	private static final String ADAPTIVE_PAGE_SIZE = "adaptive_page_size";
+
+	private static final String PAGE_TARGET_MS = "page_target_ms";
+
+	private static final String MIN_FREE_HEAP_PCT = "min_free_heap_pct";
+
+	private static final String CPR_PAGE_SIZE = "cpr_page_size";
+
+	private static final String CPR_PAGE_SIZE_MIN = "cpr_page_size_min";
+
+	private static final String CPR_PAGE_SIZE_MAX = "cpr_page_size_max";
+
+	private static final String DP_PAGE_SIZE = "dp_page_size";
+
+	private static final String DP_PAGE_SIZE_MIN = "dp_page_size_min";
+
+	private static final String DP_PAGE_SIZE_MAX = "dp_page_size_max";
+
+	private static final String CSV_BUFFER_SIZE_KB = "csv_buffer_size_kb";
+
+	private static final String CHECKPOINT_INTERVAL_PAGES = "checkpoint_interval_pages";
+
+	private static final String REMOTE_HOST = "remote_host";
+
+	private static final String REMOTE_PORT = "remote_port";
+
+	private static final String REMOTE_KNOWN_HOSTS = "remote_known_hosts";
+
+	private static final String REMOTE_HOST_KEY = "remote_host_key";
+
+	private static final String REMOTE_USERNAME = "remote_username";
+
+	private static final String REMOTE_PASSWORD = "remote_password";
+
+	private static final String REMOTE_DATA_DIR = "remote_data_dir";
+
+	private static final String TRANSFER_THREADS = "transfer_threads";
+
+	private static final String LOAD_THREADS = "load_threads";
+
+	private static final String LOAD_CHUNK_MB = "load_chunk_mb";
+
+	private static final String PIPELINED_LOAD = "pipelined_load";
+
+	private static final String PIPELINE_CHUNK_ROWS = "pipeline_chunk_rows";
+
+	private static final String PIPELINE_CHUNK_MB = "pipeline_chunk_mb";
+
+	private static final String PIPELINE_QUEUE_SIZE = "pipeline_queue_size";
+
+	private static final String CHANGE_CAPTURE = "change_capture";
+
+	private static final String CHANGE_BATCH_INTERVAL_SECS = "change_batch_interval_secs";
+
+	private static final String CHANGE_BATCH_SIZE = "change_batch_size";
+
+	private static final String CHANGE_MAX_ATTEMPTS = "change_max_attempts";
+
+	private static final String INDEX_REBUILD_PCT = "index_rebuild_pct";
+
+	private static final String TARGET_DB_DRIVER = "target_db_driver";
+
+	private static final String TARGET_DB_URL = "target_db_url";
+
+	private static final String TARGET_DB_USERNAME = "target_db_username";
+
+	private static final String TARGET_DB_PASSWORD = "target_db_password";
+
+	private static final String TARGET_DB_POOL_SIZE = "target_db_pool_size";
+
+	public static boolean isDeltaExportEnabled() {
+		return getBoolSetting(DELTA_EXPORT, false);
+	}
+
+	//
+	// Number of export tasks run in parallel; 1 runs them one after the other
+	//
+	public static int getTaskPoolSize() {
+		return Math.max(1, getIntSetting(TASK_POOL_SIZE, 1));
+	}
+
+	//
+	// Number of id ranges the registrations are split into, each exported by its own worker
+	//
+	public static int getCprExportWorkers() {
+		return Math.max(1, getIntSetting(CPR_EXPORT_WORKERS, 1));
+	}
+
+	//
+	// Number of id ranges the distribution protocols are split into, each exported by its own worker
+	//
+	public static int getDpExportWorkers() {
+		return Math.max(1, getIntSetting(DP_EXPORT_WORKERS, 1));
+	}
+
+	//
+	// Export the distribution rows straight from the order items instead of
+	// through the orders of every distribution protocol
+	//
+	public static boolean isDirectItemExportEnabled() {
+		return getBoolSetting(DIRECT_ITEM_EXPORT, true);
+	}
+
+	public static int getItemPageSize() {
+		return Math.max(100, getIntSetting(ITEM_PAGE_SIZE, 5000));
+	}
+
+	//
+	// "file" writes CSV files that are bulk loaded at the end of the run,
+	// "db" inserts the rows into the target tables as they are exported,
+	// "parquet" writes Parquet datasets only and leaves the database as it is
+	//
+	public static boolean isDbOutput() {
+		return "db".equalsIgnoreCase(getStrSetting(OUTPUT_MODE, "file"));
+	}
+
+	//
+	// "native" writes dates as yyyy-MM-dd HH:mm:ss and nulls as \N, anything else keeps the legacy text
+	//
+	public static boolean isNativeFormat() {
+		return "native".equalsIgnoreCase(getStrSetting(OUTPUT_FORMAT, "legacy"));
+	}
+
+	public static boolean isParquetOutput() {
+		return "parquet".equalsIgnoreCase(getStrSetting(OUTPUT_MODE, "file"));
+	}
+
+	//
+	// Write Parquet datasets of the tables next to the CSV files or database rows
+	//
+	public static boolean isParquetCopyEnabled() {
+		return getBoolSetting(PARQUET_COPY, false);
+	}
+
+	//
+	// Folder the Parquet datasets are kept in; they are not removed after the run
+	//
+	public static File getParquetDir() {
+		String dir = getStrSetting(PARQUET_DIR, "");
+		return StringUtils.isNotBlank(dir) ? new File(dir) : new File(ConfigUtil.getInstance().getDataDir(), "msk-ppbc-parquet");
+	}
+
+	//
+	// Rows of a Parquet file are buffered in memory until their row group reaches this size
+	//
+	public static int getParquetRowGroupSize() {
+		return Math.max(1, getIntSetting(PARQUET_ROW_GROUP_MB, 64)) * 1024 * 1024;
+	}
+
+	public static int getDbInsertBatchSize() {
+		return getIntSetting(DB_INSERT_BATCH_SIZE, 1000);
+	}
+
+	//
+	// Load the visits, specimens and custom fields of every page of registrations
+	// in batched queries instead of one lazy load at a time
+	//
+	public static boolean isCprGraphPrefetchEnabled() {
+		return getBoolSetting(PREFETCH_CPR_GRAPH, true);
+	}
+
+	//
+	// Cap on the entities held by the export's Hibernate session within a page
+	//
+	public static int getMaxResidentEntities() {
+		return Math.max(1000, getIntSetting(MAX_RESIDENT_ENTITIES, 50000));
+	}
+
+	//
+	// Tune the number of records fetched per page from the time and memory the
+	// recent pages took; when off, the pages keep their configured size
+	//
+	public static boolean isAdaptivePageSizeEnabled() {
+		return getBoolSetting(ADAPTIVE_PAGE_SIZE, true);
+	}
+
+	public static int getPageTargetMillis() {
+		return Math.max(100, getIntSetting(PAGE_TARGET_MS, 2000));
+	}
+
+	//
+	// Pages are made smaller while less than this much of the heap is free
+	//
+	public static int getMinFreeHeapPct() {
+		return Math.max(0, Math.min(getIntSetting(MIN_FREE_HEAP_PCT, 20), 90));
+	}
+
+	public static int getCprPageSize() {
+		return getIntSetting(CPR_PAGE_SIZE, 100);
+	}
+
+	public static int getMinCprPageSize() {
+		return getIntSetting(CPR_PAGE_SIZE_MIN, 10);
+	}
+
+	public static int getMaxCprPageSize() {
+		return getIntSetting(CPR_PAGE_SIZE_MAX, 1000);
+	}
+
+	public static int getDpPageSize() {
+		return getIntSetting(DP_PAGE_SIZE, 10);
+	}
+
+	public static int getMinDpPageSize() {
+		return getIntSetting(DP_PAGE_SIZE_MIN, 1);
+	}
+
+	public static int getMaxDpPageSize() {
+		return getIntSetting(DP_PAGE_SIZE_MAX, 200);
+	}
+
+	//
+	// Size of the in-memory buffer of every CSV file being written
+	//
+	public static int getCsvBufferSize() {
+		return Math.max(64, getIntSetting(CSV_BUFFER_SIZE_KB, 1024)) * 1024;
+	}
+
+	//
+	// Number of exported pages between two checkpoints, when the output is forced to disk
+	// and the progress of the run is saved
+	//
+	public static int getCheckpointInterval() {
+		return Math.max(1, getIntSetting(CHECKPOINT_INTERVAL_PAGES, 20));
+	}
+
+	//
+	// Database host the export files are copied to, when LOAD DATA cannot read them locally
+	//
+	public static String getRemoteHost() {
+		return getStrSetting(REMOTE_HOST, "");
+	}
+
+	public static int getRemotePort() {
+		return getIntSetting(REMOTE_PORT, 22);
+	}
+
+	//
+	// known_hosts file the key of the remote host is checked against
+	//
+	public static String getRemoteKnownHosts() {
+		return getStrSetting(REMOTE_KNOWN_HOSTS, "");
+	}
+
+	//
+	// Public key of the remote host, as in a known_hosts line ("ssh-ed25519 AAAA..."),
+	// pinned instead of a known_hosts file
+	//
+	public static String getRemoteHostKey() {
+		return getStrSetting(REMOTE_HOST_KEY, "");
+	}
+
+	public static String getRemoteUsername() {
+		return getStrSetting(REMOTE_USERNAME, "");
+	}
+
+	public static String getRemotePassword() {
+		return getStrSetting(REMOTE_PASSWORD, "");
+	}
+
+	public static String getRemoteDataDir() {
+		return getStrSetting(REMOTE_DATA_DIR, "/usr/local/var/mysql");
+	}
+
+	public static int getTransferThreads() {
+		return Math.max(1, getIntSetting(TRANSFER_THREADS, 4));
+	}
+
+	//
+	// Number of files loaded into the database at the same time, each on its own
+	// connection; 1 loads the tables one after the other
+	//
+	public static int getLoadThreads() {
+		return Math.max(1, getIntSetting(LOAD_THREADS, 1));
+	}
+
+	//
+	// Export files larger than this are split into chunks of about this size that
+	// are loaded concurrently; 0 loads every file whole
+	//
+	public static long getLoadChunkSize() {
+		return Math.max(0, getIntSetting(LOAD_CHUNK_MB, 0)) * 1024L * 1024L;
+	}
+
+	//
+	// Load the export files chunk by chunk while the export goes on, instead of
+	// loading the complete files once it is over
+	//
+	public static boolean isPipelinedLoad() {
+		return getBoolSetting(PIPELINED_LOAD, false);
+	}
+
+	//
+	// A chunk is sealed and queued for loading once it has this many rows or this many bytes
+	//
+	public static int getPipelineChunkRows() {
+		return Math.max(1000, getIntSetting(PIPELINE_CHUNK_ROWS, 500000));
+	}
+
+	public static long getPipelineChunkSize() {
+		return Math.max(1, getIntSetting(PIPELINE_CHUNK_MB, 256)) * 1024L * 1024L;
+	}
+
+	//
+	// Number of sealed chunks waiting to be loaded after which the exporters wait for the loaders
+	//
+	public static int getPipelineQueueSize() {
+		return Math.max(1, getIntSetting(PIPELINE_QUEUE_SIZE, 4));
+	}
+
+	//
+	// Queue the entities saved in OpenSpecimen and export their rows into the
+	// target tables in small batches, between the export runs
+	//
+	public static boolean isChangeCaptureEnabled() {
+		return getBoolSetting(CHANGE_CAPTURE, false);
+	}
+
+	public static int getChangeBatchInterval() {
+		return Math.max(5, getIntSetting(CHANGE_BATCH_INTERVAL_SECS, 60));
+	}
+
+	//
+	// Number of queued changes exported together
+	//
+	public static int getChangeBatchSize() {
+		return Math.max(1, getIntSetting(CHANGE_BATCH_SIZE, 1000));
+	}
+
+	//
+	// Number of times the export of a queued change is tried before it is parked
+	// until the next export run
+	//
+	public static int getChangeMaxAttempts() {
+		return Math.max(1, getIntSetting(CHANGE_MAX_ATTEMPTS, 3));
+	}
+
+	//
+	// A merge that writes at least this percent of the rows of a table drops the
+	// secondary indexes of the table and rebuilds them after; 0 never does
+	//
+	public static int getIndexRebuildPct() {
+		return Math.max(0, getIntSetting(INDEX_REBUILD_PCT, 20));
+	}
+
+	public static String getTargetDbDriver() {
+		return getStrSetting(TARGET_DB_DRIVER, "com.mysql.jdbc.Driver");
+	}
+
+	public static String getTargetDbUrl() {
+		return getStrSetting(TARGET_DB_URL, null);
+	}
+
+	public static String getTargetDbUsername() {
+		return getStrSetting(TARGET_DB_USERNAME, null);
+	}
+
+	public static String getTargetDbPassword() {
+		return getStrSetting(TARGET_DB_PASSWORD, null);
+	}
+
+	public static int getTargetDbPoolSize() {
+		return Math.max(1, getIntSetting(TARGET_DB_POOL_SIZE, 8));
+	}
+
+	private static String getStrSetting(String name, String defValue) {
+		return ConfigUtil.getInstance().getStrSetting(MODULE, name, defValue);
+	}
+
+	private static int getIntSetting(String name, int defValue) {
+		return ConfigUtil.getInstance().getIntSetting(MODULE, name, defValue);
+	}
+
+	private static boolean getBoolSetting(String name, boolean defValue) {
+		return ConfigUtil.getInstance().getBoolSetting(MODULE, name, defValue);
+	}
+}
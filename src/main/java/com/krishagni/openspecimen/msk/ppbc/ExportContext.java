@@ -0,0 +1,398 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.krishagni.catissueplus.core.administrative.domain.ScheduledJobRun;
+import com.krishagni.catissueplus.core.common.util.ConfigUtil;
+
+public class ExportContext {
+	private static final Log logger = LogFactory.getLog(ExportContext.class);
+
+	private static final String FULL_EXPORT_ARG = "full";
+
+	private static final String RESTART_ARG = "restart";
+
+	private static final String COMPRESSED_KEY = "run.compressedFiles";
+
+	private static final String NATIVE_FORMAT_KEY = "run.nativeFormat";
+
+	private static final String DB_OUTPUT_KEY = "run.dbOutput";
+
+	private static final String PARQUET_OUTPUT_KEY = "run.parquetOutput";
+
+	private static final String PARQUET_ENABLED_KEY = "run.parquetEnabled";
+
+	private static final String PIPELINED_KEY = "run.pipelined";
+
+	private static final DateTimeFormatter FOLDER_NAME_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy").withZone(ZoneId.systemDefault());
+
+	private final ScheduledJobRun jobRun;
+
+	private final Date startTime;
+
+	private final File exportFolder;
+
+	private final boolean fullExport;
+
+	private final ExportWatermarks watermarks;
+
+	private final boolean dbOutput;
+
+	//
+	// Parquet datasets are the only output of the run
+	//
+	private final boolean parquetOutput;
+
+	//
+	// Parquet datasets are written, alone or next to the usual output
+	//
+	private final boolean parquetEnabled;
+
+	private final ExportFormat format;
+
+	//
+	// The table files are written in chunks that are loaded while the export goes on
+	//
+	private final boolean pipelined;
+
+	private volatile LoadPipeline loadPipeline;
+
+	//
+	// The files are gzipped as they are written, to be copied to a remote database host
+	//
+	private final boolean compressed;
+
+	//
+	// The rows of the changed records go into the staging tables of a change batch
+	//
+	private final boolean changeBatch;
+
+	private final ExportMetrics metrics = new ExportMetrics();
+
+	//
+	// null when the rows go straight into the database, or into chunks loaded as they
+	// are sealed, as those runs cannot be resumed
+	//
+	private final ExportCheckpoint checkpoint;
+
+	private final boolean resumed;
+
+	private volatile boolean cancelled;
+
+	//
+	// A resumed run writes its files the way the run it resumes started them: the
+	// format, output modes and compression are restored from the checkpoint, so a
+	// change of the settings in between never mixes two kinds of rows in one file.
+	// Only file runs are checkpointed, so an unfinished run is resumed as one even
+	// when the rows are now to go straight into the database.
+	//
+	public ExportContext(ScheduledJobRun jobRun, ExportWatermarks watermarks) throws IOException {
+		this.jobRun = jobRun;
+		this.watermarks = watermarks;
+		this.changeBatch = false;
+
+		ExportCheckpoint unfinished = null;
+		if (!isArgPresent(jobRun, RESTART_ARG)) {
+			unfinished = ExportCheckpoint.getUnfinished();
+		}
+
+		if (unfinished != null) {
+			this.checkpoint = unfinished;
+			this.startTime = unfinished.getStartTime();
+			this.exportFolder = unfinished.getExportFolder();
+			this.fullExport = unfinished.isFullExport();
+			this.format = Boolean.parseBoolean(unfinished.get(NATIVE_FORMAT_KEY)) ? ExportFormat.NATIVE : ExportFormat.LEGACY;
+			this.dbOutput = Boolean.parseBoolean(unfinished.get(DB_OUTPUT_KEY));
+			this.parquetOutput = Boolean.parseBoolean(unfinished.get(PARQUET_OUTPUT_KEY));
+			this.parquetEnabled = Boolean.parseBoolean(unfinished.get(PARQUET_ENABLED_KEY));
+			this.pipelined = Boolean.parseBoolean(unfinished.get(PIPELINED_KEY));
+			this.compressed = Boolean.parseBoolean(unfinished.get(COMPRESSED_KEY));
+			this.resumed = true;
+			logger.info("Resuming the unfinished export run " + unfinished.getRunId() + " in " + exportFolder.getAbsolutePath());
+		} else {
+			ExportCheckpoint.discard();
+
+			this.startTime = new Date();
+			this.exportFolder = new File(ConfigUtil.getInstance().getDataDir(), FOLDER_NAME_FORMAT.format(startTime.toInstant()));
+			this.fullExport = !ExportConfig.isDeltaExportEnabled() || isArgPresent(jobRun, FULL_EXPORT_ARG);
+			this.format = ExportConfig.isNativeFormat() ? ExportFormat.NATIVE : ExportFormat.LEGACY;
+			this.dbOutput = ExportConfig.isDbOutput();
+			this.parquetOutput = ExportConfig.isParquetOutput();
+			this.parquetEnabled = parquetOutput || ExportConfig.isParquetCopyEnabled();
+			this.pipelined = !dbOutput && !parquetOutput && ExportConfig.isPipelinedLoad();
+			this.compressed = !dbOutput && !parquetOutput && ExportTransfer.isRemoteConfigured();
+			this.resumed = false;
+
+			boolean resumable = !dbOutput && !pipelined;
+			this.checkpoint = !resumable ? null : ExportCheckpoint.start(getRunId(jobRun, startTime), startTime, exportFolder, fullExport);
+			if (checkpoint != null) {
+				Map<String, String> settings = new HashMap<>();
+				settings.put(NATIVE_FORMAT_KEY, Boolean.toString(format.isNative()));
+				settings.put(DB_OUTPUT_KEY, Boolean.toString(dbOutput));
+				settings.put(PARQUET_OUTPUT_KEY, Boolean.toString(parquetOutput));
+				settings.put(PARQUET_ENABLED_KEY, Boolean.toString(parquetEnabled));
+				settings.put(PIPELINED_KEY, Boolean.toString(pipelined));
+				settings.put(COMPRESSED_KEY, Boolean.toString(compressed));
+				checkpoint.update(settings);
+			}
+
+			if (parquetEnabled) {
+				FileUtils.deleteQuietly(getParquetFolder());
+			}
+		}
+	}
+
+	//
+	// Context of a change batch, which exports the rows of the changed records
+	// straight into the staging tables, outside of any export run
+	//
+	private ExportContext() {
+		this.jobRun = null;
+		this.watermarks = null;
+		this.startTime = new Date();
+		this.exportFolder = null;
+		this.fullExport = false;
+		this.dbOutput = true;
+		this.parquetOutput = false;
+		this.parquetEnabled = false;
+		this.format = ExportConfig.isNativeFormat() ? ExportFormat.NATIVE : ExportFormat.LEGACY;
+		this.pipelined = false;
+		this.compressed = false;
+		this.changeBatch = true;
+		this.checkpoint = null;
+		this.resumed = false;
+	}
+
+	public static ExportContext forChangeBatch() {
+		return new ExportContext();
+	}
+
+	public ScheduledJobRun getJobRun() {
+		return jobRun;
+	}
+
+	public Date getStartTime() {
+		return startTime;
+	}
+
+	public File getExportFolder() {
+		return exportFolder;
+	}
+
+	public File getExportFile(ExportTable table) {
+		return new File(exportFolder, table.getFileName() + getFileSuffix());
+	}
+
+	public File getExportFile(ExportTable table, int part) {
+		return new File(exportFolder, table.getTableName() + ".part-" + part + ".csv" + getFileSuffix());
+	}
+
+	//
+	// Folder of the Parquet datasets of this run, kept apart from the export
+	// folder as that is removed once the files are loaded
+	//
+	public File getParquetFolder() {
+		return new File(ExportConfig.getParquetDir(), exportFolder.getName());
+	}
+
+	public ExportMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ExportFormat getFormat() {
+		return format;
+	}
+
+	public boolean isDbOutput() {
+		return dbOutput;
+	}
+
+	public boolean isParquetOutput() {
+		return parquetOutput;
+	}
+
+	public boolean isParquetEnabled() {
+		return parquetEnabled;
+	}
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	//
+	// Pipeline the chunks of the table files are handed to as they are sealed
+	//
+	public void setLoadPipeline(LoadPipeline loadPipeline) {
+		this.loadPipeline = loadPipeline;
+	}
+
+	//
+	// Whether the rows of every table end up in one complete table file
+	//
+	public boolean hasTableFiles() {
+		return !dbOutput && !parquetOutput && !pipelined;
+	}
+
+	public RowWriter openWriter(ExportTable table, String[] header) {
+		return openWriter(table, getExportFile(table), header, null);
+	}
+
+	//
+	// Writer for one shard of a table exported by several workers. The CSV shards
+	// have no header; they are merged into the table file once all workers are done.
+	//
+	public RowWriter openWriter(ExportTable table, int part) {
+		return openWriter(table, getExportFile(table, part), null, null);
+	}
+
+	//
+	// Writer appending to the file as it was at resumeOffset, or a new file when the offset is null
+	//
+	public RowWriter openWriter(ExportTable table, File file, String[] header, Long resumeOffset) {
+		RowWriter writer;
+		if (dbOutput) {
+			writer = newDbWriter(table);
+		} else if (pipelined) {
+			writer = new ChunkedCsvRowWriter(table, file, ExportConfig.getCsvBufferSize(), format, compressed, loadPipeline);
+		} else if (resumeOffset != null) {
+			writer = CsvRowWriter.resume(file, resumeOffset, ExportConfig.getCsvBufferSize(), format, compressed);
+		} else {
+			writer = new CsvRowWriter(file, header, ExportConfig.getCsvBufferSize(), format, compressed);
+		}
+
+		if (format.isNative()) {
+			writer = new NativeDateRowWriter(writer, table);
+		}
+
+		return metered(table, writer);
+	}
+
+	//
+	// Writer of the Parquet files of a table, or of one shard of the table when part
+	// is not negative. It continues after the first resumeFiles files of the dataset,
+	// or starts it afresh when resumeFiles is null.
+	//
+	public RowWriter openParquetWriter(ExportTable table, int part, Long resumeFiles) {
+		File dir = new File(getParquetFolder(), table.getTableName());
+		String prefix = part < 0 ? "data" : "part-" + part;
+		int rowGroupSize = ExportConfig.getParquetRowGroupSize();
+
+		RowWriter writer;
+		if (resumeFiles != null) {
+			writer = ParquetRowWriter.resume(table, dir, prefix, rowGroupSize, resumeFiles);
+		} else {
+			writer = new ParquetRowWriter(table, dir, prefix, rowGroupSize);
+		}
+
+		//
+		// the rows are counted once, by the writer of the primary output
+		//
+		return parquetOutput ? metered(table, writer) : writer;
+	}
+
+	//
+	// Concatenates the header-less shards of a table, in shard order, into the table
+	// file. Gzipped shards are concatenated as the gzip members they are made of.
+	//
+	public void mergeShards(ExportTable table, String[] header, int shards) throws IOException {
+		openWriter(table, header).close();
+
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(getExportFile(table), true);
+			for (int part = 0; part < shards; ++part) {
+				FileUtils.copyFile(getExportFile(table, part), out);
+			}
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+	}
+
+	public void deleteShards(ExportTable table, int shards) {
+		for (int part = 0; part < shards; ++part) {
+			getExportFile(table, part).delete();
+		}
+	}
+
+	public ExportCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	//
+	// The run is done; the next one starts afresh
+	//
+	public void completeRun() {
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+	}
+
+	public boolean isFullExport() {
+		return fullExport;
+	}
+
+	//
+	// Returns null when the task has to export everything, either because
+	// a full rebuild was asked for or because it has never completed before.
+	//
+	public Date getChangedSince(String task) {
+		return fullExport ? null : watermarks.get(task);
+	}
+
+	public void markCompleted(String task) {
+		watermarks.set(task, startTime);
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public void ensureNotCancelled() throws InterruptedException {
+		if (cancelled || Thread.currentThread().isInterrupted()) {
+			throw new InterruptedException("Export run cancelled");
+		}
+	}
+
+	private String getFileSuffix() {
+		return compressed ? ExportLoader.GZIP_SUFFIX : "";
+	}
+
+	private RowWriter metered(ExportTable table, RowWriter writer) {
+		return new MeteredRowWriter(writer, metrics.getTable(table));
+	}
+
+	private RowWriter newDbWriter(ExportTable table) {
+		String tableName = changeBatch ? table.getStagingTableName() : table.getShadowTableName();
+		return new DbRowWriter(table, tableName, ExportConfig.getDbInsertBatchSize(), format);
+	}
+
+	private boolean isArgPresent(ScheduledJobRun jobRun, String arg) {
+		return jobRun != null && StringUtils.containsIgnoreCase(jobRun.getRtArgs(), arg);
+	}
+
+	private String getRunId(ScheduledJobRun jobRun, Date startTime) {
+		return jobRun != null && jobRun.getId() != null ? jobRun.getId().toString() : Long.toString(startTime.getTime());
+	}
+}
@@ -0,0 +1,139 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//
+// Progress of one exporter, or one worker of an exporter, through its records.
+// Every few committed pages the files it writes are forced to disk and their
+// sizes are saved in the run checkpoint together with the position reached
+// (the last exported id, or the offset of the next page). A resumed run opens
+// the files at the saved sizes, dropping any rows written after the checkpoint,
+// and continues from the saved position. Parquet datasets are resumed after the
+// number of files they had completed at the checkpoint. A checkpoint that is due
+// waits for the pages after it while a writer is not ready for it.
+//
+public class ExportCursor {
+	private final ExportContext ctx;
+
+	private final String name;
+
+	private final ExportCheckpoint checkpoint;
+
+	private final int interval;
+
+	private final List<RowWriter> writers = new ArrayList<>();
+
+	private final List<String> fileNames = new ArrayList<>();
+
+	private int pages;
+
+	private long position = -1L;
+
+	public ExportCursor(ExportContext ctx, String name) {
+		this.ctx = ctx;
+		this.name = name;
+		this.checkpoint = ctx.getCheckpoint();
+		this.interval = ExportConfig.getCheckpointInterval();
+	}
+
+	//
+	// Position saved by the last checkpoint, or null when starting afresh
+	//
+	public Long getPosition() {
+		return checkpoint != null ? checkpoint.getLong(key("position")) : null;
+	}
+
+	public boolean isDone() {
+		return checkpoint != null && "true".equals(checkpoint.get(key("done")));
+	}
+
+	public RowWriter openWriter(ExportTable table, String[] header) {
+		return openWriter(table, ctx.getExportFile(table), header, -1);
+	}
+
+	public RowWriter openWriter(ExportTable table, int part) {
+		return openWriter(table, ctx.getExportFile(table, part), null, part);
+	}
+
+	public void pageCompleted(long position) throws IOException {
+		this.position = position;
+		if (++pages >= interval && isReadyForCheckpoint()) {
+			save(false);
+			pages = 0;
+		}
+	}
+
+	public void completed() throws IOException {
+		save(true);
+	}
+
+	//
+	// The rows go into the table file or database, into the Parquet dataset of the
+	// table, or into both. Each is checkpointed and resumed on its own. The rows
+	// are hashed once, before they are handed to either.
+	//
+	private RowWriter openWriter(ExportTable table, File file, String[] header, int part) {
+		RowWriter writer = null;
+		if (!ctx.isParquetOutput()) {
+			writer = register(ctx.openWriter(table, file, header, getOffset(file.getName())), file.getName());
+		}
+
+		if (ctx.isParquetEnabled()) {
+			String name = table.getTableName() + (part < 0 ? "" : ".part-" + part) + ".parquet";
+			RowWriter parquetWriter = register(ctx.openParquetWriter(table, part, getOffset(name)), name);
+			writer = (writer != null) ? new TeeRowWriter(writer, parquetWriter) : parquetWriter;
+		}
+
+		return new RowHashWriter(writer, table);
+	}
+
+	private RowWriter register(RowWriter writer, String fileName) {
+		writers.add(writer);
+		fileNames.add(fileName);
+		return writer;
+	}
+
+	private boolean isReadyForCheckpoint() {
+		for (RowWriter writer : writers) {
+			if (!writer.isReadyForCheckpoint()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private Long getOffset(String fileName) {
+		return checkpoint != null ? checkpoint.getLong(key("offset." + fileName)) : null;
+	}
+
+	private void save(boolean done) throws IOException {
+		Map<String, String> values = new HashMap<>();
+		for (int i = 0; i < writers.size(); ++i) {
+			long offset = writers.get(i).checkpoint();
+			if (offset >= 0) {
+				values.put(key("offset." + fileNames.get(i)), Long.toString(offset));
+			}
+		}
+
+		if (checkpoint == null) {
+			return;
+		}
+
+		values.put(key("position"), Long.toString(position));
+		if (done) {
+			values.put(key("done"), "true");
+		}
+
+		checkpoint.update(values);
+	}
+
+	private String key(String suffix) {
+		return "cursor." + name + "." + suffix;
+	}
+}
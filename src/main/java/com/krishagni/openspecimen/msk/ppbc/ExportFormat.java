@@ -0,0 +1,173 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.krishagni.catissueplus.core.common.util.Utility;
+
+//
+// How dates and nulls are written out. The legacy format keeps the text the
+// export always produced, which the LOAD DATA queries convert with STR_TO_DATE.
+// The native format writes dates as yyyy-MM-dd HH:mm:ss and nulls as \N, which
+// MySQL loads into the columns as they are. The formatters are immutable and
+// shared by all threads.
+//
+public class ExportFormat {
+	public static final ExportFormat LEGACY = new ExportFormat(false);
+
+	public static final ExportFormat NATIVE = new ExportFormat(true);
+
+	private static final DateTimeFormatter NATIVE_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	//
+	// display formats of the date custom fields, the ones ExportTable.DATE_FORMAT parses
+	//
+	private static final DateTimeFormatter DISPLAY_DATE_TIME = DateTimeFormatter.ofPattern("MMM dd, yyyy HH:mm", Locale.US);
+
+	private static final DateTimeFormatter DISPLAY_DATE = DateTimeFormatter.ofPattern("MMM dd, yyyy", Locale.US);
+
+	//
+	// Date.toString() text of the record attribute dates of the legacy format. Zone
+	// abbreviations like IST are ambiguous, so the zone the text was written in wins.
+	//
+	private static final DateTimeFormatter LEGACY_DATE_TIME = new DateTimeFormatterBuilder()
+		.appendPattern("EEE MMM dd HH:mm:ss ")
+		.appendZoneText(TextStyle.SHORT, Collections.singleton(ZoneId.systemDefault()))
+		.appendPattern(" yyyy")
+		.toFormatter(Locale.US);
+
+	private final boolean nativeFormat;
+
+	private final String missing;
+
+	private ExportFormat(boolean nativeFormat) {
+		this.nativeFormat = nativeFormat;
+		this.missing = nativeFormat ? null : "";
+	}
+
+	public boolean isNative() {
+		return nativeFormat;
+	}
+
+	//
+	// Value of a column the record has no value for: empty in the legacy format,
+	// and null in the native one, so that it is written as \N and loads as NULL
+	//
+	public String missing() {
+		return missing;
+	}
+
+	public String orMissing(String value) {
+		return value == null || value.isEmpty() ? missing : value;
+	}
+
+	//
+	// Date of a record attribute, written with Date.toString() in the legacy format
+	//
+	public String format(Date date) {
+		if (!nativeFormat) {
+			return date != null ? date.toString() : missing;
+		}
+
+		return date != null ? NATIVE_DATE_TIME.format(toLocalDateTime(date)) : null;
+	}
+
+	//
+	// Date written with the application's date time format in the legacy format
+	//
+	public String formatDateTime(Date date) {
+		if (!nativeFormat) {
+			return date != null ? Utility.getDateTimeString(date) : "";
+		}
+
+		return date != null ? NATIVE_DATE_TIME.format(toLocalDateTime(date)) : null;
+	}
+
+	//
+	// Converts the displayed value of a date custom field to the native format.
+	// Values that are not dates become null, as STR_TO_DATE would make them.
+	//
+	public static String toNativeDate(String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+
+		if (isNativeDate(value)) {
+			return value;
+		}
+
+		LocalDateTime date = parseDisplayDate(value);
+		return date != null ? NATIVE_DATE_TIME.format(date) : null;
+	}
+
+	//
+	// Date in a date column of either format, or null when the value is not a date
+	//
+	public static LocalDateTime parseDate(String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+
+		if (isNativeDate(value)) {
+			try {
+				return LocalDateTime.parse(value, NATIVE_DATE_TIME);
+			} catch (DateTimeParseException e) {
+				return null;
+			}
+		}
+
+		return parseDisplayDate(value);
+	}
+
+	//
+	// Date in a timestamp column of either format, or null when the value is not a date
+	//
+	public static LocalDateTime parseTimestamp(String value) {
+		if (StringUtils.isBlank(value)) {
+			return null;
+		}
+
+		try {
+			if (isNativeDate(value)) {
+				return LocalDateTime.parse(value, NATIVE_DATE_TIME);
+			}
+
+			return ZonedDateTime.parse(value, LEGACY_DATE_TIME).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	private static LocalDateTime parseDisplayDate(String value) {
+		try {
+			return LocalDateTime.parse(value, DISPLAY_DATE_TIME);
+		} catch (DateTimeParseException e) {
+			// try without the time
+		}
+
+		try {
+			return LocalDate.parse(value, DISPLAY_DATE).atStartOfDay();
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	private static boolean isNativeDate(String value) {
+		return value.length() == 19 && value.charAt(4) == '-' && value.charAt(7) == '-' && value.charAt(10) == ' ';
+	}
+
+	private static LocalDateTime toLocalDateTime(Date date) {
+		return LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
+	}
+}
@@ -2,91 +2,330 @@ package com.krishagni.openspecimen.msk.ppbc;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.datasource.SingleConnectionDataSource;
 
 import com.krishagni.catissueplus.core.administrative.domain.ScheduledJobRun;
 import com.krishagni.catissueplus.core.administrative.services.ScheduledTask;
 import com.krishagni.catissueplus.core.common.util.ConfigUtil;
-import com.krishagni.catissueplus.core.common.util.SftpUtil;
-import com.krishagni.catissueplus.core.common.util.SshSession;
 
 public class ExportJobDriver implements ScheduledTask {
 	private static final Log logger = LogFactory.getLog(ExportJobDriver.class);
 	
-	private ScheduledTask[] tasks = {
-			   new DistributionProtocolExport(),
-			   new ParticipantExport()
-			};
-	
+	//
+	// Held by the export run and by the change batches, which leave the tables
+	// alone while a run is rebuilding them
+	//
+	static final ReentrantLock RUN_LOCK = new ReentrantLock();
+
+	private static final ExportTable[] LOAD_ORDER = {
+		ExportTable.DISTRIBUTION,
+		ExportTable.ACCESSION,
+		ExportTable.DETAILS,
+		ExportTable.SPECIMEN_REQUEST,
+		ExportTable.SPECIMEN_REQUEST_DETAILS
+	};
+
+	private static final String LAST_QUEUED_CHANGE_KEY = "changeQueue.lastId";
+
 	private String dbDataDir;
+
+	private Map<ExportTable, List<File>> loadFiles;
+
+	private ExportContext ctx;
 	
 	@Override
 	public void doJob(ScheduledJobRun jobRun) throws Exception {
+		RUN_LOCK.lock();
+		try {
+			run(jobRun);
+		} finally {
+			RUN_LOCK.unlock();
+		}
+	}
+
+	private void run(ScheduledJobRun jobRun) throws Exception {
+		ExportWatermarks watermarks = new ExportWatermarks();
+		ctx = new ExportContext(jobRun, watermarks);
+		if (!ctx.isParquetOutput()) {
+			TargetDatabase.refresh();
+		}
+
 		getExportFolder().mkdir();
-		
-		for (ScheduledTask task : tasks) {
-			task.doJob(jobRun);
+
+		ExportMetrics metrics = ctx.getMetrics();
+		metrics.publish();
+
+		Long lastQueuedChange = getLastQueuedChange();
+		boolean success = false;
+		try {
+			export(jobRun, metrics);
+
+			//
+			// Advance the high-water marks only once the exported rows are in the database,
+			// so a failed load is retried with the same delta on the next run. A Parquet
+			// only run leaves the database as it is, so the marks stay where the last
+			// load left them.
+			//
+			if (!ctx.isParquetOutput()) {
+				watermarks.save();
+			}
+
+			ctx.completeRun();
+			purgeChangeQueue(lastQueuedChange);
+			success = true;
+		} finally {
+			metrics.finish(success);
+			writeSummary(jobRun, metrics);
 		}
-		
-		ensureFolderIsAccessible();
-		loadToDatabase();
+	}
+
+	private void export(ScheduledJobRun jobRun, ExportMetrics metrics) throws Exception {
+		List<ScheduledTask> taskList = new ArrayList<>();
+		taskList.add(new DistributionProtocolExport(ctx));
+		if (ExportConfig.isDirectItemExportEnabled()) {
+			taskList.add(new DistributionItemExport(ctx));
+		}
+
+		taskList.add(new ParticipantExport(ctx));
+		ScheduledTask[] tasks = taskList.toArray(new ScheduledTask[0]);
+
+		if (ctx.isParquetOutput()) {
+			//
+			// the Parquet datasets are all there is to the run; the database is left as it is
+			//
+			metrics.time("export", () -> runTasks(jobRun, tasks));
+			logger.info("Parquet datasets written to " + ctx.getParquetFolder().getAbsolutePath());
+			cleanUpTempFiles();
+			return;
+		}
+
+		ShadowTables shadowTables = new ShadowTables(LOAD_ORDER, ctx.isFullExport());
+		if (!ctx.isFullExport()) {
+			shadowTables.setRemovedRoots(getRemovedRoots());
+		}
+
+		if (ctx.isDbOutput()) {
+			//
+			// the exporters insert their rows straight into the shadow tables
+			//
+			metrics.time("prepare shadow tables", shadowTables::prepare);
+			metrics.time("export", () -> runTasks(jobRun, tasks));
+		} else if (ctx.isPipelined()) {
+			//
+			// the chunks of the table files are loaded into the shadow tables as they are sealed
+			//
+			metrics.time("prepare shadow tables", shadowTables::prepare);
+			metrics.time("export and load", () -> exportAndLoad(jobRun, tasks));
+		} else {
+			metrics.time("export", () -> runTasks(jobRun, tasks));
+			recordFileSizes(metrics);
+			metrics.time("split files", this::splitFilesToLoad);
+			metrics.time("transfer", this::ensureFolderIsAccessible);
+			metrics.time("prepare shadow tables", shadowTables::prepare);
+			metrics.time("load", this::loadToDatabase);
+		}
+
+		metrics.time("merge tables", shadowTables::merge);
 		cleanUpTempFiles();
 	}
 
-	private void loadToDatabase() {
-		executeLoadDataQuery(getDistributionSqlQuery());
-		executeLoadDataQuery(getAccessionSqlQuery());
-		executeLoadDataQuery(getDetailsSqlQuery());
-		executeLoadDataQuery(getSpecimenRequestSqlQuery());
-		executeLoadDataQuery(getSpecimenRequestDetailsSqlQuery());
-		
-		// for (String file : csvFilenames) {
-		// 	loadToDatabase(file);
-		// }
+	//
+	// The last change queued when the run started, read from the queue before any
+	// row is exported and kept with the checkpoint for a resumed run. null when
+	// the run leaves the queue as it is, or resumes a run that did not record it.
+	//
+	private Long getLastQueuedChange() throws IOException {
+		if (!ExportConfig.isChangeCaptureEnabled() || ctx.isParquetOutput()) {
+			return null;
+		}
+
+		ExportCheckpoint checkpoint = ctx.getCheckpoint();
+		if (ctx.isResumed()) {
+			return checkpoint.getLong(LAST_QUEUED_CHANGE_KEY);
+		}
+
+		long lastId;
+		try {
+			lastId = new ChangeQueue().getLastId();
+		} catch (Exception e) {
+			logger.error("Error reading the change queue; the queued changes are left to the change batches", e);
+			return null;
+		}
+
+		if (checkpoint != null) {
+			checkpoint.update(Collections.singletonMap(LAST_QUEUED_CHANGE_KEY, Long.toString(lastId)));
+		}
+
+		return lastId;
 	}
 
-	private void executeLoadDataQuery(String query) {
-		SingleConnectionDataSource scds = new SingleConnectionDataSource("jdbc:mysql://localhost:3306/loadfromcsv","swapnil","root", true);
-		JdbcTemplate jdbcTemplate = new JdbcTemplate(scds);
-		jdbcTemplate.execute(query);
-		scds.destroy();
+	//
+	// The changes queued before the run started are in the tables now
+	//
+	private void purgeChangeQueue(Long lastQueuedChange) {
+		if (lastQueuedChange == null) {
+			return;
+		}
+
+		try {
+			int purged = new ChangeQueue().purge(lastQueuedChange);
+			logger.info("Dropped " + purged + " queued changes exported by the run");
+		} catch (Exception e) {
+			logger.error("Error dropping the queued changes exported by the run", e);
+		}
 	}
-	
-	private void ensureFolderIsAccessible()  {
+
+	private void runTasks(ScheduledJobRun jobRun, ScheduledTask[] tasks) throws Exception {
+		//
+		// Each task pages through its data in its own transactions, so running it on a
+		// separate thread gives it its own Hibernate session
+		//
+		List<Callable<Void>> jobs = new ArrayList<>();
+		for (ScheduledTask task : tasks) {
+			jobs.add(() -> {
+				task.doJob(jobRun);
+				return null;
+			});
+		}
+
+		new ParallelTasks("msk-ppbc-export", ExportConfig.getTaskPoolSize(), ctx).run(jobs);
+	}
+
+	//
+	// Read before the tasks run, as a completed task moves its high-water mark
+	// to the start of this run
+	//
+	private RemovedRoots getRemovedRoots() {
+		Date cprsChangedSince = ctx.getChangedSince(ParticipantExport.TASK_NAME);
+		Date dpsChangedSince = ctx.getChangedSince(DistributionProtocolExport.TASK_NAME);
+
+		ExportChangeTracker tracker = new ExportChangeTracker();
+		return RemovedRoots.of(
+			cprsChangedSince != null ? tracker.getChangedCprIds(cprsChangedSince) : Collections.emptyList(),
+			dpsChangedSince != null ? tracker.getChangedDpIds(dpsChangedSince) : Collections.emptyList());
+	}
+
+	private void exportAndLoad(ScheduledJobRun jobRun, ScheduledTask[] tasks) throws Exception {
+		boolean remote = ExportTransfer.isRemoteConfigured();
+		this.dbDataDir = remote ? ExportConfig.getRemoteDataDir() : getExportFolder().getAbsolutePath();
+
+		LoadPipeline pipeline = new LoadPipeline(ctx, dbDataDir, remote);
+		ctx.setLoadPipeline(pipeline);
+		try {
+			runTasks(jobRun, tasks);
+			pipeline.finish();
+		} finally {
+			pipeline.close();
+		}
+	}
+
+	private void loadToDatabase() throws Exception {
+		new ExportLoader(ctx, dbDataDir).load(LOAD_ORDER, loadFiles);
+		if (ExportTransfer.isRemoteConfigured()) {
+			removeRemoteFiles();
+		}
+	}
+
+	//
+	// The loaded files are not needed on the database host any more; a failure to
+	// remove them leaves the run as it is
+	//
+	private void removeRemoteFiles() {
+		List<String> fileNames = new ArrayList<>();
+		loadFiles.values().forEach(files -> files.forEach(file -> fileNames.add(ExportLoader.getLoadFileName(file.getName()))));
+
+		ExportTransfer transfer = new ExportTransfer(ctx);
+		try {
+			transfer.remove(dbDataDir, fileNames);
+		} catch (Exception e) {
+			logger.warn("Error removing the loaded files from " + ExportConfig.getRemoteHost(), e);
+		} finally {
+			transfer.close();
+		}
+	}
+
+	//
+	// The files the tables are loaded from: the large ones are split into chunks
+	// that are loaded concurrently
+	//
+	private void splitFilesToLoad() throws Exception {
+		long chunkSize = ExportConfig.getLoadChunkSize();
+
+		loadFiles = new LinkedHashMap<>();
+		for (ExportTable table : LOAD_ORDER) {
+			List<File> files = CsvChunks.split(ctx.getExportFile(table), chunkSize);
+			if (files.size() > 1) {
+				logger.info("Split " + table.getFileName() + " into " + files.size() + " chunks to load");
+			}
+
+			loadFiles.put(table, files);
+		}
+	}
+
+	private void recordFileSizes(ExportMetrics metrics) {
+		for (ExportTable table : LOAD_ORDER) {
+			metrics.getTable(table).setFileBytes(ctx.getExportFile(table).length());
+		}
+	}
+
+	//
+	// The summary goes into the application log and is appended to the log file of
+	// the job run when it has one; the link of the run to its log file is left as
+	// it is. Otherwise it is kept in a file of its own under the data directory.
+	//
+	private void writeSummary(ScheduledJobRun jobRun, ExportMetrics metrics) {
+		String summary = metrics.getSummary();
+		logger.info(summary);
+
+		try {
+			String runLogPath = jobRun != null ? jobRun.getLogFilePath() : null;
+			if (StringUtils.isNotBlank(runLogPath) && new File(runLogPath).isFile()) {
+				FileUtils.writeStringToFile(new File(runLogPath), "\n" + summary, StandardCharsets.UTF_8, true);
+				return;
+			}
+
+			File logsDir = new File(ConfigUtil.getInstance().getDataDir(), "msk-ppbc-export-logs");
+			logsDir.mkdirs();
+
+			String runId = jobRun != null && jobRun.getId() != null ? jobRun.getId().toString() : String.valueOf(metrics.getStartTime());
+			File summaryFile = new File(logsDir, "export-run-" + runId + ".log");
+			FileUtils.writeStringToFile(summaryFile, summary, StandardCharsets.UTF_8);
+			logger.info("Export metrics summary saved to " + summaryFile.getAbsolutePath());
+		} catch (Exception e) {
+			logger.error("Error saving the export metrics summary", e);
+		}
+	}
+
+	private void ensureFolderIsAccessible() throws Exception {
 		File source = getExportFolder();
 		
-		if (StringUtils.isEmpty(remoteHost) || StringUtils.isEmpty(remoteUsername) || StringUtils.isEmpty(remotePassword)) {
+		if (!ExportTransfer.isRemoteConfigured()) {
 			this.dbDataDir = source.getAbsolutePath();
 		} else {
-			// IoUtil.zip
-			this.dbDataDir = "/usr/local/var/mysql";
-			File destination = new File(dbDataDir);
-		    putFileOnRemote(source.getAbsolutePath(), destination.getAbsolutePath());
+			this.dbDataDir = ExportConfig.getRemoteDataDir();
+			putFilesOnRemote(dbDataDir);
 		}
 	}
 	
-	private void putFileOnRemote(String localPath, String remotePath) {
-		SshSession ssh = new SshSession(remoteHost, remoteUsername, remotePassword);
-		ssh.connect();
-
-		SftpUtil sftp = ssh.newSftp();
-		sftp.put(localPath, remotePath);
-
-		sftp.close();
-		ssh.close();
+	private void putFilesOnRemote(String remoteDir) throws Exception {
+		new ExportTransfer(ctx).transfer(LOAD_ORDER, loadFiles, remoteDir);
 	}
 	
 	private void cleanUpTempFiles() {
 		try {
-			// Zip the OSDataDir/export folder
 			FileUtils.deleteDirectory(getExportFolder());
 		} catch (IOException e) {
 			logger.error("Error cleaning up temporary files", e);
@@ -94,176 +333,6 @@ public class ExportJobDriver implements ScheduledTask {
 	}
 	
 	private File getExportFolder() {
-		String folderName = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-		return new File(ConfigUtil.getInstance().getDataDir(), folderName);
-	}
-	
-	private String getSpecimenRequestSqlQuery() {
-		return "LOAD DATA INFILE '" + this.dbDataDir + "/Specimen_Request.csv'\n" + 
-				"IGNORE INTO TABLE Specimen_Request\n" + 
-				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"'\n" + 
-				"LINES TERMINATED BY '\\n'\n" + 
-				"IGNORE 1 LINES\n" + 
-				"(@col1, @col2, @col3, @col4, @col5, @col6, @col7, @col8, @col9, @col10,\n" + 
-				"@col11, @col12, @col13, @col14, @col15, @col16, @col17, @col18, @col19,\n" + 
-				"@col20, @col21, @col22, @col23, @col24, @col25, @col26, @col27, @col28)\n" + 
-				"SET\n" + 
-				"TBR_REQUEST_TITLE = @col1,\n" + 
-				"TBR_SOURCE_REQUEST = @col2,\n" + 
-				"TBR_INSTITUTE_DESC = @col3,\n" + 
-				"TBR_DEPT_DESC = @col4,\n" + 
-				"TBR_REQUESTER_DESC = @col5,\n" + 
-				"TBR_REQUEST_DT = STR_TO_DATE(@col6, '%b %d, %Y %H:%i'),\n" + 
-				"TBR_ILAB_NO = @col7,\n" + 
-				"TBR_FINALIZE_FLAG = @col8,\n" + 
-				"TBR_COST_CENTER = @col9,\n" + 
-				"TBR_FUND_ID = @col10,\n" + 
-				"TBR_MTA_FLAG = @col11,\n" + 
-				"TBR_DISTRIBUTION_OPTION_DESC = @col12,\n" + 
-				"TBR_HBC_ID = @col13,\n" + 
-				"TBR_HBC_COMMITTEE_APPROVAL_DT = STR_TO_DATE(@col14, '%b %d, %Y %H:%i'),\n" + 
-				"TBR_MIN_UNIT = @col15,\n" + 
-				"TBR_MTA_APPROVAL_DT = STR_TO_DATE(@col16, '%b %d, %Y %H:%i'),\n" + 
-				"TBR_PICKUP_ARRANGEMENT_DESC = @col17,\n" + 
-				"TBR_PROSPECT_FLAG = @col18,\n" + 
-				"TBR_TYPE_DESC = @col19,\n" + 
-				"TBR_RESTROSPECT_FLAG = @col20,\n" + 
-				"TBR_SPECIMEN_COLLECTION_METHOD = @col21,\n" + 
-				"TBR_COMMENTS = @col22,\n" + 
-				"TBR_CONTACT_NAME = @col23,\n" + 
-				"TBR_SPECIMEN_USAGE_DESC = @col24,\n" + 
-				"TBR_WAIVER_NO = @col25,\n" + 
-				"TBR_MIN_SIZE_DESC = @col26,\n" + 
-				"TBR_STS_DESC = @col27,\n" + 
-				"TBR_SPECIAL_HANDLING_DESC = @col28;";
-	}
-	
-	private String getDistributionSqlQuery() {
-		return "LOAD DATA INFILE '" + this.dbDataDir + "/Distribution.csv'\n" + 
-				"IGNORE INTO TABLE Distribution\n" + 
-				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"'\n" + 
-				"LINES TERMINATED BY '\\n'\n" + 
-				"IGNORE 1 LINES\n" + 
-				"(@col1, @col2, @col3, @col4, @col5, @col6)\n" + 
-				"SET \n" + 
-				"TBDS_SPECIMEN_REQUEST_ID = @col1,\n" + 
-				"TBDS_DISTRIBUTION_DT = @col2,\n" + 
-				"TBDS_SOURCE_REQUEST = @col3,\n" + 
-				"TBDS_BILLING_AMT = @col4,\n" + 
-				"SPECIMEN_LABEL = @col5,\n" + 
-				"TBDS_BILLING_DT = STR_TO_DATE(@col6, '%b %d, %Y %H:%i');";
-	}
-	
-	private String getSpecimenRequestDetailsSqlQuery() {
-		return "LOAD DATA INFILE '" + this.dbDataDir + "/Specimen_Request_Details.csv'\n" + 
-				"IGNORE INTO TABLE SPECIMEN_REQUEST_DETAILS\n" + 
-				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"'\n" + 
-				"LINES TERMINATED BY '\\n'\n" + 
-				"IGNORE 1 LINES\n" + 
-				"(@col1, @col2, @col3, @col4, @col5, \n" + 
-				" @col6, @col7, @col8, @col9, @col10,\n" + 
-				" @col11, @col12, @col13, @col14, @col15)\n" + 
-				"SET\n" + 
-				"TBRD_SPECIMEN_TYPE_CD = @col1,\n" + 
-				"TBRD_SITE_DESC = @col2,\n" + 
-				"TBRD_SUB_SITE_DESC = @col3,\n" + 
-				"TBRD_SUB2_SITE_DESC = @col4,\n" + 
-				"TBRD_CATEGORY_DESC = @col5,\n" + 
-				"TBRD_EXPECTED_AMT = @col6,\n" + 
-				"TBRD_BILLING_AMT = @col7,\n" + 
-				"TBRD_SOURCE_REQUEST = @col8,\n" + 
-				"TBRD_HISTOLOGY_DESC = @col9,\n" + 
-				"TBRD_HISTOLOGY_SUB_DESC = @col10,\n" + 
-				"TBRD_HISTOLOGY_SUB2_DESC = @col11,\n" + 
-				"TBRD_HISTOLOGY_SUB3_DESC = @col12,\n" + 
-				"TBRD_QUALITY_DESC = @col13,\n" + 
-				"TBRD_UNIT_DESC = @col14,\n" + 
-				"TBRD_NOTES = @col15;";
-	}
-	
-	private String getAccessionSqlQuery() {
-		return "LOAD DATA INFILE '" + this.dbDataDir + "/Accession.csv'\n" + 
-				"IGNORE INTO TABLE ACCESSION\n" + 
-				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"'\n" + 
-				"LINES TERMINATED BY '\\n'\n" + 
-				"IGNORE 1 LINES\n" + 
-				"(@col1, @col2, @col3, @col4, @col5, @col6, @col7, @col8, @col9, @col10,\n" + 
-				"@col11, @col12, @col13, @col14, @col15, @col16, @col17, @col18, @col19,\n" + 
-				"@col20, @col21, @col22, @col23, @col24, @col25, @col26, @col27, @col28,\n" + 
-				"@col29, @col30, @col31, @col32, @col33, @col34, @col35, @col36, @col37,\n" + 
-				"@col38,@col39)\n" + 
-				"SET\n" + 
-				"TBA_CRDB_MRN = @col1,\n" + 
-				"TBA_PT_DEIDENTIFICATION_ID = @col2,\n" + 
-				"TBD_BANK_NUM = @col3,\n" + 
-				"TBA_PROCUREMENT_DTE = @col4,\n" + 
-				"TBD_BANK_SUB_CD = @col5, \n" + 
-				"TBA_DISEASE_DESC = @col6,\n" + 
-				"TBA_ACCESSION_NUM = @col7,\n" + 
-				"TBD_BANK_NOTE = @col8,\n" + 
-				"TBA_DIAGNOSIS_NOTE = @col9,\n" + 
-				"TBA_SURG_STRT_DT = STR_TO_DATE(@col10, '%b %d, %Y %H:%i'),\n" + 
-				"TBA_PATH_REVIEW_DT = STR_TO_DATE(@col11, '%b %d, %Y %H:%i'),\n" + 
-				"TBA_SURGEON_NAME = @col12,\n" + 
-				"SURGICAL_PATH_REPORT = @col13,\n" + 
-				"TBD_NUN_N = @col14,\n" + 
-				"TBD_NUN_T = @col15,\n" + 
-				"TBD_OCT_N = @col16,\n" + 
-				"TBD_OCT_T = @col17,\n" + 
-				"PARENT_SPECIMEN_LABEL = @col18,\n" + 
-				"TBD_SPECIMEN_TYPE_DESC = @col19,\n" + 
-				"TBA_SITE_DESC = @col20,\n" + 
-				"TBA_SUB_SITE_DESC = @col21,\n" + 
-				"TBA_SUB2_SITE_DESC = @col22,\n" + 
-				"TBA_SITE_SIDE_DESC = @col23,\n" + 
-				"TBA_TISSUE_TYPE_DESC = @col24,\n" + 
-				"TBA_SITE_TEXT = @col25,\n" + 
-				"TBA_RESECT_DT = @col26,\n" + 
-				"TBA_BIOBANK_RECEIPT_DT = @col27,\n" + 
-				"TBA_PART_NUM = @col28,\n" + 
-				"TBA_SUB_PART_NUM = @col29,\n" + 
-				"TBA_BIOBANK_TECH_NAME = @col30,\n" + 
-				"TBA_TEMPERATURE_COND_DESC = @col31,\n" + 
-				"TBA_BIOBANK_TEMPERATURE_COND_DESC = @col32,\n" + 
-				"TBA_SITE_LOCATION_DESC = @col33,\n" + 
-				"TBA_ACCESSION_RECEIPT_DT = STR_TO_DATE(@col34, '%b %d, %Y %H:%i'),\n" + 
-				"TBA_HISTOLOGY_DESC = @col35,\n" + 
-				"TBA_HISTOLOGY_SUB_DESC = @col36,\n" + 
-				"TBA_HISTOLOGY_SUB2_DESC = @col37,\n" + 
-				"TBA_HISTOLOGY_SUB3_DESC = @col38,\n" + 
-				"TBA_HARVEST_PA_NAME = @col39;";
+		return ctx.getExportFolder();
 	}
-	
-	private String getDetailsSqlQuery() {
-		return "LOAD DATA INFILE '" + this.dbDataDir + "/Details.csv'\n" + 
-				"IGNORE INTO TABLE DETAILS\n" + 
-				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"'\n" + 
-				"LINES TERMINATED BY '\\n'\n" + 
-				"IGNORE 1 LINES\n" + 
-				"(@col1, @col2, @col3, @col4, @col5, @col6, @col7, @col8, @col9, @col10,\n" + 
-				"@col11, @col12, @col13, @col14, @col15, @col16, @col17, @col18)\n" + 
-				"SET\n" + 
-				"PARENT_SPECIMEN_LABEL = @col1,\n" + 
-				"ALIQUOT_LABEL = @col2,\n" + 
-				"TBD_CATEGORY_DESC = @col3,\n" + 
-				"TBD_SPECIMEN_TYPE_DESC = @col4,\n" + 
-				"TBD_BANK_SEQ_NUM = @col5,\n" + 
-				"TBD_VOL = @col6,\n" + 
-				"TBD_WEIGHT = @col7,\n" + 
-				"TBD_SAMPLE_PROCESS_DT = STR_TO_DATE(@col8, '%b %d, %Y %H:%i'),\n" + 
-				"TBD_QUALITY_DESC = @col9,\n" + 
-				"TBD_TIME_LAPSE_MIN = @col10,\n" + 
-				"TBD_UNIT_DESC = @col11,\n" + 
-				"TBD_SPECIAL_HANDLING_DESC = @col12,\n" + 
-				"TBD_STERILE_CODE_DESC = @col13,\n" + 
-				"TBD_BIOBANK_TECH_NAME = @col14,\n" + 
-				"TBD_ADDTL_DETAILS = @col15,\n" + 
-				"TBD_ADDTL_PROCESS_DT = STR_TO_DATE(@col16, '%b %d, %Y %H:%i'),\n" + 
-				"TBD_ADDTL_PROCESS_TECH_NAME = @col17,\n" + 
-				"TBD_ADDTL_PROCESS_TEMPERATURE_DESC = @col18;";
-	}
-	
-	private final static String remoteHost = "";
-	private final static String remoteUsername = "";
-	private final static String remotePassword = "";
 }
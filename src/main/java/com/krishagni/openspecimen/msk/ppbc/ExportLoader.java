@@ -0,0 +1,173 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Loads the export files into the shadow tables with LOAD DATA. The target tables
+// do not depend on each other, so the files, including the chunks of the large
+// tables, are loaded by a pool of workers, each on its own pooled connection
+// with the unique and foreign key checks off.
+// A failed file does not stop the others; once all are done, the failures are
+// reported table by table.
+//
+public class ExportLoader {
+	private static final Log logger = LogFactory.getLog(ExportLoader.class);
+
+	static final String GZIP_SUFFIX = ".gz";
+
+	private final ExportContext ctx;
+
+	//
+	// folder the database server reads the files from
+	//
+	private final String dataDir;
+
+	public ExportLoader(ExportContext ctx, String dataDir) {
+		this.ctx = ctx;
+		this.dataDir = dataDir;
+	}
+
+	public void load(ExportTable[] tables, Map<ExportTable, List<File>> files) throws Exception {
+		int threads = getThreadCount();
+		AtomicInteger threadNo = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, "msk-ppbc-load-" + threadNo.incrementAndGet()));
+		try {
+			Map<ExportTable, List<Future<Void>>> loads = new LinkedHashMap<>();
+			for (ExportTable table : tables) {
+				List<Future<Void>> tableLoads = new ArrayList<>();
+				for (File file : files.get(table)) {
+					tableLoads.add(executor.submit(() -> {
+						load(table, file.getName());
+						return null;
+					}));
+				}
+
+				loads.put(table, tableLoads);
+			}
+
+			Map<ExportTable, Throwable> errors = new LinkedHashMap<>();
+			for (Map.Entry<ExportTable, List<Future<Void>>> tableLoads : loads.entrySet()) {
+				for (Future<Void> load : tableLoads.getValue()) {
+					try {
+						load.get();
+					} catch (ExecutionException e) {
+						errors.putIfAbsent(tableLoads.getKey(), e.getCause());
+					}
+				}
+			}
+
+			if (!errors.isEmpty()) {
+				throw getLoadError(errors);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	//
+	// Loads the file of the given name; a gzipped file is read as it was unzipped
+	// on the database host
+	//
+	public void load(ExportTable table, String fileName) throws InterruptedException, SQLException {
+		ctx.ensureNotCancelled();
+
+		fileName = getLoadFileName(fileName);
+		long startTime = System.nanoTime();
+		int rows = TargetDatabase.bulkLoad(getLoadDataQuery(table, table.getShadowTableName(), dataDir + "/" + fileName, ctx.getFormat()));
+		long timeTaken = System.nanoTime() - startTime;
+
+		ctx.getMetrics().getTable(table).addLoad(rows, timeTaken);
+		logger.info("Loaded " + rows + " rows of " + fileName + " in " + TimeUnit.NANOSECONDS.toMillis(timeTaken) + " ms");
+	}
+
+	static boolean isCompressed(String fileName) {
+		return fileName.endsWith(GZIP_SUFFIX);
+	}
+
+	//
+	// Name of the file on the database host, where the gzipped files are unzipped
+	//
+	static String getLoadFileName(String fileName) {
+		return isCompressed(fileName) ? fileName.substring(0, fileName.length() - GZIP_SUFFIX.length()) : fileName;
+	}
+
+	//
+	// A worker more than the pool has connections would only wait for one
+	//
+	static int getThreadCount() {
+		return Math.max(1, Math.min(ExportConfig.getLoadThreads(), ExportConfig.getTargetDbPoolSize()));
+	}
+
+	static RuntimeException getLoadError(Map<ExportTable, Throwable> errors) {
+		StringBuilder msg = new StringBuilder("Error loading ").append(errors.size()).append(" table(s):");
+		for (Map.Entry<ExportTable, Throwable> error : errors.entrySet()) {
+			logger.error("Error loading " + error.getKey().getTableName(), error.getValue());
+			msg.append("\n").append(error.getKey().getTableName()).append(": ").append(error.getValue().getMessage());
+		}
+
+		RuntimeException result = new RuntimeException(msg.toString());
+		errors.values().forEach(result::addSuppressed);
+		return result;
+	}
+
+	//
+	// Query loading the file at the given path, on the database host, into the table
+	//
+	static String getLoadDataQuery(ExportTable table, String tableName, String path, ExportFormat format) {
+		return format.isNative() ? getNativeLoadDataQuery(table, tableName, path) : getLegacyLoadDataQuery(table, tableName, path);
+	}
+
+	//
+	// The native files hold the values as they are to be stored, so the columns
+	// are loaded directly, without user variables or conversions
+	//
+	private static String getNativeLoadDataQuery(ExportTable table, String tableName, String path) {
+		StringBuilder columns = new StringBuilder();
+		for (ExportTable.Column column : table.getColumns()) {
+			columns.append(columns.length() == 0 ? "" : ", ").append(column.getName());
+		}
+
+		return "LOAD DATA INFILE '" + path + "'\n" +
+				"IGNORE INTO TABLE " + tableName + "\n" +
+				"CHARACTER SET utf8mb4\n" +
+				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"' ESCAPED BY '\\\\'\n" +
+				"LINES TERMINATED BY '\\n'\n" +
+				"IGNORE 1 LINES\n" +
+				"(" + columns + ");";
+	}
+
+	private static String getLegacyLoadDataQuery(ExportTable table, String tableName, String path) {
+		StringBuilder vars = new StringBuilder(), assignments = new StringBuilder();
+
+		List<ExportTable.Column> columns = table.getColumns();
+		for (int i = 0; i < columns.size(); ++i) {
+			String var = "@col" + (i + 1);
+			vars.append(i == 0 ? "" : ", ").append(var);
+			assignments.append(i == 0 ? "" : ",\n")
+				.append(columns.get(i).getName()).append(" = ").append(ExportTable.getValueExpr(columns.get(i), var));
+		}
+
+		return "LOAD DATA INFILE '" + path + "'\n" +
+				"IGNORE INTO TABLE " + tableName + "\n" +
+				"FIELDS TERMINATED BY ',' ENCLOSED BY '\"'\n" +
+				"LINES TERMINATED BY '\\n'\n" +
+				"IGNORE 1 LINES\n" +
+				"(" + vars + ")\n" +
+				"SET\n" +
+				assignments + ";";
+	}
+}
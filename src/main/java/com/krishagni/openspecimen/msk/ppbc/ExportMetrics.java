@@ -0,0 +1,295 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Timings and counters of one export run: time spent in every stage, latency
+// of the page fetches, rows and bytes written per table, and the transfer and
+// load figures of every table. All the recorders are safe to call from the
+// worker threads. The metrics of the latest run are published over JMX.
+//
+public class ExportMetrics implements ExportMetricsMBean {
+	private static final Log logger = LogFactory.getLog(ExportMetrics.class);
+
+	private static final String OBJECT_NAME = "com.krishagni.openspecimen.msk.ppbc:type=ExportMetrics";
+
+	private final long startTime = System.currentTimeMillis();
+
+	private volatile long endTime;
+
+	private volatile String status = "RUNNING";
+
+	private final ConcurrentMap<String, LongAdder> stageNanos = new ConcurrentSkipListMap<>();
+
+	private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentSkipListMap<>();
+
+	private final Map<ExportTable, TableMetrics> tables = new EnumMap<>(ExportTable.class);
+
+	public ExportMetrics() {
+		for (ExportTable table : ExportTable.values()) {
+			tables.put(table, new TableMetrics());
+		}
+	}
+
+	public void addStageTime(String stage, long nanos) {
+		stageNanos.computeIfAbsent(stage, s -> new LongAdder()).add(nanos);
+	}
+
+	public void time(String stage, Step step) throws Exception {
+		long startTime = System.nanoTime();
+		try {
+			step.run();
+		} finally {
+			addStageTime(stage, System.nanoTime() - startTime);
+		}
+	}
+
+	public void recordLatency(String operation, long nanos) {
+		latencies.computeIfAbsent(operation, op -> new LatencyHistogram()).record(nanos);
+	}
+
+	public TableMetrics getTable(ExportTable table) {
+		return tables.get(table);
+	}
+
+	public void finish(boolean success) {
+		endTime = System.currentTimeMillis();
+		status = success ? "COMPLETED" : "FAILED";
+	}
+
+	//
+	// Replaces the metrics of the previous run in the platform MBean server
+	//
+	public void publish() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			synchronized (ExportMetrics.class) {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+
+				server.registerMBean(this, name);
+			}
+		} catch (Exception e) {
+			logger.warn("Error publishing the export metrics over JMX", e);
+		}
+	}
+
+	@Override
+	public String getStatus() {
+		return status;
+	}
+
+	@Override
+	public long getStartTime() {
+		return startTime;
+	}
+
+	@Override
+	public long getElapsedMillis() {
+		return (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+	}
+
+	@Override
+	public long getRowsWritten() {
+		return tables.values().stream().mapToLong(t -> t.rows.sum()).sum();
+	}
+
+	@Override
+	public double getRowsPerSecond() {
+		return perSecond(getRowsWritten(), TimeUnit.MILLISECONDS.toNanos(getElapsedMillis()));
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return tables.values().stream().mapToLong(TableMetrics::getBytes).sum();
+	}
+
+	@Override
+	public long getRowsLoaded() {
+		return tables.values().stream().mapToLong(t -> t.rowsLoaded.get()).sum();
+	}
+
+	@Override
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder();
+		summary.append("MSK PPBC export ").append(status)
+			.append(" in ").append(getElapsedMillis()).append(" ms, ")
+			.append(getRowsWritten()).append(" rows, ")
+			.append(String.format("%.1f", getRowsPerSecond())).append(" rows/s\n");
+
+		summary.append("\nStages (ms)\n");
+		for (Map.Entry<String, LongAdder> stage : stageNanos.entrySet()) {
+			summary.append(String.format("  %-28s %12d%n", stage.getKey(), toMillis(stage.getValue().sum())));
+		}
+
+		summary.append("\nLatencies (ms)\n");
+		summary.append(String.format("  %-28s %8s %10s %8s %8s %8s%n", "operation", "count", "mean", "p50", "p99", "max"));
+		for (Map.Entry<String, LatencyHistogram> latency : latencies.entrySet()) {
+			LatencyHistogram histogram = latency.getValue();
+			summary.append(String.format("  %-28s %8d %10.1f %8s %8s %8d%n",
+				latency.getKey(), histogram.getCount(), histogram.getMeanMillis(),
+				histogram.getPercentileBound(0.5), histogram.getPercentileBound(0.99), histogram.getMaxMillis()));
+		}
+
+		summary.append("\nTables\n");
+		summary.append(String.format("  %-26s %10s %10s %12s %10s %12s %10s %10s%n",
+			"table", "rows", "rows/s", "bytes", "write ms", "sent bytes", "xfer ms", "load ms"));
+		for (Map.Entry<ExportTable, TableMetrics> entry : tables.entrySet()) {
+			TableMetrics table = entry.getValue();
+			summary.append(String.format("  %-26s %10d %10.1f %12d %10d %12d %10d %10d (%d rows loaded)%n",
+				entry.getKey().getTableName(), table.rows.sum(), table.getRowsPerSecond(), table.getBytes(),
+				toMillis(table.writeNanos.sum()), table.sentBytes.get(), toMillis(table.transferNanos.get()),
+				toMillis(table.loadNanos.get()), table.rowsLoaded.get()));
+		}
+
+		return summary.toString();
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	private static double perSecond(long count, long nanos) {
+		return nanos <= 0 ? 0.0d : count * 1e9d / nanos;
+	}
+
+	public interface Step {
+		void run() throws Exception;
+	}
+
+	public static class TableMetrics {
+		private final LongAdder rows = new LongAdder();
+
+		private final LongAdder chars = new LongAdder();
+
+		private final LongAdder writeNanos = new LongAdder();
+
+		private final AtomicLong firstWriteAt = new AtomicLong(Long.MAX_VALUE);
+
+		private final AtomicLong lastWriteAt = new AtomicLong(Long.MIN_VALUE);
+
+		private final AtomicLong fileBytes = new AtomicLong();
+
+		private final AtomicLong sentBytes = new AtomicLong();
+
+		private final AtomicLong transferNanos = new AtomicLong();
+
+		private final AtomicLong loadNanos = new AtomicLong();
+
+		private final AtomicLong rowsLoaded = new AtomicLong();
+
+		//
+		// A batch of rows written between the two clock readings, writeNanos of which were spent in the writer
+		//
+		public void addRows(long rows, long chars, long writeNanos, long startNanos, long endNanos) {
+			this.rows.add(rows);
+			this.chars.add(chars);
+			this.writeNanos.add(writeNanos);
+			firstWriteAt.accumulateAndGet(startNanos, Math::min);
+			lastWriteAt.accumulateAndGet(endNanos, Math::max);
+		}
+
+		public void setFileBytes(long bytes) {
+			fileBytes.set(bytes);
+		}
+
+		public void addTransfer(long bytes, long nanos) {
+			sentBytes.addAndGet(bytes);
+			transferNanos.addAndGet(nanos);
+		}
+
+		public void addLoad(long rows, long nanos) {
+			rowsLoaded.addAndGet(rows);
+			loadNanos.addAndGet(nanos);
+		}
+
+		//
+		// Size of the exported file, or an estimate from the characters written when there is no file
+		//
+		public long getBytes() {
+			return fileBytes.get() > 0 ? fileBytes.get() : chars.sum();
+		}
+
+		public double getRowsPerSecond() {
+			long count = rows.sum();
+			return count == 0 ? 0.0d : perSecond(count, lastWriteAt.get() - firstWriteAt.get());
+		}
+	}
+
+	//
+	// Counts of the samples falling in a fixed set of millisecond buckets
+	//
+	private static class LatencyHistogram {
+		private static final long[] BOUNDS_MS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+		private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MS.length + 1);
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder totalNanos = new LongAdder();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			long millis = toMillis(nanos);
+			int bucket = 0;
+			while (bucket < BOUNDS_MS.length && millis >= BOUNDS_MS[bucket]) {
+				++bucket;
+			}
+
+			counts.incrementAndGet(bucket);
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		double getMeanMillis() {
+			long samples = count.sum();
+			return samples == 0 ? 0.0d : totalNanos.sum() / 1e6d / samples;
+		}
+
+		long getMaxMillis() {
+			return toMillis(maxNanos.get());
+		}
+
+		//
+		// Upper bound of the bucket holding the given percentile, e.g. "<25"
+		//
+		String getPercentileBound(double percentile) {
+			long samples = count.sum();
+			if (samples == 0) {
+				return "-";
+			}
+
+			long rank = (long) Math.ceil(percentile * samples), seen = 0;
+			for (int i = 0; i < counts.length(); ++i) {
+				seen += counts.get(i);
+				if (seen >= rank) {
+					return i < BOUNDS_MS.length ? "<" + BOUNDS_MS[i] : ">=" + BOUNDS_MS[BOUNDS_MS.length - 1];
+				}
+			}
+
+			return "-";
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+//
+// JMX view of the metrics of the current, or else the last, export run
+//
+public interface ExportMetricsMBean {
+	String getStatus();
+
+	long getStartTime();
+
+	long getElapsedMillis();
+
+	long getRowsWritten();
+
+	double getRowsPerSecond();
+
+	long getBytesWritten();
+
+	long getRowsLoaded();
+
+	String getSummary();
+}
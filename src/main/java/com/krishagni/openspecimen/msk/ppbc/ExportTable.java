@@ -0,0 +1,264 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+//
+// Target tables of the export, as defined in msk-ppbc-export-schema.sql.
+// The columns are listed in the order the exporters write them, with the
+// types of the bigint, decimal and timestamp columns of the tables.
+//
+// Every row starts with its key, made of the type and id of the record it is
+// exported from, and a hash of the rest of the row. The loads insert or update
+// only the rows whose hash changed.
+//
+public enum ExportTable {
+	SPECIMEN_REQUEST("Specimen_Request",
+		col("ROW_KEY"),
+		col("ROW_HASH"),
+		col("TBR_REQUEST_TITLE"),
+		col("TBR_SOURCE_REQUEST"),
+		cat("TBR_INSTITUTE_DESC"),
+		cat("TBR_DEPT_DESC"),
+		col("TBR_REQUESTER_DESC"),
+		date("TBR_REQUEST_DT"),
+		col("TBR_ILAB_NO"),
+		cat("TBR_FINALIZE_FLAG"),
+		bigint("TBR_COST_CENTER"),
+		bigint("TBR_FUND_ID"),
+		cat("TBR_MTA_FLAG"),
+		cat("TBR_DISTRIBUTION_OPTION_DESC"),
+		col("TBR_HBC_ID"),
+		date("TBR_HBC_COMMITTEE_APPROVAL_DT"),
+		bigint("TBR_MIN_UNIT"),
+		date("TBR_MTA_APPROVAL_DT"),
+		col("TBR_PICKUP_ARRANGEMENT_DESC"),
+		cat("TBR_PROSPECT_FLAG"),
+		cat("TBR_TYPE_DESC"),
+		cat("TBR_RESTROSPECT_FLAG"),
+		col("TBR_SPECIMEN_COLLECTION_METHOD"),
+		col("TBR_COMMENTS"),
+		col("TBR_CONTACT_NAME"),
+		col("TBR_SPECIMEN_USAGE_DESC"),
+		col("TBR_WAIVER_NO"),
+		col("TBR_MIN_SIZE_DESC"),
+		cat("TBR_STS_DESC"),
+		col("TBR_SPECIAL_HANDLING_DESC")),
+
+	SPECIMEN_REQUEST_DETAILS("Specimen_Request_Details",
+		col("ROW_KEY"),
+		col("ROW_HASH"),
+		cat("TBRD_SPECIMEN_TYPE_CD"),
+		cat("TBRD_SITE_DESC"),
+		cat("TBRD_SUB_SITE_DESC"),
+		cat("TBRD_SUB2_SITE_DESC"),
+		cat("TBRD_CATEGORY_DESC"),
+		decimal("TBRD_EXPECTED_AMT"),
+		decimal("TBRD_BILLING_AMT"),
+		col("TBRD_SOURCE_REQUEST"),
+		cat("TBRD_HISTOLOGY_DESC"),
+		cat("TBRD_HISTOLOGY_SUB_DESC"),
+		cat("TBRD_HISTOLOGY_SUB2_DESC"),
+		cat("TBRD_HISTOLOGY_SUB3_DESC"),
+		cat("TBRD_QUALITY_DESC"),
+		cat("TBRD_UNIT_DESC"),
+		col("TBRD_NOTES")),
+
+	DISTRIBUTION("Distribution",
+		col("ROW_KEY"),
+		col("ROW_HASH"),
+		col("TBDS_SPECIMEN_REQUEST_ID"),
+		timestamp("TBDS_DISTRIBUTION_DT"),
+		col("TBDS_SOURCE_REQUEST"),
+		decimal("TBDS_BILLING_AMT"),
+		col("SPECIMEN_LABEL"),
+		date("TBDS_BILLING_DT")),
+
+	ACCESSION("Accession",
+		col("ROW_KEY"),
+		col("ROW_HASH"),
+		col("TBA_CRDB_MRN"),
+		bigint("TBA_PT_DEIDENTIFICATION_ID"),
+		col("TBD_BANK_NUM"),
+		timestamp("TBA_PROCUREMENT_DTE"),
+		cat("TBD_BANK_SUB_CD"),
+		cat("TBA_DISEASE_DESC"),
+		col("TBA_ACCESSION_NUM"),
+		col("TBD_BANK_NOTE"),
+		col("TBA_DIAGNOSIS_NOTE"),
+		date("TBA_SURG_STRT_DT"),
+		date("TBA_PATH_REVIEW_DT"),
+		cat("TBA_SURGEON_NAME"),
+		col("SURGICAL_PATH_REPORT"),
+		col("TBD_NUN_N"),
+		col("TBD_NUN_T"),
+		col("TBD_OCT_N"),
+		col("TBD_OCT_T"),
+		col("PARENT_SPECIMEN_LABEL"),
+		cat("TBD_SPECIMEN_TYPE_DESC"),
+		cat("TBA_SITE_DESC"),
+		cat("TBA_SUB_SITE_DESC"),
+		cat("TBA_SUB2_SITE_DESC"),
+		cat("TBA_SITE_SIDE_DESC"),
+		cat("TBA_TISSUE_TYPE_DESC"),
+		col("TBA_SITE_TEXT"),
+		timestamp("TBA_RESECT_DT"),
+		timestamp("TBA_BIOBANK_RECEIPT_DT"),
+		bigint("TBA_PART_NUM"),
+		bigint("TBA_SUB_PART_NUM"),
+		cat("TBA_BIOBANK_TECH_NAME"),
+		cat("TBA_TEMPERATURE_COND_DESC"),
+		cat("TBA_BIOBANK_TEMPERATURE_COND_DESC"),
+		cat("TBA_SITE_LOCATION_DESC"),
+		date("TBA_ACCESSION_RECEIPT_DT"),
+		cat("TBA_HISTOLOGY_DESC"),
+		cat("TBA_HISTOLOGY_SUB_DESC"),
+		cat("TBA_HISTOLOGY_SUB2_DESC"),
+		cat("TBA_HISTOLOGY_SUB3_DESC"),
+		cat("TBA_HARVEST_PA_NAME")),
+
+	DETAILS("Details",
+		col("ROW_KEY"),
+		col("ROW_HASH"),
+		col("PARENT_SPECIMEN_LABEL"),
+		col("ALIQUOT_LABEL"),
+		cat("TBD_CATEGORY_DESC"),
+		cat("TBD_SPECIMEN_TYPE_DESC"),
+		bigint("TBD_BANK_SEQ_NUM"),
+		decimal("TBD_VOL"),
+		decimal("TBD_WEIGHT"),
+		date("TBD_SAMPLE_PROCESS_DT"),
+		cat("TBD_QUALITY_DESC"),
+		col("TBD_TIME_LAPSE_MIN"),
+		cat("TBD_UNIT_DESC"),
+		cat("TBD_SPECIAL_HANDLING_DESC"),
+		cat("TBD_STERILE_CODE_DESC"),
+		cat("TBD_BIOBANK_TECH_NAME"),
+		col("TBD_ADDTL_DETAILS"),
+		date("TBD_ADDTL_PROCESS_DT"),
+		cat("TBD_ADDTL_PROCESS_TECH_NAME"),
+		cat("TBD_ADDTL_PROCESS_TEMPERATURE_DESC"));
+
+	public static final String DATE_FORMAT = "%b %d, %Y %H:%i";
+
+	//
+	// Positions of the key and hash columns in every row
+	//
+	public static final int ROW_KEY = 0;
+
+	public static final int ROW_HASH = 1;
+
+	private final String tableName;
+
+	private final List<Column> columns;
+
+	ExportTable(String tableName, Column... columns) {
+		this.tableName = tableName;
+		this.columns = Collections.unmodifiableList(Arrays.asList(columns));
+	}
+
+	public String getTableName() {
+		return tableName;
+	}
+
+	public String getShadowTableName() {
+		return tableName + "_shadow";
+	}
+
+	public String getRetiredTableName() {
+		return tableName + "_old";
+	}
+
+	//
+	// Table the rows of a change batch are exported into before they replace the live rows
+	//
+	public String getStagingTableName() {
+		return tableName + "_staging";
+	}
+
+	public String getFileName() {
+		return tableName + ".csv";
+	}
+
+	public List<Column> getColumns() {
+		return columns;
+	}
+
+	//
+	// SQL expression that converts the exported text of the column into its stored value
+	//
+	public static String getValueExpr(Column column, String value) {
+		return column.isDate() ? "STR_TO_DATE(" + value + ", '" + DATE_FORMAT + "')" : value;
+	}
+
+	//
+	// DATE columns hold the displayed date of a custom field, which the legacy
+	// loader converts with STR_TO_DATE; TIMESTAMP columns hold the date of a
+	// record attribute, which it assigns as it is
+	//
+	public enum Type {
+		TEXT,
+		INTEGER,
+		DECIMAL,
+		DATE,
+		TIMESTAMP
+	}
+
+	public static class Column {
+		private final String name;
+
+		private final Type type;
+
+		//
+		// text with few distinct values, like the specimen type or the site
+		//
+		private final boolean categorical;
+
+		private Column(String name, Type type, boolean categorical) {
+			this.name = name;
+			this.type = type;
+			this.categorical = categorical;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public boolean isDate() {
+			return type == Type.DATE;
+		}
+
+		public boolean isCategorical() {
+			return categorical;
+		}
+	}
+
+	private static Column col(String name) {
+		return new Column(name, Type.TEXT, false);
+	}
+
+	private static Column cat(String name) {
+		return new Column(name, Type.TEXT, true);
+	}
+
+	private static Column bigint(String name) {
+		return new Column(name, Type.INTEGER, false);
+	}
+
+	private static Column decimal(String name) {
+		return new Column(name, Type.DECIMAL, false);
+	}
+
+	private static Column date(String name) {
+		return new Column(name, Type.DATE, false);
+	}
+
+	private static Column timestamp(String name) {
+		return new Column(name, Type.TIMESTAMP, false);
+	}
+}
@@ -0,0 +1,221 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.Session;
+
+//
+// Copies the export files to the database host. The files to copy are written
+// gzipped by the exporters; each goes out as it is, with the SHA-256 of its
+// bytes computed on the way. The remote side verifies the checksum and unzips
+// the file next to where LOAD DATA expects it. Files are uploaded in parallel
+// over separate channels of one SSH session, and removed from the remote host
+// once they are loaded.
+//
+// The session checks the key of the remote host against the pinned
+// remote_host_key or the remote_known_hosts file and refuses a host that does
+// not match. The SSH helper of OpenSpecimen is not used, as it connects to
+// port 22 without checking the host key.
+//
+public class ExportTransfer {
+	private static final Log logger = LogFactory.getLog(ExportTransfer.class);
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final ExportContext ctx;
+
+	private Session session;
+
+	public ExportTransfer(ExportContext ctx) {
+		this.ctx = ctx;
+	}
+
+	public static boolean isRemoteConfigured() {
+		return StringUtils.isNotBlank(ExportConfig.getRemoteHost()) &&
+			StringUtils.isNotBlank(ExportConfig.getRemoteUsername()) &&
+			StringUtils.isNotBlank(ExportConfig.getRemotePassword());
+	}
+
+	public void transfer(ExportTable[] tables, Map<ExportTable, List<File>> files, String remoteDir) throws Exception {
+		try {
+			List<Callable<Void>> jobs = new ArrayList<>();
+			for (ExportTable table : tables) {
+				for (File file : files.get(table)) {
+					jobs.add(() -> {
+						upload(table, file, remoteDir);
+						return null;
+					});
+				}
+			}
+
+			new ParallelTasks("msk-ppbc-transfer", ExportConfig.getTransferThreads(), ctx).run(jobs);
+		} finally {
+			close();
+		}
+	}
+
+	//
+	// Uploads one file over the SSH session shared by all uploads of this transfer
+	//
+	public void upload(ExportTable table, File file, String remoteDir) throws Exception {
+		upload(getSession(), table, file, remoteDir);
+	}
+
+	public synchronized void close() {
+		if (session != null) {
+			session.disconnect();
+			session = null;
+		}
+	}
+
+	private synchronized Session getSession() throws Exception {
+		if (session == null) {
+			session = connect();
+		}
+
+		return session;
+	}
+
+	//
+	// Removes the loaded files, named as LOAD DATA read them, from the remote folder
+	//
+	public void remove(String remoteDir, Collection<String> fileNames) throws Exception {
+		if (fileNames.isEmpty()) {
+			return;
+		}
+
+		StringBuilder cmd = new StringBuilder("cd '").append(remoteDir).append("' && rm -f");
+		for (String fileName : fileNames) {
+			cmd.append(" '").append(fileName).append("'");
+		}
+
+		exec(getSession(), cmd.toString());
+	}
+
+	private Session connect() throws Exception {
+		String host = ExportConfig.getRemoteHost();
+		int port = ExportConfig.getRemotePort();
+
+		JSch jsch = new JSch();
+		String hostKey = ExportConfig.getRemoteHostKey();
+		String knownHosts = ExportConfig.getRemoteKnownHosts();
+		if (StringUtils.isNotBlank(hostKey)) {
+			String keyHost = (port == 22) ? host : "[" + host + "]:" + port;
+			jsch.getHostKeyRepository().add(new HostKey(keyHost, parseHostKey(hostKey)), null);
+		} else if (StringUtils.isNotBlank(knownHosts)) {
+			jsch.setKnownHosts(knownHosts);
+		} else {
+			throw new IllegalStateException("Neither remote_host_key nor remote_known_hosts is set; the key of " + host + " cannot be verified");
+		}
+
+		Session session = jsch.getSession(ExportConfig.getRemoteUsername(), host, port);
+		session.setPassword(ExportConfig.getRemotePassword());
+		session.setConfig("StrictHostKeyChecking", "yes");
+		session.connect();
+		return session;
+	}
+
+	//
+	// The key bytes of a known_hosts style key: an optional host name, the key type and the base64 encoded key
+	//
+	private byte[] parseHostKey(String hostKey) {
+		String[] tokens = hostKey.trim().split("\\s+");
+		for (int i = 0; i < tokens.length - 1; ++i) {
+			if (tokens[i].startsWith("ssh-") || tokens[i].startsWith("ecdsa-")) {
+				return Base64.getDecoder().decode(tokens[i + 1]);
+			}
+		}
+
+		throw new IllegalArgumentException("Invalid remote_host_key, expected '<key type> <base64 key>': " + hostKey);
+	}
+
+	private void upload(Session session, ExportTable table, File file, String remoteDir) throws Exception {
+		long startTime = System.nanoTime();
+		String fileName = file.getName();
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+		ChannelSftp sftp = (ChannelSftp) session.openChannel("sftp");
+		InputStream in = null;
+		OutputStream out = null;
+		CountingOutputStream sent = null;
+		try {
+			sftp.connect();
+			in = new FileInputStream(file);
+			sent = new CountingOutputStream(new BufferedOutputStream(sftp.put(remoteDir + "/" + fileName), BUFFER_SIZE));
+			out = new DigestOutputStream(sent, digest);
+			IOUtils.copyLarge(in, out, new byte[BUFFER_SIZE]);
+			out.close();
+			out = null;
+		} finally {
+			IOUtils.closeQuietly(in);
+			IOUtils.closeQuietly(out);
+			sftp.disconnect();
+		}
+
+		String checksum = toHex(digest.digest());
+		String cmd = "cd '" + remoteDir + "' && echo '" + checksum + "  " + fileName + "' | sha256sum -c --status -";
+		if (ExportLoader.isCompressed(fileName)) {
+			cmd += " && gunzip -f '" + fileName + "'";
+		}
+
+		exec(session, cmd);
+
+		long timeTaken = System.nanoTime() - startTime;
+		ctx.getMetrics().getTable(table).addTransfer(sent.getByteCount(), timeTaken);
+		logger.info("Transferred " + fileName + " (" + sent.getByteCount() + " bytes) in " + TimeUnit.NANOSECONDS.toMillis(timeTaken) + " ms");
+	}
+
+	private void exec(Session session, String command) throws Exception {
+		ChannelExec channel = (ChannelExec) session.openChannel("exec");
+		ByteArrayOutputStream err = new ByteArrayOutputStream();
+		try {
+			channel.setCommand(command);
+			channel.setErrStream(err);
+			channel.connect();
+			while (!channel.isClosed()) {
+				Thread.sleep(100);
+			}
+
+			if (channel.getExitStatus() != 0) {
+				throw new IOException("Error running '" + command + "' on " + ExportConfig.getRemoteHost() +
+					" (exit status " + channel.getExitStatus() + "): " + err.toString());
+			}
+		} finally {
+			channel.disconnect();
+		}
+	}
+
+	private String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+
+		return hex.toString();
+	}
+}
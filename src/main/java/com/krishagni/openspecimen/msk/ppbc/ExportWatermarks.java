@@ -0,0 +1,81 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import com.krishagni.catissueplus.core.common.util.ConfigUtil;
+
+//
+// High-water marks of the last successful export run, one per task.
+// The mark is the start time of that run, so anything modified while
+// the run was in progress is picked up again by the next delta run.
+//
+public class ExportWatermarks {
+	private static final String FILE_NAME = "msk-ppbc-export-watermarks.properties";
+
+	private final File file;
+
+	private final Properties marks = new Properties();
+
+	public ExportWatermarks() {
+		this(new File(ConfigUtil.getInstance().getDataDir(), FILE_NAME));
+	}
+
+	public ExportWatermarks(File file) {
+		this.file = file;
+		load();
+	}
+
+	public synchronized Date get(String task) {
+		String value = marks.getProperty(task);
+		return StringUtils.isBlank(value) ? null : new Date(Long.parseLong(value));
+	}
+
+	public synchronized void set(String task, Date mark) {
+		marks.setProperty(task, Long.toString(mark.getTime()));
+	}
+
+	public synchronized void save() throws IOException {
+		File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(tmpFile);
+			marks.store(out, "MSK PPBC export high-water marks (epoch millis)");
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Error saving export watermarks to " + file.getAbsolutePath());
+			}
+		}
+	}
+
+	private void load() {
+		if (!file.exists()) {
+			return;
+		}
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			marks.load(in);
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading export watermarks from " + file.getAbsolutePath(), e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+//
+// Records with ids in [firstId, lastId], an open lastId taking in everything
+// above firstId, exported by one worker. In a delta run, ids are the changed
+// ones in the range.
+//
+public class IdRange {
+	private Long firstId;
+
+	private Long lastId;
+
+	private List<Long> ids;
+
+	public IdRange(Long firstId, Long lastId) {
+		this.firstId = firstId;
+		this.lastId = lastId;
+	}
+
+	public Long getFirstId() {
+		return firstId;
+	}
+
+	public Long getLastId() {
+		return lastId;
+	}
+
+	public List<Long> getIds() {
+		return ids;
+	}
+
+	public void setIds(List<Long> changedIds) {
+		this.ids = getIds(changedIds, firstId);
+	}
+
+	public List<Long> getIdsFrom(Long fromId) {
+		return getIds(ids, fromId);
+	}
+
+	//
+	// Splits [minId, maxId] into ranges of about the same width. The first and
+	// the last range are left open to pick up the records added while the
+	// export is running.
+	//
+	public static List<IdRange> split(long minId, long maxId, int workers) {
+		long rangeSize = (maxId - minId) / workers + 1;
+
+		List<IdRange> ranges = new ArrayList<>();
+		for (long firstId = minId; firstId <= maxId; firstId += rangeSize) {
+			ranges.add(new IdRange(firstId, firstId + rangeSize - 1));
+		}
+
+		ranges.get(0).firstId = 1L;
+		ranges.get(ranges.size() - 1).lastId = null;
+		return ranges;
+	}
+
+	//
+	// Splits the changed records into ranges of about the same number of ids
+	//
+	public static List<IdRange> splitIds(List<Long> ids, int workers) {
+		if (workers <= 1 || ids.size() <= workers) {
+			return all();
+		}
+
+		List<IdRange> ranges = new ArrayList<>();
+		int rangeSize = (ids.size() + workers - 1) / workers;
+		for (int startAt = 0; startAt < ids.size(); startAt += rangeSize) {
+			Long firstId = ranges.isEmpty() ? 1L : ranges.get(ranges.size() - 1).lastId + 1;
+			ranges.add(new IdRange(firstId, ids.get(Math.min(startAt + rangeSize, ids.size()) - 1)));
+		}
+
+		ranges.get(ranges.size() - 1).lastId = null;
+		return ranges;
+	}
+
+	//
+	// One range taking in all the records
+	//
+	public static List<IdRange> all() {
+		return Collections.singletonList(new IdRange(1L, null));
+	}
+
+	//
+	// Ranges of the records to export, either the changed ones or, when changedIds
+	// is null, all between the id bounds given by the supplier. The ranges are saved
+	// with the run checkpoint under the given key, so a resumed run splits the
+	// records exactly like the interrupted run did.
+	//
+	public static List<IdRange> getRanges(ExportContext ctx, String key, List<Long> changedIds, int workers, Supplier<Object[]> idBounds) throws IOException {
+		ExportCheckpoint checkpoint = ctx.getCheckpoint();
+		String savedRanges = (checkpoint != null) ? checkpoint.get(key) : null;
+
+		List<IdRange> ranges;
+		if (savedRanges != null) {
+			ranges = parse(savedRanges);
+		} else {
+			ranges = (changedIds == null) ? getIdRanges(workers, idBounds) : splitIds(changedIds, workers);
+			if (checkpoint != null) {
+				checkpoint.update(Collections.singletonMap(key, format(ranges)));
+			}
+		}
+
+		if (changedIds != null) {
+			ranges.forEach(range -> range.setIds(changedIds));
+		}
+
+		return ranges;
+	}
+
+	public static String format(List<IdRange> ranges) {
+		return ranges.stream()
+			.map(range -> range.firstId + ":" + (range.lastId != null ? range.lastId : ""))
+			.collect(Collectors.joining(","));
+	}
+
+	public static List<IdRange> parse(String ranges) {
+		List<IdRange> result = new ArrayList<>();
+		for (String range : ranges.split(",")) {
+			String[] bounds = range.split(":", -1);
+			result.add(new IdRange(Long.parseLong(bounds[0]), bounds[1].isEmpty() ? null : Long.parseLong(bounds[1])));
+		}
+
+		return result;
+	}
+
+	private static List<IdRange> getIdRanges(int workers, Supplier<Object[]> idBounds) {
+		Object[] minMax = workers > 1 ? idBounds.get() : null;
+		if (minMax == null || minMax[0] == null) {
+			return all();
+		}
+
+		return split(((Number) minMax[0]).longValue(), ((Number) minMax[1]).longValue(), workers);
+	}
+
+	private List<Long> getIds(List<Long> allIds, Long fromId) {
+		return allIds.stream()
+			.filter(id -> id >= fromId && (lastId == null || id <= lastId))
+			.collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,176 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Loads the chunk files sealed by the exporters while the export goes on.
+// The chunks wait in a bounded queue for the loaders, which copy them to the
+// database host when it is remote, LOAD DATA them into the shadow tables and
+// remove the copies.
+// When the loaders fall behind and the queue fills up, the exporters wait for
+// a free slot, so the chunks on disk never run ahead of the database by more
+// than the queue size.
+//
+// A failed chunk fails the pipeline: the exporters get the error on their next
+// chunk and the remaining chunks are dropped. The failures are reported table
+// by table when the pipeline is finished.
+//
+public class LoadPipeline {
+	private static final Log logger = LogFactory.getLog(LoadPipeline.class);
+
+	private static final Chunk END = new Chunk(null, null);
+
+	private final ExportContext ctx;
+
+	private final ExportLoader loader;
+
+	//
+	// null when the database reads the files from the export folder
+	//
+	private final ExportTransfer transfer;
+
+	private final String dataDir;
+
+	private final BlockingQueue<Chunk> queue;
+
+	private final ExecutorService executor;
+
+	private final List<Future<Void>> loaders = new ArrayList<>();
+
+	private final Map<ExportTable, Throwable> errors = Collections.synchronizedMap(new LinkedHashMap<>());
+
+	private volatile boolean failed;
+
+	public LoadPipeline(ExportContext ctx, String dataDir, boolean remote) {
+		this.ctx = ctx;
+		this.dataDir = dataDir;
+		this.loader = new ExportLoader(ctx, dataDir);
+		this.transfer = remote ? new ExportTransfer(ctx) : null;
+		this.queue = new ArrayBlockingQueue<>(ExportConfig.getPipelineQueueSize());
+
+		int threads = ExportLoader.getThreadCount();
+		AtomicInteger threadNo = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, "msk-ppbc-pipeline-" + threadNo.incrementAndGet()));
+		for (int i = 0; i < threads; ++i) {
+			loaders.add(executor.submit(this::loadChunks));
+		}
+	}
+
+	//
+	// Queues a sealed chunk for loading, waiting while the queue is full
+	//
+	public void submit(ExportTable table, File file) throws InterruptedException {
+		long startTime = System.nanoTime();
+		put(new Chunk(table, file));
+		ctx.getMetrics().recordLatency("pipelineSubmit", System.nanoTime() - startTime);
+	}
+
+	//
+	// Waits for the queued chunks to be loaded. Called once the exporters are done.
+	//
+	public void finish() throws Exception {
+		for (int i = 0; i < loaders.size(); ++i) {
+			put(END);
+		}
+
+		for (Future<Void> loader : loaders) {
+			try {
+				loader.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
+		}
+
+		ensureNotFailed();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		if (transfer != null) {
+			transfer.close();
+		}
+	}
+
+	private void put(Chunk chunk) throws InterruptedException {
+		ensureNotFailed();
+		while (!queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+			ensureNotFailed();
+			ctx.ensureNotCancelled();
+		}
+	}
+
+	private Void loadChunks() throws Exception {
+		while (true) {
+			Chunk chunk = queue.take();
+			if (chunk == END) {
+				return null;
+			}
+
+			if (failed) {
+				continue;
+			}
+
+			try {
+				if (transfer != null) {
+					transfer.upload(chunk.table, chunk.file, dataDir);
+				}
+
+				loader.load(chunk.table, chunk.file.getName());
+				chunk.file.delete();
+				if (transfer != null) {
+					removeRemoteCopy(chunk);
+				}
+			} catch (Exception e) {
+				logger.error("Error loading " + chunk.file.getName(), e);
+				errors.putIfAbsent(chunk.table, e);
+				failed = true;
+			}
+		}
+	}
+
+	//
+	// The chunk is in the table; a copy left behind only takes up space on the host
+	//
+	private void removeRemoteCopy(Chunk chunk) {
+		try {
+			transfer.remove(dataDir, Collections.singletonList(ExportLoader.getLoadFileName(chunk.file.getName())));
+		} catch (Exception e) {
+			logger.warn("Error removing " + chunk.file.getName() + " from the database host", e);
+		}
+	}
+
+	private void ensureNotFailed() {
+		if (failed) {
+			synchronized (errors) {
+				throw ExportLoader.getLoadError(new LinkedHashMap<>(errors));
+			}
+		}
+	}
+
+	private static class Chunk {
+		private final ExportTable table;
+
+		private final File file;
+
+		private Chunk(ExportTable table, File file) {
+			this.table = table;
+			this.file = file;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+
+//
+// Counts the rows and characters handed to a writer and the time spent writing them.
+//
+// The clock is read at the ends of a batch of rows and around one row in every
+// SAMPLE_ROWS, not around every row; the write time of the batch is the sampled
+// time scaled up to the rows of the batch. The counts reach the table metrics
+// once a batch and when the writer is flushed, checkpointed or closed.
+//
+public class MeteredRowWriter implements RowWriter {
+	private static final int BATCH_ROWS = 1024;
+
+	private static final int SAMPLE_ROWS = 64;
+
+	private final RowWriter writer;
+
+	private final ExportMetrics.TableMetrics metrics;
+
+	private int rows;
+
+	private long chars;
+
+	private int sampledRows;
+
+	private long sampledNanos;
+
+	private long batchStartTime;
+
+	public MeteredRowWriter(RowWriter writer, ExportMetrics.TableMetrics metrics) {
+		this.writer = writer;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		if (rows == 0) {
+			batchStartTime = System.nanoTime();
+		}
+
+		if (rows % SAMPLE_ROWS == 0) {
+			long startTime = System.nanoTime();
+			writer.writeNext(row);
+			sampledNanos += System.nanoTime() - startTime;
+			++sampledRows;
+		} else {
+			writer.writeNext(row);
+		}
+
+		chars += getLength(row);
+		if (++rows >= BATCH_ROWS) {
+			publish();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		publish();
+		writer.flush();
+	}
+
+	@Override
+	public long checkpoint() throws IOException {
+		publish();
+		return writer.checkpoint();
+	}
+
+	@Override
+	public boolean isReadyForCheckpoint() {
+		return writer.isReadyForCheckpoint();
+	}
+
+	@Override
+	public void close() throws IOException {
+		publish();
+		writer.close();
+	}
+
+	private void publish() {
+		if (rows == 0) {
+			return;
+		}
+
+		long writeNanos = sampledRows == 0 ? 0L : sampledNanos * rows / sampledRows;
+		metrics.addRows(rows, chars, writeNanos, batchStartTime, System.nanoTime());
+
+		rows = 0;
+		chars = 0L;
+		sampledRows = 0;
+		sampledNanos = 0L;
+	}
+
+	private int getLength(String[] row) {
+		int length = row.length;
+		for (String value : row) {
+			if (value != null) {
+				length += value.length();
+			}
+		}
+
+		return length;
+	}
+}
@@ -0,0 +1,60 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+import java.util.List;
+
+//
+// Rewrites the date columns of the rows to the native yyyy-MM-dd HH:mm:ss
+// format before they reach the writer. The caller's row is left as it is,
+// since parts of it are reused for the following rows.
+//
+public class NativeDateRowWriter implements RowWriter {
+	private final RowWriter writer;
+
+	private final boolean[] dateColumns;
+
+	private String[] converted = new String[0];
+
+	public NativeDateRowWriter(RowWriter writer, ExportTable table) {
+		this.writer = writer;
+
+		List<ExportTable.Column> columns = table.getColumns();
+		this.dateColumns = new boolean[columns.size()];
+		for (int i = 0; i < columns.size(); ++i) {
+			dateColumns[i] = columns.get(i).isDate();
+		}
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		if (converted.length != row.length) {
+			converted = new String[row.length];
+		}
+
+		for (int i = 0; i < row.length; ++i) {
+			converted[i] = (i < dateColumns.length && dateColumns[i]) ? ExportFormat.toNativeDate(row[i]) : row[i];
+		}
+
+		writer.writeNext(converted);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public long checkpoint() throws IOException {
+		return writer.checkpoint();
+	}
+
+	@Override
+	public boolean isReadyForCheckpoint() {
+		return writer.isReadyForCheckpoint();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+}
@@ -0,0 +1,72 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Runs a batch of jobs on a fixed size pool and waits for all of them.
+// The first failure cancels the remaining jobs and is rethrown to the caller.
+//
+public class ParallelTasks {
+	private static final Log logger = LogFactory.getLog(ParallelTasks.class);
+
+	private final String name;
+
+	private final int poolSize;
+
+	private final ExportContext ctx;
+
+	public ParallelTasks(String name, int poolSize, ExportContext ctx) {
+		this.name = name;
+		this.poolSize = poolSize;
+		this.ctx = ctx;
+	}
+
+	public void run(List<Callable<Void>> jobs) throws Exception {
+		int threads = Math.max(1, Math.min(poolSize, jobs.size()));
+		if (threads == 1) {
+			for (Callable<Void> job : jobs) {
+				job.call();
+			}
+
+			return;
+		}
+
+		AtomicInteger threadNo = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> new Thread(r, name + "-" + threadNo.incrementAndGet()));
+		CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+		List<Future<Void>> futures = new ArrayList<>();
+		try {
+			for (Callable<Void> job : jobs) {
+				futures.add(completionService.submit(job));
+			}
+
+			for (int i = 0; i < futures.size(); ++i) {
+				try {
+					completionService.take().get();
+				} catch (ExecutionException e) {
+					if (ctx != null) {
+						ctx.cancel();
+					}
+
+					futures.forEach(future -> future.cancel(true));
+					logger.error("Error running " + name + " job, cancelled the remaining jobs", e.getCause());
+					throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.LocalOutputFile;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Types;
+
+//
+// Writes the rows of a table into a Parquet dataset folder, typed as the columns
+// of the table: bigint columns as int64, decimal(19,6) columns as decimals, date
+// and timestamp columns as timestamps and everything else as UTF-8 strings. Only the categorical
+// columns are dictionary encoded.
+//
+// Parquet files cannot be appended to, so a checkpoint closes the file being
+// written and the rows that follow go into the next one. The writer is not ready
+// for a checkpoint until its file holds a full row group, so the checkpoints do
+// not break the dataset into files smaller than a row group. Files are written
+// under a temporary name and renamed once complete, and checkpoint() returns the
+// number of complete files. A resumed writer removes the files written after that
+// count and continues with the next file number.
+//
+public class ParquetRowWriter implements RowWriter {
+	private static final Log logger = LogFactory.getLog(ParquetRowWriter.class);
+
+	private static final String EXTN = ".parquet";
+
+	private static final String IN_PROGRESS_EXTN = ".inprogress";
+
+	private static final int DECIMAL_PRECISION = 19;
+
+	private static final int DECIMAL_SCALE = 6;
+
+	//
+	// bytes needed by the unscaled value of a decimal(19,6)
+	//
+	private static final int DECIMAL_BYTES = 9;
+
+	private final ExportTable table;
+
+	private final File dir;
+
+	private final String prefix;
+
+	private final int rowGroupSize;
+
+	private final MessageType schema;
+
+	private final SimpleGroupFactory groups;
+
+	private final ExportTable.Type[] types;
+
+	private ParquetWriter<Group> writer;
+
+	private File file;
+
+	private int files;
+
+	public ParquetRowWriter(ExportTable table, File dir, String prefix, int rowGroupSize) {
+		this(table, dir, prefix, rowGroupSize, 0);
+	}
+
+	private ParquetRowWriter(ExportTable table, File dir, String prefix, int rowGroupSize, int files) {
+		this.table = table;
+		this.dir = dir;
+		this.prefix = prefix;
+		this.rowGroupSize = rowGroupSize;
+		this.schema = getSchema(table);
+		this.groups = new SimpleGroupFactory(schema);
+		this.files = files;
+
+		List<ExportTable.Column> columns = table.getColumns();
+		this.types = new ExportTable.Type[columns.size()];
+		for (int i = 0; i < columns.size(); ++i) {
+			types[i] = columns.get(i).getType();
+		}
+
+		dir.mkdirs();
+		removeFilesFrom(files);
+	}
+
+	//
+	// Writer continuing after the first files of an earlier attempt
+	//
+	public static ParquetRowWriter resume(ExportTable table, File dir, String prefix, int rowGroupSize, long files) {
+		return new ParquetRowWriter(table, dir, prefix, rowGroupSize, (int) files);
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		Group group = groups.newGroup();
+		int count = Math.min(row.length, types.length);
+		for (int i = 0; i < count; ++i) {
+			addValue(group, i, row[i]);
+		}
+
+		try {
+			getWriter().write(group);
+		} catch (IOException e) {
+			throw new RuntimeException("Error writing " + file.getAbsolutePath(), e);
+		}
+	}
+
+	//
+	// Rows are buffered until their row group is full; nothing is written out early
+	//
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public long checkpoint() throws IOException {
+		closeFile();
+		return files;
+	}
+
+	@Override
+	public boolean isReadyForCheckpoint() {
+		return writer == null || writer.getDataSize() >= rowGroupSize;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closeFile();
+	}
+
+	public static MessageType getSchema(ExportTable table) {
+		Types.MessageTypeBuilder builder = Types.buildMessage();
+		for (ExportTable.Column column : table.getColumns()) {
+			switch (column.getType()) {
+				case INTEGER:
+					builder.optional(PrimitiveTypeName.INT64)
+						.as(LogicalTypeAnnotation.intType(64, true))
+						.named(column.getName());
+					break;
+
+				case DECIMAL:
+					builder.optional(PrimitiveTypeName.FIXED_LEN_BYTE_ARRAY)
+						.length(DECIMAL_BYTES)
+						.as(LogicalTypeAnnotation.decimalType(DECIMAL_SCALE, DECIMAL_PRECISION))
+						.named(column.getName());
+					break;
+
+				case DATE:
+				case TIMESTAMP:
+					builder.optional(PrimitiveTypeName.INT64)
+						.as(LogicalTypeAnnotation.timestampType(true, LogicalTypeAnnotation.TimeUnit.MILLIS))
+						.named(column.getName());
+					break;
+
+				default:
+					builder.optional(PrimitiveTypeName.BINARY)
+						.as(LogicalTypeAnnotation.stringType())
+						.named(column.getName());
+					break;
+			}
+		}
+
+		return builder.named(table.getTableName());
+	}
+
+	//
+	// Values that do not parse as the type of their column are left null,
+	// as LOAD DATA would not store them either
+	//
+	private void addValue(Group group, int column, String value) {
+		if (value == null) {
+			return;
+		}
+
+		switch (types[column]) {
+			case INTEGER:
+				Long number = toLong(value);
+				if (number != null) {
+					group.add(column, number);
+				}
+				break;
+
+			case DECIMAL:
+				Binary decimal = toDecimal(value);
+				if (decimal != null) {
+					group.add(column, decimal);
+				}
+				break;
+
+			case DATE:
+				addDate(group, column, ExportFormat.parseDate(value));
+				break;
+
+			case TIMESTAMP:
+				addDate(group, column, ExportFormat.parseTimestamp(value));
+				break;
+
+			default:
+				group.add(column, value);
+				break;
+		}
+	}
+
+	private void addDate(Group group, int column, LocalDateTime date) {
+		if (date != null) {
+			group.add(column, date.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+		}
+	}
+
+	private ParquetWriter<Group> getWriter() throws IOException {
+		if (writer != null) {
+			return writer;
+		}
+
+		file = new File(dir, getFileName(files) + IN_PROGRESS_EXTN);
+
+		ExampleParquetWriter.Builder builder = ExampleParquetWriter.builder(new LocalOutputFile(file.toPath()))
+			.withType(schema)
+			.withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+			.withCompressionCodec(CompressionCodecName.SNAPPY)
+			.withRowGroupSize((long) rowGroupSize)
+			.withDictionaryEncoding(false);
+
+		for (ExportTable.Column column : table.getColumns()) {
+			if (column.isCategorical()) {
+				builder.withDictionaryEncoding(column.getName(), true);
+			}
+		}
+
+		writer = builder.build();
+		return writer;
+	}
+
+	private void closeFile() throws IOException {
+		if (writer == null) {
+			return;
+		}
+
+		try {
+			writer.close();
+		} finally {
+			writer = null;
+		}
+
+		File complete = new File(dir, getFileName(files));
+		if (!file.renameTo(complete)) {
+			throw new IOException("Error renaming " + file.getAbsolutePath() + " to " + complete.getName());
+		}
+
+		++files;
+	}
+
+	//
+	// Removes the files numbered from the given one on, along with any file left incomplete
+	//
+	private void removeFilesFrom(int fileNo) {
+		File[] existing = dir.listFiles((d, name) -> name.startsWith(prefix + "-"));
+		if (existing == null) {
+			return;
+		}
+
+		for (File f : existing) {
+			String name = f.getName();
+			if (name.endsWith(IN_PROGRESS_EXTN) || getFileNo(name) >= fileNo) {
+				logger.info("Removing " + f.getAbsolutePath() + " written after the last checkpoint");
+				f.delete();
+			}
+		}
+	}
+
+	private String getFileName(int fileNo) {
+		return String.format("%s-%05d%s", prefix, fileNo, EXTN);
+	}
+
+	private int getFileNo(String name) {
+		if (!name.endsWith(EXTN)) {
+			return -1;
+		}
+
+		try {
+			return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - EXTN.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private Long toLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private Binary toDecimal(String value) {
+		byte[] unscaled;
+		try {
+			unscaled = new BigDecimal(value.trim()).setScale(DECIMAL_SCALE, RoundingMode.HALF_UP).unscaledValue().toByteArray();
+		} catch (NumberFormatException | ArithmeticException e) {
+			return null;
+		}
+
+		if (unscaled.length > DECIMAL_BYTES) {
+			return null;
+		}
+
+		//
+		// big-endian two's complement, sign extended to the fixed length
+		//
+		byte[] bytes = new byte[DECIMAL_BYTES];
+		byte pad = (byte) (unscaled[0] < 0 ? -1 : 0);
+		int padding = DECIMAL_BYTES - unscaled.length;
+		for (int i = 0; i < padding; ++i) {
+			bytes[i] = pad;
+		}
+
+		System.arraycopy(unscaled, 0, bytes, padding, unscaled.length);
+		return Binary.fromConstantByteArray(bytes);
+	}
+}
@@ -1,117 +1,263 @@
 package com.krishagni.openspecimen.msk.ppbc;
 
-import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 
 import com.krishagni.catissueplus.core.administrative.domain.ScheduledJobRun;
 import com.krishagni.catissueplus.core.administrative.services.ScheduledTask;
-import com.krishagni.catissueplus.core.biospecimen.domain.BaseExtensionEntity;
 import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
 import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
 import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
 import com.krishagni.catissueplus.core.biospecimen.repository.CprListCriteria;
 import com.krishagni.catissueplus.core.biospecimen.repository.DaoFactory;
 import com.krishagni.catissueplus.core.common.PlusTransactional;
-import com.krishagni.catissueplus.core.common.util.ConfigUtil;
-import com.krishagni.catissueplus.core.common.util.CsvFileWriter;
+import com.krishagni.catissueplus.core.common.util.Status;
 
 @Configurable
 public class ParticipantExport implements ScheduledTask {
     private static final Log logger = LogFactory.getLog(ParticipantExport.class);
 
+    public static final String TASK_NAME = "participants";
+
     @Autowired
     private DaoFactory daoFactory;
-   
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    private final ExportContext ctx;
+
+    //
+    // settings are read when the job runs, so the row builders can be used without a running server
+    //
+    private boolean prefetchGraph;
+
+    private final CprGraphPrefetcher graphPrefetcher = new CprGraphPrefetcher();
+
+    private PersistenceContextGuard contextGuard;
+
+    private ExportFormat format = ExportFormat.LEGACY;
+
+    private final CustomFieldProjection participantFields = new CustomFieldProjection("Darwin ID");
+
+    private final CustomFieldProjection visitFields = new CustomFieldProjection(
+        "Diagnosis Notes",
+        "Operation Date",
+        "Path Date",
+        "Surgeon Name",
+        "Specimen Description",
+        "NUN (N)",
+        "NUN (T)",
+        "OCT (N)",
+        "OCT (T)"
+    );
+
+    private final CustomFieldProjection specimenFields = new CustomFieldProjection(
+        "Part Number",
+        "Part Sub Number",
+        "Biobank Technician",
+        "Accessioning Temperature Condition",
+        "Biobank Temperature",
+        "Location",
+        "Accessioned Time",
+        "Histology Data",
+        "Harvestor"
+    );
+
+    private static final int HISTOLOGY_DATA = 7;
+
+    public ParticipantExport(ExportContext ctx) {
+        this.ctx = ctx;
+    }
+
     @Override
-    public void doJob(ScheduledJobRun jobRun) {
+    public void doJob(ScheduledJobRun jobRun) throws Exception {
+        init();
         exportParticipants();
     }
 
-    private void exportParticipants() {
-        CsvFileWriter csvFileWriter = null;
-        SpecimenExport specimenExport = new SpecimenExport();
-        try {
-        	
-            csvFileWriter = getCSVWriter();
-            csvFileWriter.writeNext(getHeader());
+    //
+    // Exports the rows of the given registrations of a change batch
+    //
+    void exportRegistrations(List<Long> cprIds) throws Exception {
+        init();
 
-            boolean endOfParticipants = false;
-            Long lastId = 0L;
-            int maxRecs = 100;
+        IdRange range = IdRange.all().get(0);
+        range.setIds(cprIds);
+        exportRange(range, -1);
+    }
 
-            while (!endOfParticipants) {
-                List<CollectionProtocolRegistration> cprs = exportParticipants(csvFileWriter, specimenExport, lastId, maxRecs);
-                
-                if (!cprs.isEmpty()) {
-                	lastId = cprs.get(cprs.size()-1).getId();
+    private void init() {
+        prefetchGraph = ExportConfig.isCprGraphPrefetchEnabled();
+        contextGuard = new PersistenceContextGuard(ExportConfig.getMaxResidentEntities());
+        format = ctx.getFormat();
+    }
+
+    private void exportParticipants() throws Exception {
+        try {
+            int workers = ExportConfig.getCprExportWorkers();
+            Date changedSince = ctx.getChangedSince(TASK_NAME);
+
+            List<Long> changedIds = null;
+            if (changedSince != null) {
+                //
+                // the live accessions of a participant are replaced as a whole, so all of its registrations are exported
+                //
+                ExportChangeTracker tracker = new ExportChangeTracker();
+                changedIds = tracker.getChangedCprIds(changedSince);
+                if (!changedIds.isEmpty()) {
+                    changedIds = tracker.getParticipantCprIds(changedIds);
                 }
 
-                endOfParticipants = (cprs.size() < maxRecs);
-            }        
+                logger.info("Exporting " + changedIds.size() + " registrations changed since " + changedSince);
+            }
+
+            List<IdRange> ranges = IdRange.getRanges(ctx, RANGES_KEY, changedIds, workers, this::getCprIdBounds);
+            if (ranges.size() == 1) {
+                exportRange(ranges.get(0), -1);
+            } else {
+                exportRanges(ranges, workers);
+            }
+
+            ctx.markCompleted(TASK_NAME);
         } catch (Exception e) {
             logger.error("Error while running participant export job", e);
+            throw e;
+        }
+    }
+
+    //
+    // Each range is exported by its own worker into its own shard files. The shards
+    // are concatenated in range order, so the merged files have the same row order
+    // as a single threaded export. When the rows go straight into the database,
+    // into chunks loaded as they are sealed, or only into Parquet datasets where
+    // every shard is a file of its own, there is nothing to merge.
+    //
+    private void exportRanges(List<IdRange> ranges, int workers) throws Exception {
+        List<Callable<Void>> jobs = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); ++i) {
+            int part = i;
+            jobs.add(() -> {
+                exportRange(ranges.get(part), part);
+                return null;
+            });
+        }
+
+        new ParallelTasks("msk-ppbc-cpr-export", workers, ctx).run(jobs);
+        if (!ctx.hasTableFiles()) {
+            return;
+        }
+
+        ExportCursor merge = new ExportCursor(ctx, TASK_NAME + ".merge");
+        if (!merge.isDone()) {
+            ctx.getMetrics().time("merge participant shards", () -> {
+                ctx.mergeShards(ExportTable.ACCESSION, getHeader(), ranges.size());
+                ctx.mergeShards(ExportTable.DETAILS, SpecimenExport.getHeader(), ranges.size());
+            });
+            merge.completed();
+        }
+
+        ctx.deleteShards(ExportTable.ACCESSION, ranges.size());
+        ctx.deleteShards(ExportTable.DETAILS, ranges.size());
+    }
+
+    //
+    // part is the shard number of the range, or -1 when the range is exported
+    // straight into the table files
+    //
+    private void exportRange(IdRange range, int part) throws Exception {
+        ExportCursor cursor = new ExportCursor(ctx, part < 0 ? TASK_NAME : TASK_NAME + ".part-" + part);
+        if (cursor.isDone()) {
+            return;
+        }
+
+        RowWriter csvFileWriter, detailsWriter;
+        if (part < 0) {
+            csvFileWriter = cursor.openWriter(ExportTable.ACCESSION, getHeader());
+            detailsWriter = cursor.openWriter(ExportTable.DETAILS, SpecimenExport.getHeader());
+        } else {
+            csvFileWriter = cursor.openWriter(ExportTable.ACCESSION, part);
+            detailsWriter = cursor.openWriter(ExportTable.DETAILS, part);
+        }
+
+        SpecimenExport specimenExport = new SpecimenExport(detailsWriter, format);
+        RowBuffer row = new RowBuffer(ExportTable.ACCESSION.getColumns().size());
+        try {
+            //
+            // a resumed range continues after the last registration of its last checkpoint
+            //
+            Long lastId = cursor.getPosition();
+            Long firstId = (lastId != null) ? lastId + 1 : range.getFirstId();
+            if (range.getIds() != null) {
+                exportChangedParticipants(cursor, row, csvFileWriter, specimenExport, range.getIdsFrom(firstId));
+            } else {
+                exportAllParticipants(cursor, row, csvFileWriter, specimenExport, firstId, range.getLastId());
+            }
+
+            cursor.completed();
         } finally {
             IOUtils.closeQuietly(csvFileWriter);
-            IOUtils.closeQuietly(specimenExport.getCsvFileWriter());
+            IOUtils.closeQuietly(specimenExport.getWriter());
         }
     }
-    
-    private Map<String, String> getCustomFieldValueMap(BaseExtensionEntity obj) {
-    	return obj.getExtension().getAttrs().stream().collect(
-    			Collectors.toMap(
-    				attr -> attr.getCaption(),
-    				attr -> attr.getDisplayValue(""),
-    				(v1, v2) -> {throw new IllegalStateException("Duplicate key");},
-    				LinkedHashMap::new)
-    			);
+
+    private void exportAllParticipants(ExportCursor cursor, RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport, Long firstId, Long rangeEndId) throws Exception {
+        boolean endOfParticipants = false;
+        Long lastId = firstId - 1;
+        AdaptivePageSize pageSize = AdaptivePageSize.forCprs();
+
+        while (!endOfParticipants) {
+            ctx.ensureNotCancelled();
+            int maxRecs = pageSize.get();
+            List<CollectionProtocolRegistration> cprs = exportParticipants(row, csvFileWriter, specimenExport, lastId, rangeEndId, pageSize);
+
+            if (!cprs.isEmpty()) {
+            	lastId = cprs.get(cprs.size()-1).getId();
+            }
+
+            cursor.pageCompleted(lastId);
+            endOfParticipants = (cprs.size() < maxRecs) || (rangeEndId != null && lastId >= rangeEndId);
+        }
     }
-    
-    private CsvFileWriter getCSVWriter() {
-    	String exportFolder = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-        File file = new File(ConfigUtil.getInstance().getDataDir() + File.separatorChar + exportFolder, "Accession" + ".csv");
-        return CsvFileWriter.createCsvFileWriter(file);
+
+    private void exportChangedParticipants(ExportCursor cursor, RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport, List<Long> cprIds) throws Exception {
+        AdaptivePageSize pageSize = AdaptivePageSize.forCprs();
+
+        for (int startAt = 0; startAt < cprIds.size(); ) {
+            ctx.ensureNotCancelled();
+            List<Long> pageIds = cprIds.subList(startAt, Math.min(startAt + pageSize.get(), cprIds.size()));
+            exportParticipants(row, csvFileWriter, specimenExport, pageIds, pageSize);
+
+            cursor.pageCompleted(pageIds.get(pageIds.size() - 1));
+            startAt += pageIds.size();
+        }
     }
-    
-    private static List<String> splitToMultiple(String inputString, int maxSize, String delimiter) {
-    	if (inputString == null) {
-            inputString = "";
-    	}
-    	
-    	String[] maxSizeBufferArray = new String[maxSize];
-    	String[] splittedArray = inputString.split(delimiter);
-    	List<String> multipleAttrs = new ArrayList<>();
-    	int i = 0;
-	    
-	while (i < maxSize) {
-	    if (i < splittedArray.length) {
-	    	maxSizeBufferArray[i] = splittedArray[i];
-	    } else {
-	    	maxSizeBufferArray[i] = "";
-	    }
-	    i++;
-	}
-	    
-    	for (String site : maxSizeBufferArray) {
-    		multipleAttrs.add(site);
-    	}
-    	
-    	return multipleAttrs;
+
+    @PlusTransactional
+    private Object[] getCprIdBounds() {
+        return (Object[]) sessionFactory.getCurrentSession()
+            .createQuery(GET_CPR_ID_BOUNDS_HQL)
+            .uniqueResult();
     }
-    
+
     ///////////////////
     //
     // Collection Protocol Registrations
@@ -119,15 +265,87 @@ public class ParticipantExport implements ScheduledTask {
     ///////////////////
 
     @PlusTransactional
-    private List<CollectionProtocolRegistration> exportParticipants(CsvFileWriter csvFileWriter, SpecimenExport specimenExport, Long lastId, int maxRecs) throws IOException {
-    	CprListCriteria cprListCriteria = new CprListCriteria().lastId(lastId).maxResults(maxRecs);
+    private List<CollectionProtocolRegistration> exportParticipants(RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport, Long lastId, Long rangeEndId, AdaptivePageSize pageSize) throws IOException {
+    	CprListCriteria cprListCriteria = new CprListCriteria().lastId(lastId).maxResults(pageSize.get());
+        long startTime = System.nanoTime();
     	List<CollectionProtocolRegistration> cprs = daoFactory.getCprDao().getCprs(cprListCriteria);
-        
-        cprs.forEach(cpr -> processCpr(cpr, csvFileWriter, specimenExport));
-        
-        csvFileWriter.flush();
+        long fetchNanos = System.nanoTime() - startTime;
+        ctx.getMetrics().recordLatency("getCprs", fetchNanos);
+
+        List<CollectionProtocolRegistration> rangeCprs = cprs.stream()
+            .filter(cpr -> rangeEndId == null || cpr.getId() <= rangeEndId)
+            .collect(Collectors.toList());
+        exportCprs(rangeCprs, row, csvFileWriter, specimenExport, pageSize, cprs.size(), fetchNanos);
         return cprs;
     }
+
+    @PlusTransactional
+    private List<CollectionProtocolRegistration> exportParticipants(RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport, List<Long> cprIds, AdaptivePageSize pageSize) throws IOException {
+        long startTime = System.nanoTime();
+        List<CollectionProtocolRegistration> cprs = daoFactory.getCprDao().getByIds(cprIds).stream()
+            .filter(cpr -> !Status.ACTIVITY_STATUS_DISABLED.getStatus().equals(cpr.getActivityStatus()))
+            .sorted(Comparator.comparing(CollectionProtocolRegistration::getId))
+            .collect(Collectors.toList());
+        long fetchNanos = System.nanoTime() - startTime;
+        ctx.getMetrics().recordLatency("getCprsByIds", fetchNanos);
+
+        exportCprs(cprs, row, csvFileWriter, specimenExport, pageSize, cprIds.size(), fetchNanos);
+        return cprs;
+    }
+
+    //
+    // The page is sized by the time it took to fetch: the query and the prefetch
+    // of the graphs, not the writing of the rows
+    //
+    private void exportCprs(List<CollectionProtocolRegistration> cprs, RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport,
+        AdaptivePageSize pageSize, int fetched, long fetchNanos) throws IOException {
+        ExportMetrics metrics = ctx.getMetrics();
+        long startTime = System.nanoTime();
+        if (prefetchGraph) {
+            graphPrefetcher.prefetch(cprs);
+            long prefetchNanos = System.nanoTime() - startTime;
+            metrics.recordLatency("prefetchCprGraph", prefetchNanos);
+            fetchNanos += prefetchNanos;
+        }
+
+        pageSize.pageCompleted(fetched, fetchNanos);
+
+        int evictedUpTo = 0;
+        Map<Long, Integer> lastCprOfParticipant = null;
+        for (int i = 0; i < cprs.size(); ++i) {
+            processCpr(cprs.get(i), row, csvFileWriter, specimenExport);
+
+            if (contextGuard.isOverCap()) {
+                if (lastCprOfParticipant == null) {
+                    lastCprOfParticipant = getLastCprOfParticipants(cprs);
+                }
+
+                while (evictedUpTo <= i) {
+                    CollectionProtocolRegistration cpr = cprs.get(evictedUpTo++);
+                    contextGuard.evict(cpr, lastCprOfParticipant.get(cpr.getParticipant().getId()) <= i);
+                }
+            }
+        }
+
+        //
+        // the graphs of the registrations not evicted are still in the session
+        //
+        pageSize.recordGraphSize(cprs.size() - evictedUpTo, contextGuard.getEntityCount());
+        contextGuard.clear();
+        metrics.recordLatency("processCprPage", System.nanoTime() - startTime);
+    }
+
+    //
+    // Position of the last registration of each participant on the page
+    //
+    private Map<Long, Integer> getLastCprOfParticipants(List<CollectionProtocolRegistration> cprs) {
+        Map<Long, Integer> result = new HashMap<>();
+        for (int i = 0; i < cprs.size(); ++i) {
+            result.put(cprs.get(i).getParticipant().getId(), i);
+        }
+
+        return result;
+    }
     
     ///////////////////
     //
@@ -135,16 +353,21 @@ public class ParticipantExport implements ScheduledTask {
     //
     ///////////////////
 
-    private void processCpr(CollectionProtocolRegistration cpr, CsvFileWriter csvFileWriter, SpecimenExport specimenExport) {
-    	List<String> props = new ArrayList<>();
-    	
-    	props.add(cpr.getParticipant().getEmpi());
-    	props.add((String) (getCustomFieldValueMap(cpr.getParticipant()).getOrDefault("Darwin ID", "")));
+    private void processCpr(CollectionProtocolRegistration cpr, RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport) {
+    	row.clear();
+    	row.add("cpr-" + cpr.getId());
+    	row.add(null);
+    	row.add(cpr.getParticipant().getEmpi());
+    	participantFields.appendTo(cpr.getParticipant(), format, row);
     	
     	if (!cpr.getVisits().isEmpty()) {
-            cpr.getVisits().forEach(visit -> processVisit(visit, props, csvFileWriter, specimenExport));
+    	    int visitStart = row.position();
+    	    for (Visit visit : cpr.getVisits()) {
+    	        row.truncate(visitStart);
+    	        processVisit(visit, row, csvFileWriter, specimenExport);
+    	    }
     	} else {
-            csvFileWriter.writeNext(props.toArray(new String[props.size()]));
+            csvFileWriter.writeNext(row.toRow());
     	}
     }
     
@@ -154,72 +377,78 @@ public class ParticipantExport implements ScheduledTask {
     //
     ///////////////////
 
-    private void processVisit(Visit visit, List<String> visitProps, CsvFileWriter csvFileWriter, SpecimenExport specimenExport) {
-    	ArrayList<String> props = populateVisit(visit, visitProps);
+    private void processVisit(Visit visit, RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport) {
+    	populateVisit(visit, row);
 	
     	if (!visit.getTopLevelSpecimens().isEmpty()) {
     	    Set<Specimen> specimenList = visit.getTopLevelSpecimens();
-    	    handleSpecimens(specimenList, props, csvFileWriter, specimenExport);
+    	    handleSpecimens(specimenList, row, csvFileWriter, specimenExport);
     	} else {
-       	    csvFileWriter.writeNext(props.toArray(new String[props.size()]));
+    	    row.set(ExportTable.ROW_KEY, "visit-" + visit.getId());
+       	    csvFileWriter.writeNext(row.toRow());
     	}
     }
     
-    private void handleSpecimens(Set<Specimen> specimenList, List<String> specimenProps, CsvFileWriter csvFileWriter, SpecimenExport specimenExport) {
-    	
-    	for (Specimen specimen : specimenList) {
+    //
+    // Walks the specimen tree depth first, in the same order as a recursive walk would,
+    // using an explicit stack of child iterators. Every level carries the nearest primary
+    // specimen above it, so the aliquot rows get their primary specimen without walking
+    // back up the parent chain.
+    //
+    private void handleSpecimens(Set<Specimen> specimenList, RowBuffer row, RowWriter csvFileWriter, SpecimenExport specimenExport) {
+    	int specimenStart = row.position();
+    	Deque<SpecimenLevel> levels = new ArrayDeque<>();
+    	levels.push(new SpecimenLevel(specimenList.iterator(), null));
+
+    	while (!levels.isEmpty()) {
+	    	SpecimenLevel level = levels.peek();
+	    	if (!level.specimens.hasNext()) {
+	    		levels.pop();
+	    		continue;
+	    	}
+
+	    	Specimen specimen = level.specimens.next();
 	    	if (specimen.isPrimary()) {
-	    		ArrayList<String> props = new ArrayList<>(specimenProps);
-	    		processSpecimen(specimen, props, csvFileWriter);
+	    		row.truncate(specimenStart);
+	    		processSpecimen(specimen, row, csvFileWriter);
 	    	} else if (specimen.isAliquot()) {
-	    		specimenExport.exportSpecimens(specimen);
+	    		specimenExport.exportSpecimens(specimen, level.primarySpecimen);
 	    	}
-	    	
-	    	if (specimen.getChildCollection().isEmpty()) {
-	    		continue;
-	    	} else {
-	    		handleSpecimens(specimen.getChildCollection(), specimenProps, csvFileWriter, specimenExport);
+
+	    	if (!specimen.getChildCollection().isEmpty()) {
+	    		Specimen primarySpecimen = specimen.isPrimary() ? specimen : level.primarySpecimen;
+	    		levels.push(new SpecimenLevel(specimen.getChildCollection().iterator(), primarySpecimen));
 	    	}
     	}
     }
+
+    private static class SpecimenLevel {
+    	private final Iterator<Specimen> specimens;
+
+    	private final Specimen primarySpecimen;
+
+    	SpecimenLevel(Iterator<Specimen> specimens, Specimen primarySpecimen) {
+    		this.specimens = specimens;
+    		this.primarySpecimen = primarySpecimen;
+    	}
+    }
     
-    private ArrayList<String> populateVisit(Visit visit, List<String> visitProps) {
-    	ArrayList<String> props = new ArrayList<String>(visitProps);
-		    	
-    	props.add(visit.getName());
-    	props.add(visit.getVisitDate().toString()); 
-    	props.add(getSiteName(visit));
-    	props.add(getClinicalDiagnoses(visit));
-    	props.add(visit.getSurgicalPathologyNumber()); 
-    	props.add(visit.getComments());
-    	props.addAll(getCustomField(visit));
-		
-    	return props;
+    private void populateVisit(Visit visit, RowBuffer row) {
+    	row.add(visit.getName());
+    	row.add(format.format(visit.getVisitDate())); 
+    	row.add(getSiteName(visit));
+    	row.add(getClinicalDiagnoses(visit));
+    	row.add(visit.getSurgicalPathologyNumber()); 
+    	row.add(visit.getComments());
+    	visitFields.appendTo(visit, format, row);
     }
     
     private String getSiteName(Visit visit) {
-    	return visit.getSite() != null ? visit.getSite().getName() : "";
+    	return visit.getSite() != null ? visit.getSite().getName() : format.missing();
     }
     
     private String getClinicalDiagnoses(Visit visit) {
-    	return visit.getClinicalDiagnoses().isEmpty() ? "" : visit.getClinicalDiagnoses().iterator().next();
-    }
-    
-    private List<String> getCustomField(Visit visit) {
-    	ArrayList<String> row = new ArrayList<String>();
-    	Map<String, String> customFieldValueMap = getCustomFieldValueMap(visit);
-    	
-    	row.add((String) (customFieldValueMap.getOrDefault("Diagnosis Notes","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Operation Date","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Path Date","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Surgeon Name","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Specimen Description","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("NUN (N)","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("NUN (T)","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("OCT (N)","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("OCT (T)","")));
-    	
-    	return row;
+    	return visit.getClinicalDiagnoses().isEmpty() ? format.missing() : visit.getClinicalDiagnoses().iterator().next();
     }
     
     ///////////////////
@@ -228,51 +457,43 @@ public class ParticipantExport implements ScheduledTask {
     //
     ///////////////////
 	
-    private void processSpecimen(Specimen specimen, List<String> specimenProps, CsvFileWriter csvFileWriter) {
-    	ArrayList<String> props = populateSpecimen(specimen, specimenProps);
+    private void processSpecimen(Specimen specimen, RowBuffer row, RowWriter csvFileWriter) {
+    	populateSpecimen(specimen, row);
+    	row.set(ExportTable.ROW_KEY, "specimen-" + specimen.getId());
 
-    	csvFileWriter.writeNext(props.toArray(new String[props.size()]));
+    	csvFileWriter.writeNext(row.toRow());
     }
 
-    private ArrayList<String> populateSpecimen(Specimen specimen, List<String> specimenProps) {
-    	ArrayList<String> props = new ArrayList<String>(specimenProps);
-    	
-    	props.add(specimen.getLabel());
-    	props.add(specimen.getSpecimenType());
-    	props.addAll(getMultipleAnatomicSites(specimen));
-    	props.add(specimen.getTissueSide());
-    	props.add(specimen.getPathologicalStatus());
-    	props.add(specimen.getComment());
-    	props.add(specimen.getCollRecvDetails().getCollTime().toString());
-    	props.add(specimen.getCollRecvDetails().getRecvTime().toString());
-    	props.addAll(getCustomField(specimen));
-
-    	return props;
+    private void populateSpecimen(Specimen specimen, RowBuffer row) {
+    	row.add(specimen.getLabel());
+    	row.add(specimen.getSpecimenType());
+    	row.addSplit(specimen.getTissueSite(), '/', 3, format);
+    	row.add(specimen.getTissueSide());
+    	row.add(specimen.getPathologicalStatus());
+    	row.add(specimen.getComment());
+    	row.add(format.format(specimen.getCollRecvDetails().getCollTime()));
+    	row.add(format.format(specimen.getCollRecvDetails().getRecvTime()));
+    	addCustomFields(specimen, row);
     }
     
-    private List<String> getMultipleAnatomicSites(Specimen specimen) {
-    	return splitToMultiple(specimen.getTissueSite(), 3, "/");
-    }
-    
-    private List<String> getCustomField(Specimen specimen) {
-    	ArrayList<String> row = new ArrayList<String>();
-    	Map<String, String> customFieldValueMap = getCustomFieldValueMap(specimen);
-    	
-    	row.add((String) (customFieldValueMap.getOrDefault("Part Number","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Part Sub Number","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Biobank Technician","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Accessioning Temperature Condition","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Biobank Temperature","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Location","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Accessioned Time","")));
-    	row.addAll(splitToMultiple(customFieldValueMap.getOrDefault("Histology Data",""), 4, "/"));
-    	row.add((String) (customFieldValueMap.getOrDefault("Harvestor","")));
-    	
-    	return row;
+    private void addCustomFields(Specimen specimen, RowBuffer row) {
+    	CustomFieldProjection.Values values = specimenFields.of(specimen, format);
+    	values.appendTo(row, 0, HISTOLOGY_DATA);
+    	row.addSplit(values.get(HISTOLOGY_DATA), '/', 4, format);
+    	values.appendTo(row, HISTOLOGY_DATA + 1, specimenFields.size());
     }
     
+    private static final String RANGES_KEY = TASK_NAME + ".ranges";
+
+    private static final String GET_CPR_ID_BOUNDS_HQL =
+        "select min(cpr.id), max(cpr.id) from " + CollectionProtocolRegistration.class.getName() + " cpr " +
+        "where cpr.activityStatus != 'Disabled'";
+
     private String[] getHeader() {
         return new String[] {
+                "ROW_KEY",
+                "ROW_HASH",
+
                 // Participant Headers
         	"TBA_CRDB_MRN",
                 "TBA_PT_DEIDENTIFICATION_ID",
@@ -0,0 +1,95 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import org.hibernate.Hibernate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Configurable;
+
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrder;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionOrderItem;
+import com.krishagni.catissueplus.core.administrative.domain.DistributionProtocol;
+import com.krishagni.catissueplus.core.administrative.domain.DpRequirement;
+import com.krishagni.catissueplus.core.biospecimen.domain.CollectionProtocolRegistration;
+import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
+import com.krishagni.catissueplus.core.biospecimen.domain.Visit;
+
+//
+// Keeps the Hibernate session of the export from growing with the size of the
+// biobank. The session is cleared after every page and, within a page, the
+// graphs of the records already exported are evicted once the number of
+// managed entities crosses the configured cap.
+//
+@Configurable
+public class PersistenceContextGuard {
+	@Autowired
+	private SessionFactory sessionFactory;
+
+	private final int maxEntities;
+
+	public PersistenceContextGuard(int maxEntities) {
+		this.maxEntities = maxEntities;
+	}
+
+	public void clear() {
+		getSession().clear();
+	}
+
+	public boolean isOverCap() {
+		return getEntityCount() > maxEntities;
+	}
+
+	public int getEntityCount() {
+		return getSession().getStatistics().getEntityCount();
+	}
+
+	//
+	// The participant is left in the session when a registration not exported yet
+	// belongs to it too, as evicting it would detach it from that registration
+	//
+	public void evict(CollectionProtocolRegistration cpr, boolean evictParticipant) {
+		Session session = getSession();
+		for (Visit visit : cpr.getVisits()) {
+			for (Specimen specimen : visit.getSpecimens()) {
+				session.evict(specimen);
+			}
+
+			session.evict(visit);
+		}
+
+		if (evictParticipant) {
+			session.evict(cpr.getParticipant());
+		}
+
+		session.evict(cpr);
+	}
+
+	public void evict(DistributionProtocol dp) {
+		Session session = getSession();
+		for (DpRequirement requirement : dp.getRequirements()) {
+			session.evict(requirement);
+		}
+
+		//
+		// the orders are not loaded when their items are exported on their own
+		//
+		if (!Hibernate.isInitialized(dp.getDistributionOrders())) {
+			session.evict(dp);
+			return;
+		}
+
+		for (DistributionOrder order : dp.getDistributionOrders()) {
+			for (DistributionOrderItem item : order.getOrderItems()) {
+				session.evict(item);
+			}
+
+			session.evict(order);
+		}
+
+		session.evict(dp);
+	}
+
+	private Session getSession() {
+		return sessionFactory.getCurrentSession();
+	}
+}
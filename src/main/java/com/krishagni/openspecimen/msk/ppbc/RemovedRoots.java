@@ -0,0 +1,60 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//
+// Root records (CPRs and DPs) changed since their rows were last exported that
+// are now disabled or gone. They export no rows, so the deletes of a delta merge
+// or a change batch, which are scoped by the freshly exported rows, never reach
+// their live rows. Those are deleted by the keys the exporters gave them: the
+// registration, visit and specimen keys of the accessions and details, and the
+// DP key of the request, whose short title then scopes the other DP rows.
+//
+// The visits and specimens of a disabled registration are still in the database.
+// Of a registration purged from it, only the row of a registration without visits
+// is found; its other rows stay until the next full export run.
+//
+public class RemovedRoots {
+	private static final RemovedRoots NONE = new RemovedRoots(Collections.emptyList(), Collections.emptyList());
+
+	private final List<String> cprKeys;
+
+	private final List<String> dpKeys;
+
+	private RemovedRoots(List<String> cprKeys, List<String> dpKeys) {
+		this.cprKeys = cprKeys;
+		this.dpKeys = dpKeys;
+	}
+
+	public static RemovedRoots none() {
+		return NONE;
+	}
+
+	//
+	// The removed ones among the given changed roots
+	//
+	public static RemovedRoots of(List<Long> changedCprIds, List<Long> changedDpIds) {
+		ExportChangeTracker tracker = new ExportChangeTracker();
+		List<String> cprKeys = tracker.getCprRowKeys(tracker.getRemovedCprIds(changedCprIds));
+
+		List<String> dpKeys = new ArrayList<>();
+		tracker.getRemovedDpIds(changedDpIds).forEach(dpId -> dpKeys.add("dp-" + dpId));
+		return new RemovedRoots(cprKeys, dpKeys);
+	}
+
+	//
+	// Statements deleting the live rows of the removed roots from the table
+	//
+	public List<String> getDeleteSql(ExportTable table) {
+		switch (table) {
+			case ACCESSION:
+			case DETAILS:
+				return ShadowTables.getDeleteByKeysSql(table, cprKeys);
+
+			default:
+				return ShadowTables.getDeleteByKeysSql(table, dpKeys);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.util.Arrays;
+
+//
+// Reusable, pre-sized column buffer for assembling export rows. Columns shared
+// by a run of rows, like the participant and visit columns of the specimen rows,
+// are written once; every row then rewinds to the end of the shared columns and
+// writes only its own. A full row is handed to the writer without copying, so
+// the writers must not hold on to a row after writeNext returns.
+//
+public class RowBuffer {
+	private String[] values;
+
+	private int size;
+
+	public RowBuffer(int columns) {
+		this.values = new String[columns];
+	}
+
+	public int position() {
+		return size;
+	}
+
+	//
+	// Drops the columns written after the given position
+	//
+	public void truncate(int position) {
+		size = position;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public RowBuffer add(String value) {
+		if (size == values.length) {
+			values = Arrays.copyOf(values, values.length * 2);
+		}
+
+		values[size++] = value;
+		return this;
+	}
+
+	//
+	// Overwrites a column already written, like the key of a row that is known
+	// only once its last columns are
+	//
+	public RowBuffer set(int position, String value) {
+		values[position] = value;
+		return this;
+	}
+
+	//
+	// Adds the first "parts" delimited parts of the value as separate columns,
+	// padding with missing values when the value has fewer parts
+	//
+	public RowBuffer addSplit(String value, char delimiter, int parts, ExportFormat format) {
+		int start = 0;
+		for (int i = 0; i < parts; ++i) {
+			if (value == null || start > value.length()) {
+				add(format.missing());
+				continue;
+			}
+
+			int end = value.indexOf(delimiter, start);
+			if (end < 0) {
+				end = value.length();
+			}
+
+			add(format.orMissing(value.substring(start, end)));
+			start = end + 1;
+		}
+
+		return this;
+	}
+
+	//
+	// The row as written so far. Shares the buffer when the row is full width,
+	// so it is valid only until the buffer is written again.
+	//
+	public String[] toRow() {
+		return size == values.length ? values : Arrays.copyOf(values, size);
+	}
+
+	public String[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+}
@@ -0,0 +1,76 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+//
+// Fills in the hash column of the rows before they reach the writer: the MD5
+// of the columns after the hash, each followed by a separator. Missing and
+// null columns hash like empty ones, so a row is hashed the same whether or
+// not its trailing empty columns were written. The hash is set in the
+// caller's row, whose hash column is not otherwise used.
+//
+public class RowHashWriter implements RowWriter {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private static final byte SEPARATOR = 0x1f;
+
+	private final RowWriter writer;
+
+	private final int numColumns;
+
+	private final MessageDigest digest;
+
+	private final char[] hex = new char[32];
+
+	public RowHashWriter(RowWriter writer, ExportTable table) {
+		this.writer = writer;
+		this.numColumns = table.getColumns().size();
+
+		try {
+			this.digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("MD5 is not available", e);
+		}
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		for (int i = ExportTable.ROW_HASH + 1; i < numColumns; ++i) {
+			if (i < row.length && row[i] != null) {
+				digest.update(row[i].getBytes(StandardCharsets.UTF_8));
+			}
+
+			digest.update(SEPARATOR);
+		}
+
+		row[ExportTable.ROW_HASH] = toHex(digest.digest());
+		writer.writeNext(row);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	@Override
+	public long checkpoint() throws IOException {
+		return writer.checkpoint();
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	private String toHex(byte[] bytes) {
+		for (int i = 0; i < bytes.length; ++i) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+}
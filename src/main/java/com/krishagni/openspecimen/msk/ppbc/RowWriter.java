@@ -0,0 +1,31 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+
+public interface RowWriter extends Closeable, Flushable {
+	//
+	// The row array may be reused by the caller once this returns
+	//
+	void writeNext(String[] row);
+
+	//
+	// Makes everything written so far durable and returns the size of the output
+	// at this point, the bytes of a file or the files of a dataset, or -1 when the
+	// writer has no output to resume
+	//
+	default long checkpoint() throws IOException {
+		flush();
+		return -1L;
+	}
+
+	//
+	// False while a checkpoint would cost the output more than it is worth, like a
+	// Parquet file that would be closed before it holds a full row group. The
+	// cursor puts off its periodic checkpoints until all its writers are ready.
+	//
+	default boolean isReadyForCheckpoint() {
+		return true;
+	}
+}
@@ -0,0 +1,359 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// Every run loads into shadow copies of the target tables. Once all of them
+// are loaded, the shadow rows are merged into the live tables in a single
+// transaction, so readers either see the previous dataset or the new one,
+// never a partially loaded table. The rows are matched by their keys: rows
+// whose hash is unchanged are not written at all, changed rows are updated
+// and new rows inserted. A full run also deletes the live rows it did not
+// export. A delta run exports only the changed records; of the live rows of
+// those records, the ones whose keys were not exported again are deleted and
+// the rows of the other records are left as they are. The changed roots that
+// were disabled or deleted export nothing; their live rows are deleted by key
+// in the same transaction (see RemovedRoots).
+//
+// The shadow tables have no secondary indexes to maintain while they are
+// loaded. A live table most of whose rows are rewritten has its secondary
+// indexes dropped for the merge and rebuilt once it is committed.
+//
+public class ShadowTables {
+	private static final Log logger = LogFactory.getLog(ShadowTables.class);
+
+	//
+	// The details are found through the live accessions, so their rows go before those of the accessions
+	//
+	private static final ExportTable[] DELETE_ORDER = {
+		ExportTable.DETAILS,
+		ExportTable.ACCESSION,
+		ExportTable.SPECIMEN_REQUEST_DETAILS,
+		ExportTable.DISTRIBUTION,
+		ExportTable.SPECIMEN_REQUEST
+	};
+
+	private static final int DELETED = 0, UPDATED = 1, INSERTED = 2;
+
+	private static final int MAX_KEYS_PER_STMT = 500;
+
+	private final ExportTable[] tables;
+
+	private final boolean deleteMissing;
+
+	private RemovedRoots removedRoots = RemovedRoots.none();
+
+	public ShadowTables(ExportTable[] tables, boolean deleteMissing) {
+		this.tables = tables;
+		this.deleteMissing = deleteMissing;
+	}
+
+	//
+	// Root records of a delta run whose live rows go, as they export none
+	//
+	public void setRemovedRoots(RemovedRoots removedRoots) {
+		this.removedRoots = removedRoots;
+	}
+
+	public void prepare() {
+		TargetSchema schema = TargetSchema.getInstance();
+		schema.ensureTables(tables);
+		for (ExportTable table : tables) {
+			schema.createLoadTable(table, table.getShadowTableName());
+		}
+	}
+
+	public void merge() throws SQLException {
+		List<String> stmts = new ArrayList<>();
+		List<ExportTable> stmtTables = new ArrayList<>();
+		List<Integer> stmtKinds = new ArrayList<>();
+
+		List<ExportTable> toDelete = deleteMissing ? Arrays.asList(tables) : getDeleteOrder(Arrays.asList(tables));
+		for (ExportTable table : toDelete) {
+			stmts.add(deleteMissing ? getDeleteMissingSql(table, table.getShadowTableName()) : getDeleteRemovedSql(table, ExportTable::getShadowTableName));
+			stmtTables.add(table);
+			stmtKinds.add(DELETED);
+
+			if (!deleteMissing) {
+				for (String stmt : removedRoots.getDeleteSql(table)) {
+					stmts.add(stmt);
+					stmtTables.add(table);
+					stmtKinds.add(DELETED);
+				}
+			}
+		}
+
+		for (ExportTable table : tables) {
+			stmts.add(getUpdateChangedSql(table, table.getShadowTableName()));
+			stmtTables.add(table);
+			stmtKinds.add(UPDATED);
+
+			stmts.add(getInsertNewSql(table, table.getShadowTableName()));
+			stmtTables.add(table);
+			stmtKinds.add(INSERTED);
+		}
+
+		Map<ExportTable, List<TargetSchema.Index>> droppedIndexes = dropIndexesOfLargeMerges();
+		try {
+			int[] counts = execute(stmts);
+			logger.info("Merged the freshly loaded rows into the export tables, " + getSummary(stmtTables, stmtKinds, counts));
+		} finally {
+			rebuildIndexes(droppedIndexes);
+		}
+
+		for (ExportTable table : tables) {
+			TargetDatabase.execute("DROP TABLE IF EXISTS " + table.getShadowTableName());
+		}
+	}
+
+	//
+	// The indexes are dropped outside of the merge transaction, as ALTER TABLE commits
+	//
+	private Map<ExportTable, List<TargetSchema.Index>> dropIndexesOfLargeMerges() {
+		Map<ExportTable, List<TargetSchema.Index>> dropped = new LinkedHashMap<>();
+
+		int rebuildPct = ExportConfig.getIndexRebuildPct();
+		if (rebuildPct == 0) {
+			return dropped;
+		}
+
+		TargetSchema schema = TargetSchema.getInstance();
+		for (ExportTable table : tables) {
+			long liveRows = schema.getEstimatedRows(table);
+			long changedRows = countChangedRows(table);
+			if (changedRows > 0 && changedRows * 100 >= liveRows * rebuildPct) {
+				logger.info("Merging " + changedRows + " rows into " + table.getTableName() + " of about " + liveRows +
+					" rows; its indexes are rebuilt after the merge");
+				dropped.put(table, schema.dropIndexes(table));
+			}
+		}
+
+		return dropped;
+	}
+
+	//
+	// A failed rebuild leaves the table usable, only slower to query; the next
+	// run creates the missing indexes again
+	//
+	private void rebuildIndexes(Map<ExportTable, List<TargetSchema.Index>> droppedIndexes) {
+		TargetSchema schema = TargetSchema.getInstance();
+		for (Map.Entry<ExportTable, List<TargetSchema.Index>> dropped : droppedIndexes.entrySet()) {
+			try {
+				schema.rebuildIndexes(dropped.getKey(), dropped.getValue());
+			} catch (Exception e) {
+				logger.error("Error rebuilding the indexes of " + dropped.getKey().getTableName(), e);
+			}
+		}
+	}
+
+	//
+	// Shadow rows the merge inserts or updates
+	//
+	private long countChangedRows(ExportTable table) {
+		return TargetDatabase.queryForList(
+			"SELECT COUNT(*) FROM " + table.getShadowTableName() + " s " +
+			"LEFT JOIN " + table.getTableName() + " t ON t.ROW_KEY = s.ROW_KEY " +
+			"WHERE t.ROW_KEY IS NULL OR t.ROW_HASH <> s.ROW_HASH",
+			Long.class).get(0);
+	}
+
+	//
+	// Runs the statements in one transaction and returns the rows changed by each
+	//
+	static int[] execute(List<String> stmts) throws SQLException {
+		int[] counts = new int[stmts.size()];
+
+		Connection conn = TargetDatabase.getConnection();
+		try {
+			conn.setAutoCommit(false);
+
+			Statement stmt = conn.createStatement();
+			try {
+				for (int i = 0; i < stmts.size(); ++i) {
+					counts[i] = stmt.executeUpdate(stmts.get(i));
+				}
+			} finally {
+				stmt.close();
+			}
+
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(true);
+			conn.close();
+		}
+
+		return counts;
+	}
+
+	//
+	// Live rows whose keys are not among the given rows
+	//
+	static String getDeleteMissingSql(ExportTable table, String sourceTable) {
+		return "DELETE t FROM " + table.getTableName() + " t " +
+			"LEFT JOIN " + sourceTable + " s ON s.ROW_KEY = t.ROW_KEY " +
+			"WHERE s.ROW_KEY IS NULL";
+	}
+
+	//
+	// The given tables in the order their scoped deletes have to run in
+	//
+	static List<ExportTable> getDeleteOrder(Collection<ExportTable> tables) {
+		List<ExportTable> result = new ArrayList<>();
+		for (ExportTable table : DELETE_ORDER) {
+			if (tables.contains(table)) {
+				result.add(table);
+			}
+		}
+
+		return result;
+	}
+
+	//
+	// Live rows of the records the given rows were exported for, whose keys are
+	// not among them. The records are found by the columns the rows share with
+	// the live ones: the MRN or visit name of the accessions, the parent specimen
+	// labels of their details and the source request of the DP rows. sources maps
+	// a table to the one its freshly exported rows are in.
+	//
+	static String getDeleteRemovedSql(ExportTable table, Function<ExportTable, String> sources) {
+		String scope;
+		switch (table) {
+			case ACCESSION:
+				scope = getLiveAccessions(sources);
+				break;
+
+			case DETAILS:
+				scope = "PARENT_SPECIMEN_LABEL IN (" +
+					"SELECT PARENT_SPECIMEN_LABEL FROM " + ExportTable.ACCESSION.getTableName() + " WHERE " + getLiveAccessions(sources) + " " +
+					"UNION " +
+					"SELECT PARENT_SPECIMEN_LABEL FROM " + sources.apply(ExportTable.ACCESSION) + ")";
+				break;
+
+			case SPECIMEN_REQUEST:
+				scope = "TBR_SOURCE_REQUEST IN (" + getExportedRequests(sources) + ")";
+				break;
+
+			case SPECIMEN_REQUEST_DETAILS:
+				scope = "TBRD_SOURCE_REQUEST IN (" + getExportedRequests(sources) + ")";
+				break;
+
+			case DISTRIBUTION:
+				scope = "TBDS_SOURCE_REQUEST IN (" + getExportedRequests(sources) + ")";
+				break;
+
+			default:
+				throw new IllegalArgumentException("No scope to delete the rows of " + table.getTableName() + " in");
+		}
+
+		return "DELETE FROM " + table.getTableName() + " WHERE " + scope + " " +
+			"AND ROW_KEY NOT IN (SELECT ROW_KEY FROM " + sources.apply(table) + ")";
+	}
+
+	//
+	// Live rows of the root records with the given keys, a statement for every few
+	// hundred keys. The DP rows other than the requests are found by the short
+	// title of the live request row of their DP, so they go before the requests.
+	//
+	static List<String> getDeleteByKeysSql(ExportTable table, List<String> rootKeys) {
+		List<String> stmts = new ArrayList<>();
+		for (int i = 0; i < rootKeys.size(); i += MAX_KEYS_PER_STMT) {
+			String keys = "'" + StringUtils.join(rootKeys.subList(i, Math.min(i + MAX_KEYS_PER_STMT, rootKeys.size())), "', '") + "'";
+
+			String scope;
+			switch (table) {
+				case SPECIMEN_REQUEST_DETAILS:
+					scope = "TBRD_SOURCE_REQUEST IN (" + getRequestsByKeys(keys) + ")";
+					break;
+
+				case DISTRIBUTION:
+					scope = "TBDS_SOURCE_REQUEST IN (" + getRequestsByKeys(keys) + ")";
+					break;
+
+				default:
+					scope = "ROW_KEY IN (" + keys + ")";
+					break;
+			}
+
+			stmts.add("DELETE FROM " + table.getTableName() + " WHERE " + scope);
+		}
+
+		return stmts;
+	}
+
+	static String getUpdateChangedSql(ExportTable table, String sourceTable) {
+		List<String> assignments = new ArrayList<>();
+		for (ExportTable.Column column : table.getColumns()) {
+			if (!column.getName().equals("ROW_KEY")) {
+				assignments.add("t." + column.getName() + " = s." + column.getName());
+			}
+		}
+
+		return "UPDATE " + table.getTableName() + " t " +
+			"JOIN " + sourceTable + " s ON s.ROW_KEY = t.ROW_KEY " +
+			"SET " + StringUtils.join(assignments, ", ") + " " +
+			"WHERE t.ROW_HASH <> s.ROW_HASH";
+	}
+
+	static String getInsertNewSql(ExportTable table, String sourceTable) {
+		List<String> columns = new ArrayList<>();
+		table.getColumns().forEach(column -> columns.add(column.getName()));
+
+		return "INSERT INTO " + table.getTableName() + " (" + StringUtils.join(columns, ", ") + ") " +
+			"SELECT s." + StringUtils.join(columns, ", s.") + " FROM " + sourceTable + " s " +
+			"LEFT JOIN " + table.getTableName() + " t ON t.ROW_KEY = s.ROW_KEY " +
+			"WHERE t.ROW_KEY IS NULL";
+	}
+
+	//
+	// the live accessions of the exported participants and visits
+	//
+	private static String getLiveAccessions(Function<ExportTable, String> sources) {
+		String accessions = sources.apply(ExportTable.ACCESSION);
+		return "(TBA_CRDB_MRN IN (SELECT TBA_CRDB_MRN FROM " + accessions + " WHERE TBA_CRDB_MRN <> '') OR " +
+			"TBD_BANK_NUM IN (SELECT TBD_BANK_NUM FROM " + accessions + " WHERE TBD_BANK_NUM <> ''))";
+	}
+
+	private static String getExportedRequests(Function<ExportTable, String> sources) {
+		return "SELECT TBR_SOURCE_REQUEST FROM " + sources.apply(ExportTable.SPECIMEN_REQUEST);
+	}
+
+	private static String getRequestsByKeys(String keys) {
+		return "SELECT TBR_SOURCE_REQUEST FROM " + ExportTable.SPECIMEN_REQUEST.getTableName() + " WHERE ROW_KEY IN (" + keys + ")";
+	}
+
+	private String getSummary(List<ExportTable> stmtTables, List<Integer> stmtKinds, int[] counts) {
+		Map<ExportTable, int[]> tableCounts = new LinkedHashMap<>();
+		for (ExportTable table : tables) {
+			tableCounts.put(table, new int[3]);
+		}
+
+		for (int i = 0; i < counts.length; ++i) {
+			tableCounts.get(stmtTables.get(i))[stmtKinds.get(i)] += counts[i];
+		}
+
+		List<String> summary = new ArrayList<>();
+		for (Map.Entry<ExportTable, int[]> entry : tableCounts.entrySet()) {
+			int[] count = entry.getValue();
+			summary.add(entry.getKey().getTableName() + ": " + count[INSERTED] + " inserted, " + count[UPDATED] + " updated, " +
+				count[DELETED] + " deleted");
+		}
+
+		return StringUtils.join(summary, "; ");
+	}
+}
@@ -1,61 +1,79 @@
 package com.krishagni.openspecimen.msk.ppbc;
 
-import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Configurable;
 
-import com.krishagni.catissueplus.core.biospecimen.domain.BaseExtensionEntity;
 import com.krishagni.catissueplus.core.biospecimen.domain.Specimen;
-import com.krishagni.catissueplus.core.common.util.ConfigUtil;
-import com.krishagni.catissueplus.core.common.util.CsvFileWriter;
-import com.krishagni.catissueplus.core.common.util.Utility;
 
 @Configurable
 public class SpecimenExport {
-    private  CsvFileWriter csvFileWriter;
+    private  RowWriter csvFileWriter;
+
+    private final ExportFormat format;
+
+    private final CustomFieldProjection customFields = new CustomFieldProjection(
+        "Freshness Degree",
+        "Time Lapse",
+        "Unit Description",
+        "Special Handling Description",
+        "Is The Sample Sterile?",
+        "Biobank Technician",
+        "Additional Information",
+        "Additional Processing Date",
+        "Additional Processing Technician",
+        "Additional Processing Temperature"
+    );
+
+    private static final int TIME_LAPSE = 1;
+
+    private final RowBuffer row = new RowBuffer(ExportTable.DETAILS.getColumns().size());
    
-    public SpecimenExport() {
-    	this.csvFileWriter = getCSVWriter();
-    	this.csvFileWriter.writeNext(getHeader());
+    public SpecimenExport(RowWriter csvFileWriter) {
+    	this(csvFileWriter, ExportFormat.LEGACY);
+    }
+
+    public SpecimenExport(RowWriter csvFileWriter, ExportFormat format) {
+    	this.csvFileWriter = csvFileWriter;
+    	this.format = format;
     }
     
-    public CsvFileWriter getCsvFileWriter() {
+    public RowWriter getWriter() {
     	return this.csvFileWriter;
     }
     
     public void exportSpecimens(Specimen specimen) {
-	   csvFileWriter.writeNext(getRow(specimen));
+	   exportSpecimens(specimen, null);
     }
-    
-    private Map<String, String> getCustomFieldValueMap(BaseExtensionEntity obj) {
-    	return obj.getExtension().getAttrs().stream().collect(
-    			Collectors.toMap(
-    				attr -> attr.getCaption(),
-    				attr -> attr.getDisplayValue(""),
-    				(v1, v2) -> {throw new IllegalStateException("Duplicate key");},
-    				LinkedHashMap::new)
-    			);
-    }
-    
-    private CsvFileWriter getCSVWriter() {
-    	String exportFolder = new SimpleDateFormat("dd-MM-yyyy").format(new Date());
-        File file = new File(ConfigUtil.getInstance().getDataDir() + File.separatorChar + exportFolder, "Details" + ".csv");
-        return CsvFileWriter.createCsvFileWriter(file);
+
+    public void exportSpecimens(Specimen specimen, Specimen primarySpecimen) {
+	   csvFileWriter.writeNext(fillRow(specimen, primarySpecimen).toRow());
     }
     
     public String[] getRow(Specimen specimen) {
-    	List<String> row = new ArrayList<>();
-    	
-    	row.add(getPrimarySpecimen(specimen).getLabel());
+    	return getRow(specimen, null);
+    }
+
+    public String[] getRow(Specimen specimen, Specimen primarySpecimen) {
+    	return fillRow(specimen, primarySpecimen).toArray();
+    }
+
+    //
+    // primarySpecimen is the nearest primary ancestor of the specimen, when the caller
+    // already knows it; otherwise it is looked up through the parent chain
+    //
+    private RowBuffer fillRow(Specimen specimen, Specimen primarySpecimen) {
+    	if (primarySpecimen == null) {
+    	    primarySpecimen = getPrimarySpecimen(specimen);
+    	}
+
+    	row.clear();
+    	row.add("specimen-" + specimen.getId());
+    	row.add(null);
+    	row.add(primarySpecimen.getLabel());
     	row.add(specimen.getLabel());
     	row.add(specimen.getPathologicalStatus());
     	row.add(specimen.getSpecimenType());
@@ -63,24 +81,32 @@ public class SpecimenExport {
     	row.add(getSpecimenQuantity(specimen, "TBD_VOL"));
     	row.add(getSpecimenQuantity(specimen, "TBD_WEIGHT"));
     	row.add(getSpecimenCreatedOn(specimen));
-    	row.addAll(getCustomField(specimen));
+    	addCustomFields(specimen, primarySpecimen, row);
     	
-    	return row.toArray(new String[row.size()]);
+    	return row;
     }
     
     private Specimen getPrimarySpecimen(Specimen specimen) {
-    	if (specimen.getParentSpecimen().isPrimary()) {
-    		return specimen.getParentSpecimen();
+    	Specimen parent = specimen.getParentSpecimen();
+    	while (!parent.isPrimary()) {
+    		parent = parent.getParentSpecimen();
     	}
-    	
-    	return getPrimarySpecimen(specimen.getParentSpecimen());
+
+    	return parent;
     }
     
     private String getSequenceNumber(Specimen specimen) {
+    	//
+    	// second dot separated part of the label
+    	//
     	String specimenLabel = specimen.getLabel();
-    	String[] output = specimenLabel.split("\\.");
-   	     
-    	return output[1];
+    	int start = specimenLabel.indexOf('.') + 1;
+    	if (start == 0) {
+    	    return format.missing();
+    	}
+
+    	int end = specimenLabel.indexOf('.', start);
+    	return format.orMissing(specimenLabel.substring(start, end < 0 ? specimenLabel.length() : end));
     }
     
     private String getSpecimenQuantity(Specimen specimen, String columnName) {
@@ -95,29 +121,18 @@ public class SpecimenExport {
     }	
     
     private String getSpecimenCreatedOn(Specimen specimen) {
-    	return specimen.getCreatedOn() != null ? Utility.getDateTimeString(specimen.getCreatedOn()) : "";
+    	return format.formatDateTime(specimen.getCreatedOn());
     }
     
-    private List<String> getCustomField(Specimen specimen) {
-    	ArrayList<String> row = new ArrayList<String>();
-    	Map<String, String> customFieldValueMap = getCustomFieldValueMap(specimen);
-    	
-    	row.add((String) (customFieldValueMap.getOrDefault("Freshness Degree","")));
-    	row.add(getCalculatedTime(specimen, customFieldValueMap.getOrDefault("Time Lapse", "")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Unit Description","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Special Handling Description","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Is The Sample Sterile?","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Biobank Technician","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Additional Information","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Additional Processing Date","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Additional Processing Technician","")));
-    	row.add((String) (customFieldValueMap.getOrDefault("Additional Processing Temperature","")));
-   
-    	return row;
+    private void addCustomFields(Specimen specimen, Specimen primarySpecimen, RowBuffer row) {
+    	CustomFieldProjection.Values values = customFields.of(specimen, format);
+    	values.appendTo(row, 0, TIME_LAPSE);
+    	row.add(getCalculatedTime(specimen, primarySpecimen, values.get(TIME_LAPSE)));
+    	values.appendTo(row, TIME_LAPSE + 1, customFields.size());
     }
     
-    private String getCalculatedTime(Specimen specimen, String timeLapse) {
-    	Date collDate = getPrimarySpecimen(specimen).getCollRecvDetails().getCollTime();
+    private String getCalculatedTime(Specimen specimen, Specimen primarySpecimen, String timeLapse) {
+    	Date collDate = primarySpecimen.getCollRecvDetails().getCollTime();
     	Date createdDate = specimen.getCreatedOn();
     	
     	if (createdDate == null) {
@@ -127,11 +142,13 @@ public class SpecimenExport {
     	long diff = createdDate.getTime() - collDate.getTime();
     	long timeInMinutes = TimeUnit.MILLISECONDS.toMinutes(diff);
     	
-    	return timeLapse.equals("") ? Long.toString(timeInMinutes) : timeLapse;
+    	return StringUtils.isEmpty(timeLapse) ? Long.toString(timeInMinutes) : timeLapse;
     }
 
-    private String[] getHeader() {
+    static String[] getHeader() {
         return new String[] {
+        	"ROW_KEY",
+        	"ROW_HASH",
      	   	"PARENT_SPECIMEN_LABEL",
         	"ALIQUOT_LABEL",
         	"TBD_CATEGORY_DESC",
@@ -0,0 +1,160 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+//
+// The reporting database the exported rows are loaded into. Connections come
+// from a pool that is kept across runs. Its settings are read by refresh when a
+// run starts, so a change of the settings never closes the pool under the
+// writers of a running export; the change applies from the next run.
+//
+public class TargetDatabase {
+	private static DataSource dataSource;
+
+	private static String dataSourceSettings;
+
+	public static Connection getConnection() throws SQLException {
+		return getDataSource().getConnection();
+	}
+
+	//
+	// A connection for loading rows: the unique checks of the secondary indexes
+	// and the foreign key checks are off until it is released. The rows loaded
+	// are keyed by ROW_KEY, whose primary key is still enforced.
+	//
+	public static Connection getBulkLoadConnection() throws SQLException {
+		Connection conn = getConnection();
+		try {
+			setSessionChecks(conn, false);
+		} catch (SQLException e) {
+			conn.close();
+			throw e;
+		}
+
+		return conn;
+	}
+
+	//
+	// Turns the checks back on before the connection goes back to the pool
+	//
+	public static void releaseBulkLoadConnection(Connection conn) throws SQLException {
+		try {
+			setSessionChecks(conn, true);
+		} finally {
+			conn.close();
+		}
+	}
+
+	//
+	// Runs a load statement on a bulk load connection and returns the number of rows loaded
+	//
+	public static int bulkLoad(String query) throws SQLException {
+		Connection conn = getBulkLoadConnection();
+		try {
+			Statement stmt = conn.createStatement();
+			try {
+				return stmt.executeUpdate(query);
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			releaseBulkLoadConnection(conn);
+		}
+	}
+
+	public static void execute(String query) {
+		new JdbcTemplate(getDataSource()).execute(query);
+	}
+
+	//
+	// Returns the number of rows affected by the statement
+	//
+	public static int update(String query) {
+		return new JdbcTemplate(getDataSource()).update(query);
+	}
+
+	public static <T> List<T> queryForList(String query, Class<T> type, Object... args) {
+		return new JdbcTemplate(getDataSource()).queryForList(query, type, args);
+	}
+
+	public static synchronized DataSource getDataSource() {
+		if (dataSource == null) {
+			refresh();
+		}
+
+		return dataSource;
+	}
+
+	//
+	// Rebuilds the pool when its settings changed since it was built. Called when
+	// a run or a change batch starts, under the run lock, when no connection of
+	// the pool is in use. Fails when the database is not configured, so a run
+	// that loads into it stops before it exports anything.
+	//
+	public static synchronized void refresh() {
+		if (StringUtils.isBlank(ExportConfig.getTargetDbUrl()) || StringUtils.isBlank(ExportConfig.getTargetDbUsername())) {
+			throw new IllegalStateException("Target database URL or username is not configured");
+		}
+
+		int poolSize = getPoolSize();
+		String settings = ExportConfig.getTargetDbDriver() + "|" + ExportConfig.getTargetDbUrl() + "|" +
+			ExportConfig.getTargetDbUsername() + "|" + ExportConfig.getTargetDbPassword() + "|" + poolSize;
+		if (dataSource != null && settings.equals(dataSourceSettings)) {
+			return;
+		}
+
+		if (dataSource != null) {
+			dataSource.close();
+		}
+
+		PoolProperties props = new PoolProperties();
+		props.setDriverClassName(ExportConfig.getTargetDbDriver());
+		props.setUrl(ExportConfig.getTargetDbUrl());
+		props.setUsername(ExportConfig.getTargetDbUsername());
+		props.setPassword(ExportConfig.getTargetDbPassword());
+		props.setMaxActive(poolSize);
+		props.setMaxIdle(poolSize);
+		props.setInitialSize(0);
+		props.setMinIdle(0);
+		props.setTestOnBorrow(true);
+		props.setValidationQuery("SELECT 1");
+
+		dataSource = new DataSource(props);
+		dataSourceSettings = settings;
+	}
+
+	//
+	// Pool of a database other than the configured one, for the tests
+	//
+	static synchronized void setDataSource(DataSource testDataSource) {
+		dataSource = testDataSource;
+		dataSourceSettings = null;
+	}
+
+	//
+	// At least one connection for every thread that writes rows at the same
+	// time: the CPR and DP workers, the item export and the merge
+	//
+	private static int getPoolSize() {
+		int writers = ExportConfig.getCprExportWorkers() + ExportConfig.getDpExportWorkers() + 2;
+		return Math.max(ExportConfig.getTargetDbPoolSize(), writers);
+	}
+
+	private static void setSessionChecks(Connection conn, boolean on) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			int value = on ? 1 : 0;
+			stmt.execute("SET SESSION unique_checks = " + value + ", foreign_key_checks = " + value);
+		} finally {
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+//
+// The DDL of the target tables, kept in msk-ppbc-export-schema.sql: the tables
+// with their primary keys and the secondary indexes the readers and the change
+// batches look the rows up by. Missing tables and indexes are created before
+// every run, so the script need not be run by hand.
+//
+// The tables the rows are loaded into carry only the primary key the merge
+// joins on. A merge that rewrites a large part of a live table is cheaper with
+// the secondary indexes of the table dropped before it and rebuilt in a single
+// pass after it than with the indexes updated row by row. InnoDB ignores
+// DISABLE KEYS, so the indexes are dropped and added back.
+//
+public class TargetSchema {
+	private static final Log logger = LogFactory.getLog(TargetSchema.class);
+
+	private static final String SCHEMA_RESOURCE = "/msk-ppbc-export-schema.sql";
+
+	private static final Pattern CREATE_TABLE = Pattern.compile(
+		"CREATE\\s+TABLE\\s+(\\w+)\\s*\\(.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private static final Pattern CREATE_INDEX = Pattern.compile(
+		"CREATE\\s+(UNIQUE\\s+)?INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\((.+)\\)", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private static TargetSchema instance;
+
+	private final Map<String, String> tableDdls = new LinkedHashMap<>();
+
+	private final Map<String, List<Index>> indexes = new LinkedHashMap<>();
+
+	public static synchronized TargetSchema getInstance() {
+		if (instance == null) {
+			instance = new TargetSchema(readSchema());
+		}
+
+		return instance;
+	}
+
+	TargetSchema(String schema) {
+		for (String stmt : getStatements(schema)) {
+			Matcher table = CREATE_TABLE.matcher(stmt);
+			Matcher index = CREATE_INDEX.matcher(stmt);
+			if (table.matches()) {
+				tableDdls.put(table.group(1), stmt);
+			} else if (index.matches()) {
+				indexes.computeIfAbsent(index.group(3), name -> new ArrayList<>())
+					.add(new Index(index.group(2), index.group(4).trim(), index.group(1) != null));
+			} else {
+				throw new IllegalArgumentException("Unexpected statement in " + SCHEMA_RESOURCE + ": " + stmt);
+			}
+		}
+	}
+
+	//
+	// Creates the tables and indexes that are not in the database yet. A table
+	// created by an older script that lacks some of the exported columns is
+	// reported instead of being loaded with missing values.
+	//
+	public void ensureTables(ExportTable[] tables) {
+		for (ExportTable table : tables) {
+			String tableName = table.getTableName();
+			TargetDatabase.execute(getTableDdl(tableName).replaceFirst("(?i)^CREATE\\s+TABLE", "CREATE TABLE IF NOT EXISTS"));
+			ensureColumns(table);
+
+			Set<String> existing = getIndexNames(tableName, false);
+			List<Index> missing = new ArrayList<>();
+			for (Index index : getIndexes(tableName)) {
+				if (!existing.contains(index.name.toLowerCase())) {
+					missing.add(index);
+				}
+			}
+
+			if (!missing.isEmpty()) {
+				addIndexes(tableName, missing);
+				logger.info("Created " + missing.size() + " missing indexes on " + tableName);
+			}
+		}
+	}
+
+	//
+	// A table with the columns and primary key of the given one, but no
+	// secondary indexes, for the rows to be loaded into
+	//
+	public void createLoadTable(ExportTable table, String tableName) {
+		TargetDatabase.execute("DROP TABLE IF EXISTS " + tableName);
+		TargetDatabase.execute("CREATE TABLE " + tableName + " LIKE " + table.getTableName());
+
+		Set<String> secondary = getIndexNames(tableName, true);
+		if (!secondary.isEmpty()) {
+			List<String> drops = new ArrayList<>();
+			secondary.forEach(name -> drops.add("DROP INDEX " + name));
+			TargetDatabase.execute("ALTER TABLE " + tableName + " " + StringUtils.join(drops, ", "));
+		}
+	}
+
+	//
+	// Drops the declared non-unique indexes of the table and returns them, to be
+	// added back by rebuildIndexes once the rows are written
+	//
+	public List<Index> dropIndexes(ExportTable table) {
+		String tableName = table.getTableName();
+		Set<String> existing = getIndexNames(tableName, true);
+
+		List<Index> dropped = new ArrayList<>();
+		List<String> drops = new ArrayList<>();
+		for (Index index : getIndexes(tableName)) {
+			if (!index.unique && existing.contains(index.name.toLowerCase())) {
+				dropped.add(index);
+				drops.add("DROP INDEX " + index.name);
+			}
+		}
+
+		if (!drops.isEmpty()) {
+			TargetDatabase.execute("ALTER TABLE " + tableName + " " + StringUtils.join(drops, ", "));
+		}
+
+		return dropped;
+	}
+
+	public void rebuildIndexes(ExportTable table, List<Index> dropped) {
+		if (dropped.isEmpty()) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		addIndexes(table.getTableName(), dropped);
+		logger.info("Rebuilt " + dropped.size() + " indexes of " + table.getTableName() + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	//
+	// The row count the server keeps for the table, an estimate for InnoDB tables
+	//
+	public long getEstimatedRows(ExportTable table) {
+		List<Long> rows = TargetDatabase.queryForList(
+			"SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?",
+			Long.class, table.getTableName());
+		return rows.isEmpty() || rows.get(0) == null ? 0L : rows.get(0);
+	}
+
+	private String getTableDdl(String tableName) {
+		String ddl = tableDdls.get(tableName);
+		if (ddl == null) {
+			throw new IllegalStateException("No definition of " + tableName + " in " + SCHEMA_RESOURCE);
+		}
+
+		return ddl;
+	}
+
+	private List<Index> getIndexes(String tableName) {
+		return indexes.getOrDefault(tableName, Collections.emptyList());
+	}
+
+	private void ensureColumns(ExportTable table) {
+		Set<String> existing = new HashSet<>();
+		List<String> columns = TargetDatabase.queryForList(
+			"SELECT COLUMN_NAME FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?",
+			String.class, table.getTableName());
+		columns.forEach(column -> existing.add(column.toLowerCase()));
+
+		List<String> missing = new ArrayList<>();
+		for (ExportTable.Column column : table.getColumns()) {
+			if (!existing.contains(column.getName().toLowerCase())) {
+				missing.add(column.getName());
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			throw new IllegalStateException(table.getTableName() + " lacks the columns " + missing +
+				"; recreate it from " + SCHEMA_RESOURCE);
+		}
+	}
+
+	//
+	// Names of the indexes of the table, lower cased; the primary key is not one of the non-unique ones
+	//
+	private Set<String> getIndexNames(String tableName, boolean nonUniqueOnly) {
+		List<String> names = TargetDatabase.queryForList(
+			"SELECT DISTINCT INDEX_NAME FROM information_schema.STATISTICS " +
+			"WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?" + (nonUniqueOnly ? " AND NON_UNIQUE = 1" : ""),
+			String.class, tableName);
+
+		Set<String> result = new HashSet<>();
+		names.forEach(name -> result.add(name.toLowerCase()));
+		return result;
+	}
+
+	//
+	// All indexes in one statement, so the table is read once to build them
+	//
+	private void addIndexes(String tableName, List<Index> toAdd) {
+		List<String> adds = new ArrayList<>();
+		for (Index index : toAdd) {
+			adds.add("ADD " + (index.unique ? "UNIQUE " : "") + "INDEX " + index.name + " (" + index.columns + ")");
+		}
+
+		TargetDatabase.execute("ALTER TABLE " + tableName + " " + StringUtils.join(adds, ", "));
+	}
+
+	private static List<String> getStatements(String schema) {
+		StringBuilder sql = new StringBuilder();
+		for (String line : schema.split("\\r?\\n")) {
+			if (!line.trim().startsWith("--")) {
+				sql.append(line).append("\n");
+			}
+		}
+
+		List<String> stmts = new ArrayList<>();
+		for (String stmt : sql.toString().split(";")) {
+			if (StringUtils.isNotBlank(stmt)) {
+				stmts.add(stmt.trim());
+			}
+		}
+
+		return stmts;
+	}
+
+	private static String readSchema() {
+		InputStream in = null;
+		try {
+			in = TargetSchema.class.getResourceAsStream(SCHEMA_RESOURCE);
+			if (in == null) {
+				throw new IllegalStateException(SCHEMA_RESOURCE + " is not on the classpath");
+			}
+
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading " + SCHEMA_RESOURCE, e);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	public static class Index {
+		private final String name;
+
+		private final String columns;
+
+		private final boolean unique;
+
+		Index(String name, String columns, boolean unique) {
+			this.name = name;
+			this.columns = columns;
+			this.unique = unique;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+}
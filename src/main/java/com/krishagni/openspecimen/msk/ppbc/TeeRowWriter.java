@@ -0,0 +1,39 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import java.io.IOException;
+
+//
+// Hands every row to two writers. The writers are checkpointed on their own,
+// as each keeps its own resume offset.
+//
+public class TeeRowWriter implements RowWriter {
+	private final RowWriter first;
+
+	private final RowWriter second;
+
+	public TeeRowWriter(RowWriter first, RowWriter second) {
+		this.first = first;
+		this.second = second;
+	}
+
+	@Override
+	public void writeNext(String[] row) {
+		first.writeNext(row);
+		second.writeNext(row);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		first.flush();
+		second.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			first.close();
+		} finally {
+			second.close();
+		}
+	}
+}
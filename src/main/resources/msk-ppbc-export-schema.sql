@@ -1,4 +1,6 @@
 CREATE TABLE Specimen_Request (
+ROW_KEY varchar(64) NOT NULL,
+ROW_HASH char(32) NOT NULL,
 TBR_REQUEST_TITLE varchar(255),
 TBR_SOURCE_REQUEST varchar(255),
 TBR_INSTITUTE_DESC varchar(255),
@@ -26,10 +28,13 @@ TBR_SPECIMEN_USAGE_DESC text,
 TBR_WAIVER_NO varchar(255),
 TBR_MIN_SIZE_DESC varchar(255),
 TBR_STS_DESC varchar(255),
-TBR_SPECIAL_HANDLING_DESC varchar(255)
+TBR_SPECIAL_HANDLING_DESC varchar(255),
+PRIMARY KEY (ROW_KEY)
 );
 
 CREATE TABLE Specimen_Request_Details(
+ROW_KEY varchar(64) NOT NULL,
+ROW_HASH char(32) NOT NULL,
 TBRD_SPECIMEN_TYPE_CD varchar(255),
 TBRD_SITE_DESC varchar(255),
 TBRD_SUB_SITE_DESC varchar(255),
@@ -44,20 +49,26 @@ TBRD_HISTOLOGY_SUB2_DESC varchar(255),
 TBRD_HISTOLOGY_SUB3_DESC varchar(255),
 TBRD_QUALITY_DESC varchar(255),
 TBRD_UNIT_DESC varchar(255),
-TBRD_NOTES text
+TBRD_NOTES text,
+PRIMARY KEY (ROW_KEY)
 );
 
 CREATE TABLE Distribution (
+ROW_KEY varchar(64) NOT NULL,
+ROW_HASH char(32) NOT NULL,
 TBDS_SPECIMEN_REQUEST_ID varchar(255),
 TBDS_DISTRIBUTION_DT timestamp NULL DEFAULT NULL,
 TBDS_SOURCE_REQUEST varchar(255),
 TBDS_BILLING_AMT decimal(19,6),
 SPECIMEN_LABEL varchar(255),
-TBDS_BILLING_DT timestamp NULL DEFAULT NULL
+TBDS_BILLING_DT timestamp NULL DEFAULT NULL,
+PRIMARY KEY (ROW_KEY)
 );
 
 
 CREATE TABLE Accession(
+ROW_KEY varchar(64) NOT NULL,
+ROW_HASH char(32) NOT NULL,
 TBA_CRDB_MRN varchar(50),
 TBA_PT_DEIDENTIFICATION_ID bigint(20),
 TBD_BANK_NUM varchar(255),
@@ -96,10 +107,13 @@ TBA_HISTOLOGY_DESC varchar(255),
 TBA_HISTOLOGY_SUB_DESC varchar(255),
 TBA_HISTOLOGY_SUB2_DESC varchar(255),
 TBA_HISTOLOGY_SUB3_DESC varchar(255),
-TBA_HARVEST_PA_NAME varchar(255)
+TBA_HARVEST_PA_NAME varchar(255),
+PRIMARY KEY (ROW_KEY)
 );
 
 CREATE TABLE Details(
+ROW_KEY varchar(64) NOT NULL,
+ROW_HASH char(32) NOT NULL,
 PARENT_SPECIMEN_LABEL varchar(255),
 ALIQUOT_LABEL varchar(255),
 TBD_CATEGORY_DESC varchar(255),
@@ -117,5 +131,19 @@ TBD_BIOBANK_TECH_NAME varchar(255),
 TBD_ADDTL_DETAILS text,
 TBD_ADDTL_PROCESS_DT timestamp NULL DEFAULT NULL,
 TBD_ADDTL_PROCESS_TECH_NAME varchar(255),
-TBD_ADDTL_PROCESS_TEMPERATURE_DESC varchar(255)
+TBD_ADDTL_PROCESS_TEMPERATURE_DESC varchar(255),
+PRIMARY KEY (ROW_KEY)
 );
+
+CREATE INDEX IDX_SR_SOURCE_REQUEST ON Specimen_Request (TBR_SOURCE_REQUEST);
+
+CREATE INDEX IDX_SRD_SOURCE_REQUEST ON Specimen_Request_Details (TBRD_SOURCE_REQUEST);
+
+CREATE INDEX IDX_DIST_SOURCE_REQUEST ON Distribution (TBDS_SOURCE_REQUEST);
+CREATE INDEX IDX_DIST_SPECIMEN_LABEL ON Distribution (SPECIMEN_LABEL);
+
+CREATE INDEX IDX_ACC_CRDB_MRN ON Accession (TBA_CRDB_MRN);
+CREATE INDEX IDX_ACC_BANK_NUM ON Accession (TBD_BANK_NUM);
+CREATE INDEX IDX_ACC_PARENT_LABEL ON Accession (PARENT_SPECIMEN_LABEL);
+
+CREATE INDEX IDX_DET_PARENT_LABEL ON Details (PARENT_SPECIMEN_LABEL);
@@ -0,0 +1,174 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+//
+// Splits files with quoted multi-line values, native nulls and backslash escapes
+// into chunks and checks that every chunk is the header followed by whole rows,
+// and that the rows of the chunks put together are the rows of the file. Needs
+// no database.
+//
+public class CsvChunksTest {
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final int CHUNK_SIZE = 1000;
+
+	private static final String HEADER = "\"ROW_KEY\",\"VALUE\",\"NOTE\"\n";
+
+	private static final String[] HEADER_ROW = { "ROW_KEY", "VALUE", "NOTE" };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void fileNotLargerThanChunkIsReturnedAsIs() throws IOException {
+		File file = write("Small.csv", HEADER + "\"row-1\",\"one\ntwo\",\"\"\n");
+
+		List<File> chunks = CsvChunks.split(file, file.length());
+		assertEquals(1, chunks.size());
+		assertEquals(file, chunks.get(0));
+		assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void lineEndsWithinQuotesAtBufferBoundaryDoNotEndChunks() throws IOException {
+		StringBuilder csv = new StringBuilder(HEADER);
+		addFillerRows(csv, BUFFER_SIZE - 2 * CHUNK_SIZE);
+
+		//
+		// line ends within quotes as the last byte of a read and as the first byte of
+		// the next one, each after more than a chunk of the quoted value
+		//
+		addRowWithLineEndAt(csv, BUFFER_SIZE - 1, "row-last-byte");
+		addFillerRows(csv, 2 * BUFFER_SIZE - 2 * CHUNK_SIZE);
+		addRowWithLineEndAt(csv, 2 * BUFFER_SIZE, "row-first-byte");
+		addFillerRows(csv, 3 * BUFFER_SIZE);
+
+		File file = write("Legacy.csv", csv.toString());
+		List<File> chunks = CsvChunks.split(file, CHUNK_SIZE);
+
+		assertTrue(chunks.size() > 1);
+		assertChunks(csv.toString(), chunks, "Legacy", false);
+	}
+
+	@Test
+	public void gzippedFileIsSplitIntoGzippedChunks() throws IOException {
+		File file = new File(folder.getRoot(), "Native.csv.gz");
+		CsvRowWriter writer = new CsvRowWriter(file, HEADER_ROW, 8 * 1024, ExportFormat.NATIVE, true);
+		try {
+			for (int i = 0; i < 5000; ++i) {
+				writer.writeNext(new String[] {
+					"row-" + i,
+					"C:\\export\\" + i + "\\ said \"hi\"\nand left\\",
+					(i % 3 == 0) ? null : "note \\N " + i
+				});
+
+				//
+				// every checkpoint starts a new gzip member
+				//
+				if (i % 700 == 0) {
+					writer.checkpoint();
+				}
+			}
+		} finally {
+			writer.close();
+		}
+
+		String csv = read(file, true);
+		assertTrue(csv.length() > BUFFER_SIZE);
+		assertTrue(csv.contains(",\\N\n"));
+
+		List<File> chunks = CsvChunks.split(file, 4096);
+
+		assertTrue(chunks.size() > 1);
+		assertChunks(csv, chunks, "Native", true);
+	}
+
+	private void assertChunks(String csv, List<File> chunks, String baseName, boolean compressed) throws IOException {
+		StringBuilder rows = new StringBuilder(HEADER);
+		for (int i = 0; i < chunks.size(); ++i) {
+			File chunk = chunks.get(i);
+			assertEquals(baseName + ".chunk-" + (i + 1) + ".csv" + (compressed ? ".gz" : ""), chunk.getName());
+
+			String content = read(chunk, compressed);
+			assertTrue(content.startsWith(HEADER));
+
+			String chunkRows = content.substring(HEADER.length());
+			assertFalse(chunkRows.isEmpty());
+			assertTrue(chunkRows.endsWith("\n"));
+			assertEquals(0, countQuotes(chunkRows) % 2);
+			rows.append(chunkRows);
+		}
+
+		assertEquals(csv, rows.toString());
+	}
+
+	private void addFillerRows(StringBuilder csv, int upTo) {
+		for (int i = 0; csv.length() < upTo; ++i) {
+			csv.append("\"filler-").append(i).append("\",\"value ").append(i).append("\",\"\"\n");
+		}
+	}
+
+	//
+	// Adds a row whose value has a line end at the given offset of the file
+	//
+	private void addRowWithLineEndAt(StringBuilder csv, int offset, String key) {
+		csv.append('"').append(key).append("\",\"");
+		assertTrue(csv.length() <= offset);
+		while (csv.length() < offset) {
+			csv.append('x');
+		}
+
+		csv.append("\nsecond line with a \"\"quote\"\"\",\"note\"\n");
+	}
+
+	private File write(String name, String content) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		FileUtils.writeStringToFile(file, content, StandardCharsets.UTF_8);
+		return file;
+	}
+
+	private String read(File file, boolean compressed) throws IOException {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			if (compressed) {
+				in = new GZIPInputStream(in);
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IOUtils.copy(in, out);
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	private int countQuotes(String value) {
+		int count = 0;
+		for (int i = 0; i < value.length(); ++i) {
+			if (value.charAt(i) == '"') {
+				++count;
+			}
+		}
+
+		return count;
+	}
+}
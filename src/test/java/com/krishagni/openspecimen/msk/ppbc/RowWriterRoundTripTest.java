@@ -0,0 +1,158 @@
+package com.krishagni.openspecimen.msk.ppbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+//
+// Writes the same rows through the file mode, a CSV loaded by the LOAD DATA query
+// of the loader, and through the DB mode, and checks that both store the same
+// values. Runs against the MySQL database given by the msk.ppbc.test.db.url,
+// .username and .password system properties and is skipped when they are not
+// set. The server has to allow LOAD DATA LOCAL INFILE.
+//
+public class RowWriterRoundTripTest {
+	private static final String DB_URL = System.getProperty("msk.ppbc.test.db.url");
+
+	private static final ExportTable TABLE = ExportTable.DISTRIBUTION;
+
+	private static final String FILE_TABLE = "Distribution_file_test";
+
+	private static final String DB_TABLE = "Distribution_db_test";
+
+	private static final int BILLING_AMT = 5;
+
+	private static final int BILLING_DT = 7;
+
+	private DataSource dataSource;
+
+	private File csvFile;
+
+	@Before
+	public void setUp() throws Exception {
+		Assume.assumeTrue("msk.ppbc.test.db.url is not set", StringUtils.isNotBlank(DB_URL));
+
+		PoolProperties props = new PoolProperties();
+		props.setDriverClassName(System.getProperty("msk.ppbc.test.db.driver", "com.mysql.cj.jdbc.Driver"));
+		props.setUrl(DB_URL);
+		props.setUsername(System.getProperty("msk.ppbc.test.db.username"));
+		props.setPassword(System.getProperty("msk.ppbc.test.db.password"));
+		props.setConnectionProperties("allowLoadLocalInfile=true");
+		dataSource = new DataSource(props);
+		TargetDatabase.setDataSource(dataSource);
+
+		TargetSchema schema = TargetSchema.getInstance();
+		schema.ensureTables(new ExportTable[] { TABLE });
+		schema.createLoadTable(TABLE, FILE_TABLE);
+		schema.createLoadTable(TABLE, DB_TABLE);
+
+		csvFile = File.createTempFile("msk-ppbc-round-trip", ".csv");
+	}
+
+	@After
+	public void tearDown() {
+		if (dataSource == null) {
+			return;
+		}
+
+		try {
+			TargetDatabase.execute("DROP TABLE IF EXISTS " + FILE_TABLE);
+			TargetDatabase.execute("DROP TABLE IF EXISTS " + DB_TABLE);
+		} finally {
+			TargetDatabase.setDataSource(null);
+			dataSource.close();
+			FileUtils.deleteQuietly(csvFile);
+		}
+	}
+
+	@Test
+	public void legacyModesStoreSameRows() throws Exception {
+		assertSameRows(ExportFormat.LEGACY, "Wed Jan 02 10:15:00 EST 2019");
+	}
+
+	@Test
+	public void nativeModesStoreSameRows() throws Exception {
+		assertSameRows(ExportFormat.NATIVE, "2019-01-02 10:15:00");
+	}
+
+	private void assertSameRows(ExportFormat format, String distributionDate) throws Exception {
+		List<String[]> rows = Arrays.asList(
+			new String[] { "item-1", null, "TBR-2019-0042", distributionDate, "TBR-2019-0042", "35.50", "PPBC-19-000123.1", "Jan 02, 2019 10:15" },
+			new String[] { "item-2", null, "TBR-2019-0042", distributionDate, "TBR-2019-0042", format.missing(), "PPBC-19-000123.2", format.missing() },
+			new String[] { "item-3", null, "Quote \" comma , backslash \\ accent \u00e9", null, "", null, "PPBC-19-000123.3", null }
+		);
+
+		write(new CsvRowWriter(csvFile, DistributionProtocolExport.getDoHeader(), CsvRowWriter.DEFAULT_BUFFER_SIZE, format), format, rows);
+		TargetDatabase.bulkLoad(ExportLoader.getLoadDataQuery(TABLE, FILE_TABLE, csvFile.getAbsolutePath(), format)
+			.replaceFirst("^LOAD DATA INFILE", "LOAD DATA LOCAL INFILE"));
+
+		write(new DbRowWriter(TABLE, DB_TABLE, 2, format), format, rows);
+
+		List<List<Object>> fileRows = readRows(FILE_TABLE);
+		List<List<Object>> dbRows = readRows(DB_TABLE);
+		assertEquals(rows.size(), fileRows.size());
+		assertEquals(fileRows, dbRows);
+
+		assertNull(fileRows.get(1).get(BILLING_DT));
+		if (format.isNative()) {
+			assertNull(fileRows.get(1).get(BILLING_AMT));
+		}
+	}
+
+	private void write(RowWriter writer, ExportFormat format, List<String[]> rows) throws IOException {
+		if (format.isNative()) {
+			writer = new NativeDateRowWriter(writer, TABLE);
+		}
+
+		writer = new RowHashWriter(writer, TABLE);
+		try {
+			for (String[] row : rows) {
+				writer.writeNext(row.clone());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private List<List<Object>> readRows(String tableName) throws SQLException {
+		List<List<Object>> result = new ArrayList<>();
+		Connection conn = TargetDatabase.getConnection();
+		try {
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName + " ORDER BY ROW_KEY");
+			int columns = rs.getMetaData().getColumnCount();
+			while (rs.next()) {
+				List<Object> row = new ArrayList<>();
+				for (int i = 1; i <= columns; ++i) {
+					row.add(rs.getObject(i));
+				}
+
+				result.add(row);
+			}
+
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+
+		return result;
+	}
+}